@@ -0,0 +1,80 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The nodes of the syntax tree created by the {@link Parser}. Every node
+ * knows the line and column where it starts.
+ */
+final class Ast {
+
+    private Ast() {
+    }
+
+    abstract static class Node {
+        final int line;
+        final int column;
+
+        Node( Token start ) {
+            this.line = start.line;
+            this.column = start.column;
+        }
+    }
+
+    /**
+     * <code>some.package.Name : SuperClass, Interface {</code>
+     */
+    static class ClassDeclaration extends Node {
+        final String packageName;
+        final String name;
+        final List<TypeReference> supertypes = new ArrayList<TypeReference>();
+
+        ClassDeclaration( Token start, String packageName, String name ) {
+            super( start );
+            this.packageName = packageName;
+            this.name = name;
+        }
+    }
+
+    /**
+     * <code>java.util.List</code> or <code>String*</code> for variable arguments.
+     */
+    static class TypeReference extends Node {
+        final String name;
+        final boolean varargs;
+
+        TypeReference( Token start, String name, boolean varargs ) {
+            super( start );
+            this.name = name;
+            this.varargs = varargs;
+        }
+    }
+}
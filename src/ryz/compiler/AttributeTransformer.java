@@ -28,12 +28,8 @@
 
 package ryz.compiler;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 // Some utility functions
@@ -51,50 +47,11 @@ class AttributeTransformer extends LineTransformer {
     private static final String multiLineInitialValue = " =  %s"+lineSeparatorRepresentation+"\"";
     private static final String regexInitialValue = " = java.util.regex.Pattern.compile(\"%s\");%n";
     private static final String dateInitialValue = " = ryz.lang.DateLiteral.valueOf(\"%s 00:00:00\");";
-    private static final String blockInitialValue = " = /* block */ new ryz.lang.block.Block%s<%s %s>(){%n    public %s run(%s){%n";
-
-
-    // [+#~-] hola ...
-
-    //\((.*)\)\s*:\s*(\w+)
-    private final static Pattern blockPattern = Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*(\\((.*)\\)|\\((.*)\\)\\s*:\\s*((\\w+)))?\\s*\\{");
-    //private final static Pattern blockPattern = regexp("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=(\\s*)?\\{");
-    private static final Pattern multilineString = Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*(\".*[^\"])");
-
-
-    private static final List<Match> matchers = Arrays.asList(
-            // hola : String* // varargs
-            Match.declaration(Pattern.compile("(__)?(\\w+)\\s*:\\s*((\\w+)\\*)")),
-            // + __ hola : String
-            Match.declaration(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*:\\s*(\\w+)")),
-            // + __ hola = String()
-            Match.initialization(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*(.+\\s*\\(.*\\))")),
-            // + __ hola : String = a
-            Match.typeAndInit(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*:\\s*(\\w+)\\s*=\\s*(.+)")),
-            // + __ hola = 1
-            Match.literal(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*(\\d+)"), "int", literalInitialValue),
-            // + __ hola = "uno
-            Match.literal(multilineString, "String", multiLineInitialValue),
-            // + __ hola = "uno"
-            Match.literal(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*(\".*\")"), "String", literalInitialValue),
-            // + __ hola = true
-            Match.literal(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*(true|false)"), "Boolean", boolInitialValue),
-            // + __ hola = 'c'
-            Match.literal(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*('.')"), "char", literalInitialValue),
-            // + __ hola = 2011-01-06
-            Match.literal(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*(\\d{4}-\\d{2}-\\d{2})"), "java.util.Date", dateInitialValue),
-            // + __ hola = /^(\d*)$/
-            Match.literal(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*\\/\\^(.*)\\$\\/"), "java.util.regex.Pattern", regexInitialValue),
-            // hola = {
-            // }
-            Match.block(blockPattern, "ryz.lang.block.Block%s<%s %s>", blockInitialValue),
-            // hola = null
-            Match.literal(Pattern.compile("[+#~-]??\\s*(__)?\\s*(\\w+)\\s*=\\s*(null)"), "java.lang.Object", literalInitialValue)
-
-    );
+    private static final String blockInitialValue = " = /* block */ %s";
 
 
     private final boolean includeScope;
+    private final AttributeMatcher matcher = new AttributeMatcher(this);
 
     public AttributeTransformer(RyzClassState state, boolean includeScope) {
         super(state);
@@ -105,225 +62,338 @@ class AttributeTransformer extends LineTransformer {
         this(state, true);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.isDeclaration();
+    }
+
 
 
     @Override
     public void transform(String line, List<String> generatedSource) {
 
 
-        Variable variable = null;
-        for (Match matcher : matchers) {
-            matcher.setTransformer(this);
-            variable = matcher.matches(line, variable);
+        Variable variable = matcher.match(line);
+        if (variable == null) {
+            return;
         }
 
         // add the variable to the class 
-        if (variable != null) {
-            String accessModifier = getScope(line, this.includeScope, "private");
-            boolean added = currentClass().addVariable(accessModifier, variable.name, variable.type);
-            String type = added ? variable.type : "";
-            if(logger.isLoggable(Level.FINEST) && !added) {
-                logger.finest(currentClass().methods().toString());
-            }
-
-            generatedSource.add(String.format("    /*attribute*/%s %s %s %s %s %n",
-                    accessModifier,
-                    variable.staticOrInstance,
-                    type,
-                    variable.name,
-                    variable.initialValue));
-            if (blockPattern.matcher(line).matches()  ) {
-                currentClass().insideBlock(String.format("%s:%s", variable.parameters, variable.returnType));
-            }
-
+        String accessModifier = getScope(line, this.includeScope, "private");
+        boolean added = currentClass().addVariable(accessModifier, variable.name, variable.type);
+        String type = added ? variable.type : "";
+        if(logger.isLoggable(Level.FINEST) && !added) {
+            logger.finest(currentClass().methods().toString());
         }
 
+        generatedSource.add(String.format("    /*attribute*/%s %s %s %s %s %n",
+                accessModifier,
+                variable.staticOrInstance,
+                type,
+                variable.name,
+                variable.initialValue));
+        if (variable.blockSignature() != null) {
+            currentClass().insideBlock(variable.blockSignature());
+        }
 
         // and change the class state
-        if( multilineString.matcher(line).matches()){
+        if (variable.multilineIndentation >= 0) {
             //If a multiline string is found
-            //get the identation to be used in the
-            // new lines
-            Matcher matcher = multilineString.matcher(line);
-            matcher.matches();
-            int indentation = 0;
-            String multilineBegin = matcher.group( 3 );
-            while( Character.isWhitespace( multilineBegin.charAt( ++indentation )));
-            currentClass().insideMultilineString(--indentation);
+            //use its indentation in the new lines
+            currentClass().insideMultilineString(variable.multilineIndentation);
         }
         
 
     }
 
 
-}
-
-/**
- * Abstract class to match variables declaration.
- */
-abstract class Match {
+    /**
+     * Recognizes the attribute forms in a single scan of the line. The head
+     * <code>[+#~-] __ name</code> is read once and what follows the ":" or
+     * "=" decides the form, the same one the regular expressions in the
+     * comments would pick, the later ones taking precedence.
+     */
+    static class AttributeMatcher {
 
-    private final Pattern pattern;
-    LineTransformer transformer;
-    Match(Pattern pattern) {
-        this.pattern = pattern;
-    }
+        private final LineTransformer transformer;
+        private String line;
+        private int length;
 
-    Variable matches(String line, Variable variable) {
-        Matcher m = pattern.matcher(line);
-        if (m.matches()) {
-            return variableFrom(m);
+        AttributeMatcher(LineTransformer transformer) {
+            this.transformer = transformer;
         }
-        return variable;
-    }
-
-    static String staticOrInstance(Matcher matcher) {
-        return matcher.group(1) == null ? "" : "static";
-    }
 
-    // Factory methods
-    static Match declaration(Pattern pattern) {
-        return new DeclarationMatcher(pattern);
-    }
-
-    static Match initialization(Pattern pattern) {
-        return new InitMatcher(pattern);
-    }
-
-    static Match typeAndInit(Pattern pattern) {
-        return new TypeWithInitMatcher(pattern);
-    }
-
-    static Match literal(Pattern pattern, String literalType, String format) {
-        return new LiteralMatcher(pattern, literalType, format);
-    }
-    static Match block(Pattern pattern, String literalType, String format) {
-        return new BlockLiteralMatcher(pattern, literalType, format);
-    }
+        Variable match(String line) {
+            this.line = line;
+            this.length = line.length();
+            boolean scoped = length > 0 && "+#~-".indexOf(line.charAt(0)) >= 0;
+            int head = spaces(scoped ? 1 : 0);
+            int nameStart = head;
+            boolean isStatic = false;
+            if (line.startsWith("__", head)) {
+                int next = spaces(head + 2);
+                if (words(next) > next) {
+                    isStatic = true;
+                    nameStart = next;
+                }
+            }
+            int nameEnd = words(nameStart);
+            int operator = spaces(nameEnd);
+            if (nameEnd == nameStart || operator == length) {
+                return null;
+            }
+            String name = scapeName(line.substring(nameStart, nameEnd));
+            String staticOrInstance = isStatic ? "static" : "";
+            if (line.charAt(operator) == ':') {
+                // the varargs form has no scope nor spaces in its head
+                boolean compactHead = !scoped && nameStart == (isStatic ? 2 : 0);
+                return declaration(name, staticOrInstance, spaces(operator + 1), compactHead);
+            }
+            if (line.charAt(operator) == '=') {
+                return assignment(name, staticOrInstance, operator + 1);
+            }
+            return null;
+        }
 
-    protected abstract Variable variableFrom(Matcher matcher);
+        // hola : String* // varargs
+        // + __ hola : String
+        // + __ hola : String = a
+        private Variable declaration(String name, String staticOrInstance, int type, boolean compactHead) {
+            int typeEnd = words(type);
+            if (typeEnd == type) {
+                return null;
+            }
+            if (typeEnd == length
+                    || (compactHead && typeEnd == length - 1 && line.charAt(typeEnd) == '*')) {
+                String declaredType = line.substring(type, length);
+                return new Variable(name,
+                        scapeName(transformer.inferType(declaredType)),
+                        staticOrInstance,
+                        ";");
+            }
+            int equals = spaces(typeEnd);
+            if (equals == length || line.charAt(equals) != '=') {
+                return null;
+            }
+            // .+ takes back a space when nothing else follows the "="
+            int value = spaces(equals + 1);
+            if (value == length) {
+                value = value > equals + 1 ? length - 1 : -1;
+            }
+            if (value < 0 || !isLine(value, length)) {
+                return null;
+            }
+            return new Variable(name,
+                    scapeName(line.substring(type, typeEnd)),
+                    staticOrInstance,
+                    " = " + scapeName(checkObjectInitialization(line.substring(value))) + ";");
+        }
 
-    public LineTransformer getTransformer() {
-        return transformer;
-    }
+        private Variable assignment(String name, String staticOrInstance, int afterEquals) {
+            int value = spaces(afterEquals);
+            int size = length - value;
+            if (size == 0) {
+                return null;
+            }
+            char first = line.charAt(value);
+            char last = line.charAt(length - 1);
+            // + __ hola = null
+            if (size == 4 && line.startsWith("null", value)) {
+                return literal(name, staticOrInstance, "java.lang.Object", literalInitialValue, "null");
+            }
+            // hola = ( a : Int ) : Int {
+            // }
+            if (last == '{' && (first == '(' || size == 1)) {
+                Variable block = block(name, staticOrInstance, value);
+                if (block != null) {
+                    return block;
+                }
+            }
+            // + __ hola = /^(\d*)$/
+            if (size >= 4 && line.startsWith("/^", value) && line.endsWith("$/") && isLine(value + 2, length - 2)) {
+                return literal(name, staticOrInstance, "java.util.regex.Pattern", regexInitialValue,
+                        line.substring(value + 2, length - 2));
+            }
+            // + __ hola = 2011-01-06
+            if (size == 10 && isDate(value)) {
+                return literal(name, staticOrInstance, "java.util.Date", dateInitialValue, line.substring(value));
+            }
+            // + __ hola = 'c'
+            if (size == 3 && first == '\'' && last == '\'' && isLine(value + 1, value + 2)) {
+                return literal(name, staticOrInstance, "char", literalInitialValue, line.substring(value));
+            }
+            // + __ hola = true
+            if ((size == 4 && line.startsWith("true", value)) || (size == 5 && line.startsWith("false", value))) {
+                return literal(name, staticOrInstance, "Boolean", boolInitialValue, line.substring(value));
+            }
+            // + __ hola = "uno"
+            // + __ hola = "uno
+            if (first == '"' && size >= 2 && isLine(value + 1, length - 1)) {
+                if (last == '"') {
+                    return literal(name, staticOrInstance, "String", literalInitialValue, line.substring(value));
+                }
+                String multilineBegin = line.substring(value);
+                Variable variable = literal(name, staticOrInstance, "String", multiLineInitialValue, multilineBegin);
+                // the indentation to be used in the new lines
+                int indentation = 1;
+                while (indentation < size && Character.isWhitespace(multilineBegin.charAt(indentation))) {
+                    indentation++;
+                }
+                variable.multilineIndentation = indentation - 1;
+                return variable;
+            }
+            // + __ hola = 1
+            if (isDigits(value, length)) {
+                return literal(name, staticOrInstance, "int", literalInitialValue, line.substring(value));
+            }
+            // + __ hola = String()
+            if (last == ')') {
+                // \s* gives spaces back to .+ when it needs them
+                for (int start = value; start >= afterEquals; start--) {
+                    if (isInitialization(start)) {
+                        String initialValue = line.substring(start);
+                        return new Variable(name,
+                                scapeName(transformer.inferType(initialValue)),
+                                staticOrInstance,
+                                " = " + scapeName(checkObjectInitialization(initialValue)) + ";");
+                    }
+                }
+            }
+            return null;
+        }
 
-    public void setTransformer(LineTransformer transformer) {
-        this.transformer = transformer;
-    }
-}
+        private Variable block(String name, String staticOrInstance, int value) {
+            String params = "";
+            String returnType = "Void";
+            if (value < length - 1) {
+                int end = spacesBack(length - 2);
+                int close = end;
+                if (line.charAt(end) != ')') {
+                    // ( params ) : Type {
+                    int typeStart = wordsBack(end);
+                    int colon = spacesBack(typeStart - 1);
+                    if (typeStart > end || colon < 0 || line.charAt(colon) != ':') {
+                        return null;
+                    }
+                    close = spacesBack(colon - 1);
+                    returnType = scapeName(line.substring(typeStart, end + 1));
+                }
+                if (close <= value || line.charAt(close) != ')' || !isLine(value + 1, close)) {
+                    return null;
+                }
+                params = line.substring(value + 1, close);
+            }
+            String parameters = transformer.transformParameters(params);
+            BlockType blockType = BlockType.of(ParameterInfo.parse(parameters), returnType);
+            boolean lambda = transformer.currentClass().lambdas();
+            if (lambda) {
+                transformer.currentClass().innerClassEliminated();
+            }
+            return new Variable(name,
+                    blockType.type(),
+                    staticOrInstance,
+                    String.format(blockInitialValue, blockType.literal(parameters, lambda)),
+                    blockType.signature(parameters, lambda));
+        }
 
-/**
- * Matches variable declaration such as xyz : Type = InitialValue
- */
-class TypeWithInitMatcher extends Match {
-    public TypeWithInitMatcher(Pattern pattern) {
-        super(pattern);
-    }
+        private Variable literal(String name, String staticOrInstance, String literalType, String format, String value) {
+            // only for regex
+            String escaped = value.indexOf('\\') < 0 ? value : value.replace("\\", "\\\\");
+            return new Variable(name, literalType, staticOrInstance, String.format(format, escaped));
+        }
 
-    @Override
-    protected Variable variableFrom(Matcher matcher) {
-        return new Variable(scapeName(matcher.group(2)),
-                scapeName(matcher.group(3)),
-                staticOrInstance(matcher),
-                " = " + scapeName(checkObjectInitialization(matcher.group(4))) + ";");
-    }
-}
+        // same as .+\s*\(.*\) from start to the end of the line
+        private boolean isInitialization(int start) {
+            for (int open = length - 2; open > start; open--) {
+                if (line.charAt(open) == '(') {
+                    int spacesBefore = Math.max(spacesBack(open - 1) + 1, start + 1);
+                    if (isLine(start, spacesBefore)) {
+                        return true;
+                    }
+                } else if (!isLine(open, open + 1)) {
+                    return false;
+                }
+            }
+            return false;
+        }
 
-/**
- * Matches variableName '=' InitialValue
- */
-class InitMatcher extends Match {
-    public InitMatcher(Pattern pattern) {
-        super(pattern);
-    }
+        private boolean isDate(int from) {
+            for (int i = 0; i < 10; i++) {
+                char c = line.charAt(from + i);
+                if (i == 4 || i == 7 ? c != '-' : !isDigit(c)) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-    @Override
-    protected Variable variableFrom(Matcher matcher) {
-        return new Variable(scapeName(matcher.group(2)),
-                scapeName(getTransformer().inferType(matcher.group(3))),
-                staticOrInstance(matcher),
-                " = " + scapeName(checkObjectInitialization(matcher.group(3))) + ";");
-    }
-}
+        private boolean isDigits(int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (!isDigit(line.charAt(i))) {
+                    return false;
+                }
+            }
+            return to > from;
+        }
 
-/**
- * Matches name ':' Type
- */
-class DeclarationMatcher extends InitMatcher {
-    public DeclarationMatcher(Pattern pattern) {
-        super(pattern);
-    }
+        // same as . , anything but a line terminator
+        private boolean isLine(int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = line.charAt(i);
+                if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-    @Override
-    protected Variable variableFrom(Matcher matcher) {
-        Variable v = super.variableFrom(matcher);
-        v.initialValue = ";";
-        return v;
-    }
-}
+        private int words(int from) {
+            int i = from;
+            while (i < length && isWordChar(line.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
 
-/**
- * Matches literals   name = 1 or name = "Hola"
- */
-class LiteralMatcher extends Match {
+        private int wordsBack(int from) {
+            int i = from;
+            while (i >= 0 && isWordChar(line.charAt(i))) {
+                i--;
+            }
+            return i + 1;
+        }
 
-    final String literalType;
-    final String format;
+        private int spaces(int from) {
+            int i = from;
+            while (i < length && isSpace(line.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
 
-    public LiteralMatcher(Pattern pattern, String literalType, String format) {
-        super(pattern);
-        this.literalType = literalType;
-        this.format = format;
-    }
+        private int spacesBack(int from) {
+            int i = from;
+            while (i >= 0 && isSpace(line.charAt(i))) {
+                i--;
+            }
+            return i;
+        }
 
-    @Override
-    protected Variable variableFrom(Matcher matcher) {
-        String group3 = matcher.group(3) == null ? "" : matcher.group(3);
-        return new Variable(scapeName(matcher.group(2)),
-                literalType,
-                staticOrInstance(matcher),
-                String.format(format,
-                        group3.replaceAll("\\\\", "\\\\\\\\")));// only for regex
-    }
-}
-class BlockLiteralMatcher extends LiteralMatcher {
-    private Logger logger = Logger.getLogger(this.getClass().getName());
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
 
-    public BlockLiteralMatcher(Pattern pattern, String literalType, String format) {
-        super(pattern, literalType, format);
-    }
-    @Override
-    protected Variable variableFrom(Matcher matcher) {
-        logger.finest(matcher.pattern().toString());
-        for (int i = 0; i < matcher.groupCount(); i++) {
-            logger.finest("m.group(" + i + ") = " + matcher.group(i));
+        // same as \w
+        private static boolean isWordChar(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || isDigit(c) || c == '_';
         }
-        String params = "";
-        String returnType = "Void";
-        if (matcher.group(3) != null ) {
-            int paramsIndex = 4;
-            if( matcher.group(6) != null ) {
-                returnType = scapeName( matcher.group(6) );
-                paramsIndex = 5;
-            }
-            params = matcher.group(paramsIndex);
+
+        // same as \s
+        private static boolean isSpace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
         }
-        String parameters = transformer.transformParameters(params);
-        List<ParameterInfo> parameterInfo = ParameterInfo.parse(parameters);
-        String types = ParameterInfo.getTypes(parameterInfo);
-        int size = parameterInfo.size();
-        return new Variable(scapeName(matcher.group(2)),
-                String.format(literalType, size, returnType, types),
-                staticOrInstance(matcher),
-                String.format(format,
-                        size,
-                        returnType,
-                        types,
-                        returnType,
-                        parameters),parameters,returnType);
     }
-
-
 }
 
 
@@ -332,8 +402,10 @@ class Variable {
     final String type;
     String staticOrInstance = "";
     String initialValue = ";";
-    public String parameters;
-    public String returnType;
+    // the "parameters:returnType" of a block or null
+    private String blockSignature;
+    // the indentation of a multiline string or -1
+    int multilineIndentation = -1;
 
 
     private Variable(String name, String type) {
@@ -348,10 +420,15 @@ class Variable {
         this.initialValue = initialValue;
     }
 
-    Variable(String name, String type, String staticOrInstance, String initialValues, String parameters, String returnType) {
+    Variable(String name, String type, String staticOrInstance, String initialValues, String blockSignature) {
         this(name, type, staticOrInstance, initialValues);
-        this.parameters = parameters;
-        this.returnType = returnType;
+        this.blockSignature = blockSignature;
+    }
 
+    /**
+     * @return the signature the block is opened with or null
+     */
+    String blockSignature() {
+        return blockSignature;
     }
 }
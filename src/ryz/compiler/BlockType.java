@@ -0,0 +1,149 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The interface a block literal implements, chosen from the types of its
+ * parameters and its return type. When they are primitives one of the
+ * specialized interfaces of <code>ryz.lang.block</code> is used, so
+ * <code>( a : Int, b : Int ) : Bool { ... }</code> becomes an
+ * <code>IntIntToBoolBlock2</code> whose <code>run</code> takes and returns
+ * primitives, otherwise the generic <code>BlockN</code>.
+ */
+final class BlockType {
+
+    private static final String blockPackage = "ryz.lang.block.";
+    private static final String genericType = blockPackage + "Block%s<%s %s>";
+    private static final String anonymousClass = "new %s(){%n    public %s run(%s){%n";
+    // the cast is the target type, it also picks the overload of methods like whileTrue
+    private static final String lambda = "(%s) (%s) -> {%n";
+
+    // the prefix of the parameters of the specialized interfaces
+    private static final Map<String, String> parameterPrefixes = new HashMap<String, String>() {
+        private static final long serialVersionUID = 1L;
+    {
+        put("int", "Int");
+        put("long", "Long");
+        put("int,int", "IntInt");
+    }};
+    // the prefix of the return type and the type run returns
+    private static final Map<String, String[]> returnPrefixes = new HashMap<String, String[]>() {
+        private static final long serialVersionUID = 1L;
+    {
+        put("int", new String[]{"ToInt", "int"});
+        put("Boolean", new String[]{"ToBool", "boolean"});
+    }};
+
+    private final String type;
+    private final String returnType;
+
+    private BlockType(String type, String returnType) {
+        this.type = type;
+        this.returnType = returnType;
+    }
+
+    /**
+     * @param parameters - the parameters of the block
+     * @param returnType - the return type as written, "Void" if none
+     * @return the interface for a block with these parameters and return type.
+     */
+    static BlockType of(List<ParameterInfo> parameters, String returnType) {
+        StringBuilder key = new StringBuilder();
+        for (ParameterInfo parameter : parameters) {
+            key.append(key.length() == 0 ? "" : ",").append(parameter.type());
+        }
+        String parameterPrefix = parameterPrefixes.get(key.toString());
+        String[] returnPrefix = returnPrefixes.get(returnType);
+        if (parameterPrefix == null && returnPrefix == null) {
+            return new BlockType(String.format(genericType, parameters.size(), returnType,
+                                               ParameterInfo.getTypes(parameters)),
+                                 returnType);
+        }
+        StringBuilder type = new StringBuilder(blockPackage);
+        if (parameterPrefix != null) {
+            type.append(parameterPrefix);
+        }
+        if (returnPrefix != null) {
+            type.append(returnPrefix[0]);
+        }
+        type.append("Block").append(parameters.size());
+        if (returnPrefix == null) {
+            // IntBlock1<R>
+            type.append('<').append(returnType).append(" >");
+        } else if (parameterPrefix == null && !parameters.isEmpty()) {
+            // ToIntBlock1<T1>
+            type.append('<').append(ParameterInfo.getTypes(parameters).substring(1)).append('>');
+        }
+        return new BlockType(type.toString(), returnPrefix == null ? returnType : returnPrefix[1]);
+    }
+
+    /**
+     * @return the interface with its type arguments
+     */
+    String type() {
+        return type;
+    }
+
+    /**
+     * @return the type the run method returns
+     */
+    String returnType() {
+        return returnType;
+    }
+
+    /**
+     * The expression that creates a block of this type, up to the key that
+     * opens its body. With lambdas javac doesn't create a class per block,
+     * the non capturing ones are created once.
+     *
+     * @param parameters - the parameters as java declarations
+     * @param lambda - true for a lambda expression, false for an anonymous class
+     * @return the start of the block literal.
+     */
+    String literal(String parameters, boolean lambda) {
+        return lambda
+                ? String.format(BlockType.lambda, type, parameters)
+                : String.format(anonymousClass, type, returnType, parameters);
+    }
+
+    /**
+     * @return the signature the {@link InsideBlockState} opens the block with.
+     */
+    String signature(String parameters, boolean lambda) {
+        return (lambda ? InsideBlockState.LAMBDA : "") + parameters + ":" + returnType;
+    }
+
+    @Override
+    public String toString() {
+        return type;
+    }
+}
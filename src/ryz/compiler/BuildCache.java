@@ -0,0 +1,378 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * On disk record of previous compilations, used to skip the .ryz files that
+ * didn't change since the last time they were compiled.
+ * <p/>
+ * For each source file it keeps the hash of its content, the generated java
+ * source and the final class files it produced. A file that didn't change is
+ * still compiled again when its generated source references a class produced
+ * by a file that did change. All the entries are discarded when the
+ * classpath, the compiler or the options that change the class files do.
+ */
+class BuildCache {
+
+    /**
+     * Name of the cache directory inside the output directory.
+     */
+    static final String DIRECTORY = ".ryzcache";
+
+    private static final int VERSION = 1;
+    private static final String ENTRY_EXTENSION = ".entry";
+    private static final String FINGERPRINT = "classpath";
+    private static final String RYZ_CLASSES = "ryz";
+
+    private static final Logger logger = Logger.getLogger( BuildCache.class.getName() );
+
+    private final File directory;
+    private final Map<File, String> hashes = new HashMap<File, String>();
+    private final Map<File, Entry> entries = new HashMap<File, Entry>();
+
+    private BuildCache( File directory ) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the cache in the given directory, discarding its entries if they
+     * were compiled with a different classpath, by a different build of the
+     * compiler or with different options.
+     *
+     * @param directory - Where the cache lives
+     * @param classPath - The classpath of the compilation
+     * @param options   - What else changes the class files, like the backend
+     *                    or whether the blocks are lambdas
+     * @return the cache.
+     * @throws IOException - If the cache directory can't be used
+     */
+    static BuildCache open( File directory, File[] classPath, String options ) throws IOException {
+        if ( !directory.exists() && !directory.mkdirs() ) {
+            throw new IOException( "Couldn't create directory " + directory );
+        }
+        BuildCache cache = new BuildCache( directory );
+        String fingerprint = fingerprint( classPath ) + '\n' + compilerStamp() + '\n' + options;
+        File fingerprintFile = new File( directory, FINGERPRINT );
+        if ( !fingerprintFile.exists()
+                || !fingerprint.equals( new String( read( fingerprintFile ), "UTF-8" ) ) ) {
+            logger.fine( "Classpath, compiler or options changed, discarding " + directory );
+            File[] files = directory.listFiles();
+            for ( File file : files == null ? new File[0] : files ) {
+                if ( file.getName().endsWith( ENTRY_EXTENSION ) && !file.delete() ) {
+                    throw new IOException( "Couldn't delete " + file );
+                }
+            }
+            write( fingerprintFile, fingerprint.getBytes( "UTF-8" ) );
+        }
+        return cache;
+    }
+
+    /**
+     * Finds out which of the given source files have to be compiled again,
+     * either because they changed or because they use a class from a file
+     * that changed.
+     *
+     * @param sources - The source files to compile
+     * @return for each file, true if it has to be compiled.
+     * @throws IOException - If a source file can't be read
+     */
+    boolean[] changed( File[] sources ) throws IOException {
+        boolean[] changed = new boolean[sources.length];
+        Set<String> changedClasses = new HashSet<String>();
+        for ( int i = 0 ; i < sources.length ; i++ ) {
+            File source = sources[i];
+            String hash = hash( read( source ) );
+            hashes.put( source, hash );
+            Entry entry = entry( source );
+            if ( entry == null || !entry.hash.equals( hash ) ) {
+                changed[i] = true;
+                changedClasses.add( source.getName().replaceAll( "\\.ryz$", "" ) );
+                if ( entry != null ) {
+                    changedClasses.addAll( simpleNames( entry.classFiles.keySet() ) );
+                }
+            }
+        }
+        // a file using a changed class changes too
+        boolean more = !changedClasses.isEmpty();
+        while ( more ) {
+            more = false;
+            Pattern uses = usesAny( changedClasses );
+            for ( int i = 0 ; i < sources.length ; i++ ) {
+                Entry entry = entries.get( sources[i] );
+                if ( !changed[i] && uses.matcher( entry.generatedSource ).find() ) {
+                    logger.fine( sources[i] + " uses a changed class" );
+                    changed[i] = true;
+                    more |= changedClasses.addAll( simpleNames( entry.classFiles.keySet() ) );
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The class files produced the last time the given source was compiled.
+     *
+     * @param source - A source file that didn't change
+     * @return the class files by binary name.
+     * @throws IOException - If the entry can't be read
+     */
+    Map<String, byte[]> classFiles( File source ) throws IOException {
+        Entry entry = entry( source );
+        return entry == null ? new HashMap<String, byte[]>() : entry.classFiles;
+    }
+
+    /**
+     * Records the result of compiling the given source.
+     *
+     * @param source          - The compiled .ryz file
+     * @param generatedSource - The java source code generated for it
+     * @param classFiles      - The final class files it produced
+     * @return the classes produced by the previous version of the file that
+     *         don't exist anymore.
+     * @throws IOException - If the entry can't be written
+     */
+    Set<String> update( File source, String generatedSource, Map<String, byte[]> classFiles )
+    throws IOException {
+        String hash = hashes.get( source );
+        if ( hash == null ) {
+            hash = hash( read( source ) );
+        }
+        Set<String> removed = new HashSet<String>();
+        Entry previous = entry( source );
+        if ( previous != null ) {
+            removed.addAll( previous.classFiles.keySet() );
+            removed.removeAll( classFiles.keySet() );
+        }
+        Entry entry = new Entry( hash, generatedSource, classFiles );
+        entries.put( source, entry );
+
+        File file = entryFile( source );
+        File temp = new File( directory, file.getName() + ".tmp" );
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream( new FileOutputStream( temp ) ) );
+        try {
+            out.writeInt( VERSION );
+            out.writeUTF( entry.hash );
+            writeBytes( out, entry.generatedSource.getBytes( "UTF-8" ) );
+            out.writeInt( classFiles.size() );
+            for ( Map.Entry<String, byte[]> e : classFiles.entrySet() ) {
+                out.writeUTF( e.getKey() );
+                writeBytes( out, e.getValue() );
+            }
+        } finally {
+            out.close();
+        }
+        if ( file.exists() && !file.delete() || !temp.renameTo( file ) ) {
+            throw new IOException( "Couldn't write " + file );
+        }
+        return removed;
+    }
+
+    private Entry entry( File source ) throws IOException {
+        if ( entries.containsKey( source ) ) {
+            return entries.get( source );
+        }
+        Entry entry = null;
+        File file = entryFile( source );
+        if ( file.exists() ) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream( new FileInputStream( file ) ) );
+            try {
+                if ( in.readInt() == VERSION ) {
+                    String hash = in.readUTF();
+                    String generatedSource = new String( readBytes( in ), "UTF-8" );
+                    Map<String, byte[]> classFiles = new LinkedHashMap<String, byte[]>();
+                    for ( int i = in.readInt() ; i > 0 ; i-- ) {
+                        classFiles.put( in.readUTF(), readBytes( in ) );
+                    }
+                    entry = new Entry( hash, generatedSource, classFiles );
+                }
+            } finally {
+                in.close();
+            }
+        }
+        entries.put( source, entry );
+        return entry;
+    }
+
+    private File entryFile( File source ) throws IOException {
+        return new File( directory,
+                hash( source.getCanonicalPath().getBytes( "UTF-8" ) ) + ENTRY_EXTENSION );
+    }
+
+    /**
+     * The classpath entries with the size and modification time of the jars,
+     * so a changed jar invalidates the cache.
+     */
+    private static String fingerprint( File[] classPath ) {
+        StringBuilder sb = new StringBuilder( "version " + VERSION );
+        for ( File file : classPath ) {
+            sb.append( '\n' ).append( file.getAbsolutePath() );
+            if ( file.isFile() ) {
+                sb.append( ' ' ).append( file.length() )
+                  .append( ' ' ).append( file.lastModified() );
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The size and modification time of the jar the compiler was loaded
+     * from, or the newest of its class files when it runs from a directory.
+     */
+    private static String compilerStamp() {
+        File location;
+        try {
+            location = new File( BuildCache.class.getProtectionDomain()
+                                                 .getCodeSource().getLocation().toURI() );
+        } catch ( Exception e ) {
+            // unknown, take the compiler as a different one each time
+            return "compiler " + System.nanoTime();
+        }
+        if ( location.isFile() ) {
+            return "compiler " + location.length() + " " + location.lastModified();
+        }
+        return "compiler " + newest( new File( location, RYZ_CLASSES ) );
+    }
+
+    private static long newest( File file ) {
+        File[] files = file.listFiles();
+        if ( files == null ) {
+            return file.lastModified();
+        }
+        long newest = 0;
+        for ( File child : files ) {
+            newest = Math.max( newest, newest( child ) );
+        }
+        return newest;
+    }
+
+    private static Set<String> simpleNames( Set<String> binaryNames ) {
+        Set<String> result = new HashSet<String>();
+        for ( String name : binaryNames ) {
+            String simpleName = name.substring( name.lastIndexOf( '.' ) + 1 );
+            int inner = simpleName.indexOf( '$' );
+            result.add( inner < 0 ? simpleName : simpleName.substring( 0, inner ) );
+        }
+        return result;
+    }
+
+    private static Pattern usesAny( Set<String> names ) {
+        StringBuilder sb = new StringBuilder();
+        for ( String name : names ) {
+            sb.append( sb.length() == 0 ? "" : "|" ).append( Pattern.quote( name ) );
+        }
+        return Pattern.compile( "\\b(" + sb + ")\\b" );
+    }
+
+    private static String hash( byte[] content ) {
+        try {
+            byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( content );
+            StringBuilder sb = new StringBuilder();
+            for ( byte b : digest ) {
+                sb.append( String.format( "%02x", b ) );
+            }
+            return sb.toString();
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static byte[] read( File file ) throws IOException {
+        InputStream in = new FileInputStream( file );
+        try {
+            byte[] content = new byte[(int) file.length()];
+            int read = 0;
+            while ( read < content.length ) {
+                int n = in.read( content, read, content.length - read );
+                if ( n < 0 ) {
+                    return Arrays.copyOf( content, read );
+                }
+                read += n;
+            }
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write( File file, byte[] content ) throws IOException {
+        FileOutputStream out = new FileOutputStream( file );
+        try {
+            out.write( content );
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeBytes( DataOutputStream out, byte[] bytes ) throws IOException {
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static byte[] readBytes( DataInputStream in ) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully( bytes );
+        return bytes;
+    }
+
+    /**
+     * What is known about a source file from its last compilation.
+     */
+    private static class Entry {
+        private final String hash;
+        private final String generatedSource;
+        private final Map<String, byte[]> classFiles;
+
+        Entry( String hash, String generatedSource, Map<String, byte[]> classFiles ) {
+            this.hash = hash;
+            this.generatedSource = generatedSource;
+            this.classFiles = classFiles;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ryz.compiler;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * File manager that keeps the .class files created by javac in memory instead
+ * of writing them to the output directory.
+ * <p/>
+ * The compiler may need several javac rounds before a class compiles cleanly
+ * and the generated bytecode is post-processed after that, so the class files
+ * are written to disk only once, when they are final.
+ * See: {@link #writeTo(java.io.File, java.util.Map)}
+ */
+class ClassFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+    /**
+     * The class files created by the last javac round, by binary name.
+     */
+    private final Map<String, InMemoryClassFile> classFiles
+                                    = new LinkedHashMap<String, InMemoryClassFile>();
+
+    /**
+     * The session that owns the underlying file manager.
+     */
+    private final JavacSession session;
+
+    /**
+     * Class files that are not on disk but should be visible to javac as if
+     * they were in the classpath, by binary name.
+     */
+    private final Map<String, InMemoryClassFile> classPathFiles
+                                    = new LinkedHashMap<String, InMemoryClassFile>();
+
+    /**
+     * Whether the "throws" clauses are removed from the class files as
+     * javac writes them.
+     */
+    private boolean removeCheckedExceptions;
+
+    ClassFileManager( StandardJavaFileManager fileManager, JavacSession session ) {
+        super( fileManager );
+        this.session = session;
+    }
+
+    /**
+     * Specify whether the checked exceptions declarations should be removed
+     * from the methods and constructors of every class file javac creates.
+     *
+     * @param remove - true to remove them
+     */
+    void removeCheckedExceptions( boolean remove ) {
+        this.removeCheckedExceptions = remove;
+    }
+
+    /**
+     * Makes the given class files visible to javac as part of the classpath.
+     *
+     * @param classFiles - The binary class names and their content
+     */
+    void addToClassPath( Map<String, byte[]> classFiles ) {
+        for ( Map.Entry<String, byte[]> e : classFiles.entrySet() ) {
+            classPathFiles.put( e.getKey(), new InMemoryClassFile( e.getKey(), e.getValue() ) );
+        }
+    }
+
+    /**
+     * Lists the classpath through the session cache. The platform classes
+     * are left to javac, which already keeps them indexed.
+     */
+    @Override
+    public Iterable<JavaFileObject> list( Location location,
+                                          String packageName,
+                                          Set<JavaFileObject.Kind> kinds,
+                                          boolean recurse ) throws IOException {
+        if ( location == StandardLocation.CLASS_PATH ) {
+            Iterable<JavaFileObject> listed =
+                    session.list( fileManager, location, packageName, kinds, recurse );
+            if ( classPathFiles.isEmpty() || !kinds.contains( JavaFileObject.Kind.CLASS ) ) {
+                return listed;
+            }
+            List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+            for ( InMemoryClassFile classFile : classPathFiles.values() ) {
+                if ( classFile.inPackage( packageName, recurse ) ) {
+                    result.add( classFile );
+                }
+            }
+            for ( JavaFileObject file : listed ) {
+                result.add( file );
+            }
+            return result;
+        }
+        return super.list( location, packageName, kinds, recurse );
+    }
+
+    @Override
+    public String inferBinaryName( Location location, JavaFileObject file ) {
+        if ( file instanceof InMemoryClassFile ) {
+            return ( (InMemoryClassFile) file ).className;
+        }
+        return super.inferBinaryName( location, file );
+    }
+
+    /**
+     * Doesn't close the underlying file manager, it is owned by the session.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput( Location location,
+                                                String className,
+                                                JavaFileObject.Kind kind,
+                                                FileObject sibling ) throws IOException {
+        if ( location == StandardLocation.CLASS_OUTPUT
+                && kind == JavaFileObject.Kind.CLASS ) {
+            InMemoryClassFile classFile = new InMemoryClassFile( className, removeCheckedExceptions );
+            classFiles.put( className, classFile );
+            return classFile;
+        }
+        return super.getJavaFileForOutput( location, className, kind, sibling );
+    }
+
+    /**
+     * Returns the bytecode created by javac.
+     *
+     * @return a map of binary class names and their class file content.
+     */
+    Map<String, byte[]> classFiles() {
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for ( Map.Entry<String, InMemoryClassFile> e : classFiles.entrySet() ) {
+            result.put( e.getKey(), e.getValue().bytes() );
+        }
+        return result;
+    }
+
+    /**
+     * Writes the given class files into the output directory following the
+     * package structure.
+     *
+     * @param outputDir  - The root directory for the .class files
+     * @param classFiles - The binary class names and their content
+     * @throws IOException - If a file can't be written
+     */
+    static void writeTo( File outputDir, Map<String, byte[]> classFiles )
+    throws IOException {
+        for ( Map.Entry<String, byte[]> e : classFiles.entrySet() ) {
+            File classFile = classFile( outputDir, e.getKey() );
+            File dir = classFile.getParentFile();
+            if ( dir != null && !dir.exists() && !dir.mkdirs() ) {
+                throw new IOException( "Couldn't create directory " + dir );
+            }
+            OutputStream out = new FileOutputStream( classFile );
+            try {
+                out.write( e.getValue() );
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the given class files that are missing from the output directory.
+     *
+     * @param outputDir  - The root directory for the .class files
+     * @param classFiles - The binary class names and their content
+     * @throws IOException - If a file can't be written
+     */
+    static void restore( File outputDir, Map<String, byte[]> classFiles )
+    throws IOException {
+        Map<String, byte[]> missing = new LinkedHashMap<String, byte[]>();
+        for ( Map.Entry<String, byte[]> e : classFiles.entrySet() ) {
+            if ( !classFile( outputDir, e.getKey() ).exists() ) {
+                missing.put( e.getKey(), e.getValue() );
+            }
+        }
+        writeTo( outputDir, missing );
+    }
+
+    /**
+     * Deletes the class files of the given classes from the output directory.
+     *
+     * @param outputDir  - The root directory for the .class files
+     * @param classNames - The binary names of the classes to delete
+     * @throws IOException - If an existing file can't be deleted
+     */
+    static void delete( File outputDir, Set<String> classNames ) throws IOException {
+        for ( String className : classNames ) {
+            File classFile = classFile( outputDir, className );
+            if ( classFile.exists() && !classFile.delete() ) {
+                throw new IOException( "Couldn't delete " + classFile );
+            }
+        }
+    }
+
+    private static File classFile( File outputDir, String className ) {
+        return new File( outputDir, className.replace( '.', '/' ) + ".class" );
+    }
+
+    /**
+     * A class file javac writes into a byte array.
+     */
+    private static class InMemoryClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private final String className;
+        private final boolean removeCheckedExceptions;
+
+        InMemoryClassFile( String className, boolean removeCheckedExceptions ) {
+            super( URI.create( "bytes:///" + className.replace( '.', '/' )
+                               + Kind.CLASS.extension ),
+                   Kind.CLASS );
+            this.className = className;
+            this.removeCheckedExceptions = removeCheckedExceptions;
+        }
+
+        InMemoryClassFile( String className, byte[] bytes ) {
+            this( className, false );
+            content.write( bytes, 0, bytes.length );
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream( content.toByteArray() );
+        }
+
+        boolean inPackage( String packageName, boolean recurse ) {
+            int lastDot = className.lastIndexOf( '.' );
+            String classPackage = lastDot < 0 ? "" : className.substring( 0, lastDot );
+            return classPackage.equals( packageName )
+                    || recurse && ( packageName.length() == 0
+                                    || classPackage.startsWith( packageName + "." ) );
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            content.reset();
+            if ( !removeCheckedExceptions ) {
+                return content;
+            }
+            // rewrite the class file when javac finishes writing it
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    content.write( ClassInstrumentation.removeCheckedExceptions( toByteArray() ) );
+                }
+            };
+        }
+
+        byte[] bytes() {
+            return content.toByteArray();
+        }
+    }
+}
@@ -25,61 +25,176 @@
  * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
  *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-
 package ryz.compiler;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.logging.Logger;
 
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtMethod;
-import javassist.NotFoundException;
-import javassist.CannotCompileException;
-
+/**
+ * Rewrites class files as javac creates them.
+ * <p/>
+ * The class file is copied as it is read, there is no class pool involved
+ * and nothing is kept once the rewrite is done.
+ */
 class ClassInstrumentation { 
-    public static void removeCheckedExceptions( RyzClass currentClass, File output ) 
-        throws java.io.IOException { 
 
-        try {                    
-            Logger logger = Logger.getLogger( ClassInstrumentation.class.getName() );
+    private static final Logger logger = Logger.getLogger( ClassInstrumentation.class.getName() );
+
+    private static final int MAGIC = 0xCAFEBABE;
 
-            File generetedClassFile = new File( output, currentClass.packageName().replaceAll("\\.","/") + "/" +currentClass.className() + ".class" );
+    private static final byte[] EXCEPTIONS = { 'E', 'x', 'c', 'e', 'p', 't', 'i', 'o', 'n', 's' };
 
-            logger.finest("generetedClassFile.getAbsolutePath() "+ generetedClassFile.getAbsolutePath() );
-            logger.finest(" generetedClassFile.exists() " +  generetedClassFile.exists() );
+    // constant pool tags
+    private static final int UTF8                = 1;
+    private static final int INTEGER             = 3;
+    private static final int FLOAT               = 4;
+    private static final int LONG                = 5;
+    private static final int DOUBLE              = 6;
+    private static final int CLASS               = 7;
+    private static final int STRING              = 8;
+    private static final int FIELD_REF           = 9;
+    private static final int METHOD_REF          = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE       = 12;
+    private static final int METHOD_HANDLE       = 15;
+    private static final int METHOD_TYPE         = 16;
+    private static final int DYNAMIC             = 17;
+    private static final int INVOKE_DYNAMIC      = 18;
+    private static final int MODULE              = 19;
+    private static final int PACKAGE             = 20;
 
-            ClassPool pool = ClassPool.getDefault();
-            pool.appendClassPath( output.getAbsolutePath() );
+    /**
+     * Removes the "throws" clause from the methods and constructors of the
+     * given class file.
+     *
+     * @param classFile - The bytecode as created by javac
+     * @return the bytecode without checked exceptions declarations
+     * @throws IOException - If the bytecode can't be read
+     */
+    public static byte[] removeCheckedExceptions( byte[] classFile )
+        throws java.io.IOException { 
 
-            CtClass cc = pool.get(currentClass.packageName()+"."+currentClass.className());
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( classFile ) );
+        ByteArrayOutputStream result = new ByteArrayOutputStream( classFile.length );
+        DataOutputStream out = new DataOutputStream( result );
 
-            logger.finest( "CtClass: " + cc );
-            //TODO: possible bug, this also removed from my Constructors
-            for( CtMethod method : cc.getDeclaredMethods() ) { 
-                logger.finest("method: "+ method );
-                cc.defrost();
-                logger.finest("method info : " +  method.getMethodInfo() );
-                //TODO: test when a class has a block.
-                if( method.getMethodInfo().getExceptionsAttribute() != null ) {
-                    logger.finest("exceptions  : " +  java.util.Arrays.toString( method.getMethodInfo().getExceptionsAttribute().getExceptions() ) );
-                    method.getMethodInfo().removeExceptionsAttribute();
-                }
-                logger.finest("method info : " +  method.getMethodInfo() );
-            }
-            logger.finest(" generetedClassFile.delete()" +  generetedClassFile.delete() );
-            cc.writeFile(output.getAbsolutePath());
-            //cc.writeFile(output.getParent());
-        } catch( CannotCompileException cce ) { 
-            throw new IOException( cce );
-        } catch( NotFoundException nfe ) { 
-            throw new IOException( nfe );
+        int magic = in.readInt();
+        if ( magic != MAGIC ) {
+            throw new IOException( "Not a class file" );
         }
-    }
-}
+        out.writeInt( magic );
+        copy( in, out, 4 );  // minor and major version
 
+        // keep the index of the "Exceptions" attribute name
+        Set<Integer> exceptionsNames = new HashSet<Integer>();
+        int constantPoolCount = in.readUnsignedShort();
+        out.writeShort( constantPoolCount );
+        for ( int i = 1 ; i < constantPoolCount ; i++ ) {
+            int tag = in.readUnsignedByte();
+            out.writeByte( tag );
+            switch ( tag ) {
+                case UTF8:
+                    byte[] value = new byte[in.readUnsignedShort()];
+                    in.readFully( value );
+                    out.writeShort( value.length );
+                    out.write( value );
+                    if ( Arrays.equals( EXCEPTIONS, value ) ) {
+                        exceptionsNames.add( i );
+                    }
+                    break;
+                case CLASS:
+                case STRING:
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE:
+                    copy( in, out, 2 );
+                    break;
+                case METHOD_HANDLE:
+                    copy( in, out, 3 );
+                    break;
+                case INTEGER:
+                case FLOAT:
+                case FIELD_REF:
+                case METHOD_REF:
+                case INTERFACE_METHOD_REF:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC:
+                    copy( in, out, 4 );
+                    break;
+                case LONG:
+                case DOUBLE:
+                    copy( in, out, 8 );
+                    i++; // takes two entries
+                    break;
+                default:
+                    throw new IOException( "Unknown constant pool tag " + tag + " at " + i );
+            }
+        }
+        copy( in, out, 6 ); // access flags, this class and super class
+        int interfaces = in.readUnsignedShort();
+        out.writeShort( interfaces );
+        copy( in, out, 2 * interfaces );
 
+        int fields = in.readUnsignedShort();
+        out.writeShort( fields );
+        for ( int i = 0 ; i < fields ; i++ ) {
+            copy( in, out, 6 ); // access flags, name and descriptor
+            copyAttributes( in, out, new HashSet<Integer>() );
+        }
+        int methods = in.readUnsignedShort();
+        out.writeShort( methods );
+        for ( int i = 0 ; i < methods ; i++ ) {
+            copy( in, out, 6 );
+            copyAttributes( in, out, exceptionsNames );
+        }
+        copyAttributes( in, out, new HashSet<Integer>() );
+        if ( in.read() != -1 ) {
+            throw new IOException( "Unexpected data after the class attributes" );
+        }
+        out.flush();
+        logger.finest( "Removed checked exceptions, " + classFile.length
+                       + " -> " + result.size() + " bytes" );
+        return result.toByteArray();
+    }
 
+    /**
+     * Copies an attribute table except the attributes with the given names.
+     */
+    private static void copyAttributes( DataInputStream in, DataOutputStream out,
+                                        Set<Integer> skip ) throws IOException {
+        int count = in.readUnsignedShort();
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        DataOutputStream keptOut = new DataOutputStream( kept );
+        int keptCount = 0;
+        for ( int i = 0 ; i < count ; i++ ) {
+            int name = in.readUnsignedShort();
+            int length = in.readInt();
+            if ( skip.contains( name ) ) {
+                in.readFully( new byte[length] );
+                continue;
+            }
+            keptOut.writeShort( name );
+            keptOut.writeInt( length );
+            copy( in, keptOut, length );
+            keptCount++;
+        }
+        out.writeShort( keptCount );
+        kept.writeTo( out );
+    }
 
+    private static void copy( DataInputStream in, DataOutputStream out, int length )
+    throws IOException {
+        byte[] buffer = new byte[length];
+        in.readFully( buffer );
+        out.write( buffer );
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Knows which classes are in the classpath without loading them.
+ * <p/>
+ * The central directory of each jar is read once, when the index is
+ * created, the directories are listed the first time a package is asked
+ * for. Whether a class is an interface is read from the header of its class
+ * file. The classes of the compiler itself and of the platform are looked
+ * up as resources of the compiler class loader, they can be asked for by
+ * name but their packages are not listed.
+ * <p/>
+ * The index is safe to use from the threads that transform the sources.
+ * It doesn't see the changes other processes make to the classpath, see
+ * {@link #isCurrent()} and {@link #refresh()}.
+ */
+class ClassPathIndex {
+
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final Type MISSING = new Type( false, false );
+    private static final ClassPathIndex platform = new ClassPathIndex();
+
+    private final List<File> directories = new ArrayList<File>();
+    private final List<JarFile> jars = new ArrayList<JarFile>();
+    // the packages in the jars, including the parent ones
+    private final Set<String> jarPackages = new HashSet<String>();
+    // the class files in the jars by binary name
+    private final Map<String, JarClass> jarClasses = new HashMap<String, JarClass>();
+    // the class names in each package of the directories, filled on demand
+    private final ConcurrentMap<String, Set<String>> directoryPackages
+                            = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentMap<String, Type> types = new ConcurrentHashMap<String, Type>();
+    // the size and modification time of each entry when it was indexed, 0 if missing
+    private final Map<File, long[]> stamps = new HashMap<File, long[]>();
+
+    /**
+     * The index of the platform and compiler classes only.
+     *
+     * @return the shared index with no classpath.
+     */
+    static ClassPathIndex platform() {
+        return platform;
+    }
+
+    private ClassPathIndex() {
+    }
+
+    /**
+     * Indexes the given classpath. The jars referenced from the Class-Path
+     * of the manifest of a jar are indexed too, as javac does.
+     *
+     * @param classPath - The jars and directories, those missing are ignored
+     */
+    ClassPathIndex( List<File> classPath ) {
+        Set<File> seen = new HashSet<File>();
+        Deque<File> pending = new ArrayDeque<File>( classPath );
+        while ( !pending.isEmpty() ) {
+            File entry = pending.removeFirst();
+            if ( !seen.add( entry.getAbsoluteFile() ) ) {
+                continue;
+            }
+            stamps.put( entry, stamp( entry ) );
+            if ( entry.isDirectory() ) {
+                directories.add( entry );
+            } else if ( entry.isFile() ) {
+                indexJar( entry, pending );
+            }
+        }
+    }
+
+    private void indexJar( File file, Deque<File> pending ) {
+        JarFile jar;
+        try {
+            jar = new JarFile( file );
+        } catch ( IOException e ) {
+            // not a jar, javac ignores it too
+            return;
+        }
+        jars.add( jar );
+        for ( Enumeration<JarEntry> entries = jar.entries() ; entries.hasMoreElements() ; ) {
+            JarEntry entry = entries.nextElement();
+            String name = entry.getName();
+            int lastSlash = name.lastIndexOf( '/' );
+            for ( int slash = lastSlash ; slash > 0 ; slash = name.lastIndexOf( '/', slash - 1 ) ) {
+                if ( !jarPackages.add( name.substring( 0, slash ).replace( '/', '.' ) ) ) {
+                    break;
+                }
+            }
+            if ( name.endsWith( ".class" ) && !jarClasses.containsKey( binaryName( name ) ) ) {
+                jarClasses.put( binaryName( name ), new JarClass( jar, entry ) );
+            }
+        }
+        try {
+            Manifest manifest = jar.getManifest();
+            String referenced = manifest == null ? null
+                    : manifest.getMainAttributes().getValue( Attributes.Name.CLASS_PATH );
+            if ( referenced != null ) {
+                for ( String path : referenced.trim().split( "\\s+" ) ) {
+                    pending.addLast( new File( file.getParentFile(), path ) );
+                }
+            }
+        } catch ( IOException e ) {
+            // the jar is still indexed, only the referenced ones are missing
+        }
+    }
+
+    /**
+     * @param className - The binary name of a class
+     * @return whether the class is in the classpath or is a platform class.
+     */
+    boolean exists( String className ) {
+        return type( className ).exists;
+    }
+
+    /**
+     * @param className - The binary name of a class
+     * @return whether the class exists and is an interface.
+     */
+    boolean isInterface( String className ) {
+        return type( className ).isInterface;
+    }
+
+    /**
+     * Whether any jar or directory of the classpath has the package, when it
+     * doesn't there is no need to list it.
+     *
+     * @param packageName - The package, "" for the default one
+     * @return true if the package may have files.
+     */
+    boolean hasPackage( String packageName ) {
+        if ( packageName.length() == 0 ) {
+            return !directories.isEmpty() || !jars.isEmpty();
+        }
+        if ( jarPackages.contains( packageName ) ) {
+            return true;
+        }
+        for ( File directory : directories ) {
+            if ( new File( directory, packageName.replace( '.', File.separatorChar ) ).isDirectory() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The classes in a package of the classpath, the platform classes are
+     * not included.
+     *
+     * @param packageName - The package, "" for the default one
+     * @return the binary names of the classes in the package, sorted.
+     */
+    Set<String> packageContents( String packageName ) {
+        Set<String> result = new TreeSet<String>();
+        for ( String className : jarClasses.keySet() ) {
+            if ( packageOf( className ).equals( packageName ) ) {
+                result.add( className );
+            }
+        }
+        result.addAll( directoryPackage( packageName ) );
+        return result;
+    }
+
+    /**
+     * Forgets what was found in the directories, the given classes were
+     * written to one of them.
+     *
+     * @param classNames - The binary names of the classes written
+     */
+    void written( Set<String> classNames ) {
+        if ( classNames.isEmpty() || directories.isEmpty() ) {
+            return;
+        }
+        directoryPackages.clear();
+        types.clear();
+    }
+
+    /**
+     * Whether the jars are the ones indexed and no entry of the classpath
+     * appeared or disappeared since, checking their size and modification
+     * time.
+     *
+     * @return false if the classpath has to be indexed again.
+     */
+    boolean isCurrent() {
+        for ( Map.Entry<File, long[]> e : stamps.entrySet() ) {
+            long[] stamp = stamp( e.getKey() );
+            if ( stamp[0] != e.getValue()[0] || stamp[1] != e.getValue()[1] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets what was found in the directories, other processes may have
+     * written to them.
+     */
+    void refresh() {
+        directoryPackages.clear();
+        types.clear();
+    }
+
+    /**
+     * Closes the jars.
+     */
+    void close() {
+        for ( JarFile jar : jars ) {
+            try {
+                jar.close();
+            } catch ( IOException e ) {
+                // nothing left to read from it
+            }
+        }
+    }
+
+    private Type type( String className ) {
+        Type type = types.get( className );
+        if ( type == null ) {
+            type = read( className );
+            types.put( className, type );
+        }
+        return type;
+    }
+
+    /**
+     * Reads the header of the class file in the first place that has it:
+     * the directories, the jars and at last the compiler class loader.
+     */
+    private Type read( String className ) {
+        String path = className.replace( '.', '/' ) + ".class";
+        try {
+            if ( directoryPackage( packageOf( className ) ).contains( className ) ) {
+                for ( File directory : directories ) {
+                    File file = new File( directory, path.replace( '/', File.separatorChar ) );
+                    if ( file.isFile() ) {
+                        return read( new FileInputStream( file ) );
+                    }
+                }
+            }
+            JarClass jarClass = jarClasses.get( className );
+            if ( jarClass != null ) {
+                return read( jarClass.jar.getInputStream( jarClass.entry ) );
+            }
+            ClassLoader loader = ClassPathIndex.class.getClassLoader();
+            InputStream in = loader == null
+                           ? ClassLoader.getSystemResourceAsStream( path )
+                           : loader.getResourceAsStream( path );
+            return in == null ? MISSING : read( in );
+        } catch ( IOException e ) {
+            return MISSING;
+        }
+    }
+
+    /**
+     * Skips the constant pool to get to the access flags of the class.
+     */
+    private static Type read( InputStream stream ) throws IOException {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( stream ) );
+        try {
+            if ( in.readInt() != 0xCAFEBABE ) {
+                return MISSING;
+            }
+            in.readUnsignedShort(); // minor
+            in.readUnsignedShort(); // major
+            int count = in.readUnsignedShort();
+            for ( int i = 1 ; i < count ; i++ ) {
+                int tag = in.readUnsignedByte();
+                switch ( tag ) {
+                    case 1:  skip( in, in.readUnsignedShort() ); break; // utf8
+                    case 7: case 8: case 16: case 19: case 20: skip( in, 2 ); break;
+                    case 15: skip( in, 3 ); break;
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                        skip( in, 4 ); break;
+                    case 5: case 6: skip( in, 8 ); i++; break; // long and double take two
+                    default:
+                        throw new IOException( "Unknown constant pool tag: " + tag );
+                }
+            }
+            return new Type( true, ( in.readUnsignedShort() & ACC_INTERFACE ) != 0 );
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skip( DataInputStream in, int bytes ) throws IOException {
+        while ( bytes > 0 ) {
+            int skipped = in.skipBytes( bytes );
+            if ( skipped <= 0 ) {
+                in.readByte(); // throws at the end of the stream
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * The classes in a package of the directories, listed the first time.
+     */
+    private Set<String> directoryPackage( String packageName ) {
+        Set<String> classes = directoryPackages.get( packageName );
+        if ( classes == null ) {
+            classes = new LinkedHashSet<String>();
+            String prefix = packageName.length() == 0 ? "" : packageName + ".";
+            for ( File directory : directories ) {
+                String[] files = new File( directory, packageName.replace( '.', File.separatorChar ) ).list();
+                if ( files == null ) {
+                    continue;
+                }
+                for ( String file : files ) {
+                    if ( file.endsWith( ".class" ) ) {
+                        classes.add( prefix + file.substring( 0, file.length() - ".class".length() ) );
+                    }
+                }
+            }
+            classes = Collections.unmodifiableSet( classes );
+            directoryPackages.put( packageName, classes );
+        }
+        return classes;
+    }
+
+    /**
+     * @return the size and modification time of a file, -1 for a directory
+     *         and 0 if it doesn't exist.
+     */
+    private static long[] stamp( File entry ) {
+        if ( entry.isDirectory() ) {
+            return new long[]{ -1, -1 };
+        }
+        return new long[]{ entry.length(), entry.lastModified() };
+    }
+
+    private static String binaryName( String entry ) {
+        return entry.substring( 0, entry.length() - ".class".length() ).replace( '/', '.' );
+    }
+
+    private static String packageOf( String className ) {
+        int lastDot = className.lastIndexOf( '.' );
+        return lastDot < 0 ? "" : className.substring( 0, lastDot );
+    }
+
+    private static final class Type {
+        final boolean exists;
+        final boolean isInterface;
+
+        Type( boolean exists, boolean isInterface ) {
+            this.exists = exists;
+            this.isInterface = isInterface;
+        }
+    }
+
+    private static final class JarClass {
+        final JarFile jar;
+        final JarEntry entry;
+
+        JarClass( JarFile jar, JarEntry entry ) {
+            this.jar = jar;
+            this.entry = entry;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "classpath index: " + directories.size() + " directories, "
+             + jars.size() + " jars, " + jarClasses.size() + " classes in jars";
+    }
+}
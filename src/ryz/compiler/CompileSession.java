@@ -0,0 +1,133 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The classes of a single call to {@link RyzC#compile(String...)}.
+ * <p/>
+ * A RyzC instance may live for many compilations ( e.g. inside the daemon ),
+ * so it doesn't keep the classes it compiled. Once their class files are
+ * written the session releases the transient state of every class: the
+ * source lines, the generated source, the symbols and the error history.
+ * Later compilations find those classes in the output directory instead.
+ */
+class CompileSession {
+
+    private final int id;
+    private final List<RyzClass> classes = new ArrayList<RyzClass>();
+
+    // metrics
+    private long classFileBytes;
+    // what release() computes from the sizes of the collections, not a measurement
+    private long releasedEstimate;
+    private int innerClassesEliminated;
+    private final Map<String, int[]> transformerCounters = new TreeMap<String, int[]>();
+
+    CompileSession( int id ) {
+        this.id = id;
+    }
+
+    void add( List<RyzClass> transformed ) {
+        classes.addAll( transformed );
+    }
+
+    List<RyzClass> classes() {
+        return classes;
+    }
+
+    /**
+     * Records the class files produced by this session.
+     *
+     * @param classFiles - The class files by binary name
+     */
+    void produced( Map<String, byte[]> classFiles ) {
+        for ( byte[] bytes : classFiles.values() ) {
+            classFileBytes += bytes.length;
+        }
+    }
+
+    /**
+     * Releases the transient state of the classes of this session, they
+     * can't be compiled again after this.
+     */
+    void close() {
+        for ( RyzClass ryzClass : classes ) {
+            count( ryzClass.transformerCounters() );
+            innerClassesEliminated += ryzClass.innerClassesEliminated();
+            releasedEstimate += ryzClass.release();
+        }
+    }
+
+    private void count( Map<Class<?>, int[]> counters ) {
+        for ( Map.Entry<Class<?>, int[]> e : counters.entrySet() ) {
+            String name = e.getKey().getSimpleName();
+            int[] total = transformerCounters.get( name );
+            if ( total == null ) {
+                total = new int[2];
+                transformerCounters.put( name, total );
+            }
+            total[0] += e.getValue()[0];
+            total[1] += e.getValue()[1];
+        }
+    }
+
+    /**
+     * @return the estimated bytes released by {@link #close()}, the heap
+     *         is not measured
+     */
+    long releasedEstimate() {
+        return releasedEstimate;
+    }
+
+    @Override
+    public String toString() {
+        return "CompileSession{id=" + id
+                + ", classes=" + classes.size()
+                + ", classFileBytes=" + classFileBytes
+                + ", estimatedReleasedBytes=" + releasedEstimate
+                + ", innerClassesEliminated=" + innerClassesEliminated
+                + ", transformerHitsAndMisses=" + counters() + "}";
+    }
+
+    private String counters() {
+        StringBuilder sb = new StringBuilder( "{" );
+        for ( Map.Entry<String, int[]> e : transformerCounters.entrySet() ) {
+            if ( sb.length() > 1 ) {
+                sb.append( ", " );
+            }
+            sb.append( e.getKey() ).append( '=' )
+              .append( e.getValue()[0] ).append( '/' ).append( e.getValue()[1] );
+        }
+        return sb.append( '}' ).toString();
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import javassist.ByteArrayClassPath;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.analysis.Analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Creates the class files directly with the Javassist compiler instead of
+ * javac.
+ * <p/>
+ * The source code generated by the transformers is split in its members
+ * ( attributes, methods and constructors ) and each one is compiled into
+ * the class being built. There are no javac rounds and no checked exceptions
+ * to remove afterwards.
+ * <p/>
+ * Javassist doesn't support everything the generated source uses ( blocks
+ * are anonymous inner classes or lambdas, generics, autoboxing, static imports other
+ * than System.out ) so when any class of the batch can't be compiled
+ * this way, the whole batch is left to javac.
+ */
+class DirectBackend {
+
+    private static final Logger logger = Logger.getLogger( DirectBackend.class.getName() );
+
+    private static final Pattern classHeader = Pattern.compile(
+            "(public\\s+)?class\\s+([\\w$]+)(\\s+extends\\s+([\\w$.]+))?(\\s+implements\\s+([\\w$.,\\s]+?))?\\s*\\{\\s*" );
+    private static final Pattern importLine = Pattern.compile( "import\\s+([\\w$.]+?)(\\.\\*)?\\s*;\\s*" );
+    private static final Pattern packageLine = Pattern.compile( "package\\s+([\\w$.]+)\\s*;\\s*" );
+    private static final Pattern marker = Pattern.compile( "/\\*[^*]*\\*/" );
+    private static final Pattern varargs = Pattern.compile( "([\\w.]+)\\s*\\.\\.\\.\\s*" );
+    private static final Pattern staticOut = Pattern.compile( "(?<![\\w.])out\\s*\\." );
+    private static final Pattern declaresOut = Pattern.compile( "\\bout\\s*[=;,)]" );
+    private static final Pattern[] ignoredLines = {
+            Pattern.compile( "import\\s+static\\s+ryz\\.lang\\.Extensions\\.\\*\\s*;" ),
+            Pattern.compile( "import\\s+static\\s+java\\.lang\\.System\\.out\\s*;" )
+    };
+
+    private static final String STUB_BODY = " { throw new RuntimeException(); }";
+
+    /**
+     * Knows the classpath, each batch is compiled in a child of this pool.
+     */
+    private final ClassPool classPathPool;
+
+    // metrics
+    private int compiled;
+    private int fallbacks;
+
+    DirectBackend( File[] classPath ) {
+        classPathPool = new ClassPool( true );
+        for ( File file : classPath ) {
+            if ( !file.exists() ) {
+                continue;
+            }
+            try {
+                classPathPool.appendClassPath( file.getPath() );
+            } catch ( NotFoundException e ) {
+                logger.fine( "Not in the classpath: " + file );
+            }
+        }
+    }
+
+    /**
+     * Creates the class files of the given classes.
+     *
+     * @param classes        - The classes to compile, already transformed
+     * @param sources        - The generated source code of each class
+     * @param classPathFiles - Class files to be used as part of the classpath
+     * @param outputDir      - Where the previous compilations wrote their classes
+     * @return the class files by binary name or null if the classes have to
+     *         be compiled with javac.
+     * @throws IOException - If a class file can't be created
+     */
+    Map<String, byte[]> compile( List<RyzClass> classes,
+                                 List<String> sources,
+                                 Map<String, byte[]> classPathFiles,
+                                 File outputDir ) throws IOException {
+        ClassPool pool = new ClassPool( classPathPool );
+        for ( Map.Entry<String, byte[]> e : classPathFiles.entrySet() ) {
+            pool.appendClassPath( new ByteArrayClassPath( e.getKey(), e.getValue() ) );
+        }
+        if ( outputDir.getAbsoluteFile().isDirectory() ) {
+            try {
+                pool.appendClassPath( outputDir.getAbsolutePath() );
+            } catch ( NotFoundException e ) {
+                logger.fine( "Not in the classpath: " + outputDir );
+            }
+        }
+        List<Unit> units = new ArrayList<Unit>();
+        try {
+            for ( int i = 0 ; i < classes.size() ; i++ ) {
+                Unit unit = Unit.parse( sources.get( i ) );
+                if ( unit == null ) {
+                    return fallback( classes.get( i ), "unsupported construct" );
+                }
+                unit.ctClass = pool.makeClass( unit.className );
+                units.add( unit );
+            }
+            // declare everything before compiling any code
+            for ( Unit unit : units ) {
+                unit.declareHierarchy( pool );
+            }
+            for ( Unit unit : units ) {
+                unit.declareMembers( pool );
+            }
+            for ( Unit unit : units ) {
+                unit.compileBodies( pool );
+            }
+            // javassist doesn't check everything javac does ( i.e. autoboxing )
+            for ( Unit unit : units ) {
+                unit.verify();
+            }
+            Map<String, byte[]> classFiles = new LinkedHashMap<String, byte[]>();
+            for ( Unit unit : units ) {
+                unit.importPackages( pool );
+                classFiles.put( unit.className, unit.ctClass.toBytecode() );
+            }
+            compiled += units.size();
+            logger.fine( "Compiled " + units.size() + " classes directly. " + this );
+            return classFiles;
+        } catch ( CannotCompileException e ) {
+            return fallback( null, e.getMessage() );
+        } catch ( NotFoundException e ) {
+            return fallback( null, "not found " + e.getMessage() );
+        } catch ( BadBytecode e ) {
+            return fallback( null, e.getMessage() );
+        } catch ( RuntimeException e ) {
+            // the javassist compiler fails with runtime exceptions with unexpected code
+            return fallback( null, e.toString() );
+        } finally {
+            for ( Unit unit : units ) {
+                unit.ctClass.detach();
+            }
+        }
+    }
+
+    private Map<String, byte[]> fallback( RyzClass ryzClass, String reason ) {
+        fallbacks++;
+        logger.fine( "Using javac" + ( ryzClass == null ? "" : " for " + ryzClass.className() )
+                     + ": " + reason );
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "direct batches: " + compiled + " classes, javac fallbacks: " + fallbacks;
+    }
+
+    /**
+     * The members of a generated class.
+     */
+    private static class Unit {
+        private String packageName = "";
+        private final List<String> imports = new ArrayList<String>();
+        private String className;
+        private String superClass;
+        private String[] interfaces = new String[0];
+        private final List<String> fields = new ArrayList<String>();
+        private final List<String> behaviors = new ArrayList<String>();
+        private final List<CtBehavior> declared = new ArrayList<CtBehavior>();
+        private boolean qualifyOut;
+        private CtClass ctClass;
+
+        /**
+         * Splits the generated source code in members.
+         *
+         * @param source - The source code generated for a class
+         * @return the unit or null if it uses something not supported.
+         */
+        static Unit parse( String source ) {
+            Unit unit = new Unit();
+            String[] lines = source.split( "\n" );
+            int i = 0;
+            boolean inComment = false;
+            // before the class
+            for ( ; i < lines.length ; i++ ) {
+                String line = marker.matcher( lines[i] ).replaceAll( "" ).trim();
+                if ( inComment ) {
+                    inComment = !line.contains( "*/" );
+                    continue;
+                }
+                if ( line.startsWith( "/*" ) ) {
+                    inComment = !line.contains( "*/" );
+                    continue;
+                }
+                if ( line.length() == 0 || line.startsWith( "//" ) || ignored( line ) ) {
+                    continue;
+                }
+                Matcher m;
+                if ( ( m = packageLine.matcher( line ) ).matches() ) {
+                    unit.packageName = m.group( 1 );
+                } else if ( ( m = importLine.matcher( line ) ).matches() ) {
+                    // javassist only imports packages
+                    String name = m.group( 1 );
+                    unit.imports.add( m.group( 2 ) != null || name.indexOf( '.' ) < 0
+                                      ? name
+                                      : name.substring( 0, name.lastIndexOf( '.' ) ) );
+                } else if ( ( m = classHeader.matcher( line ) ).matches() ) {
+                    unit.className = unit.packageName.length() == 0
+                                   ? m.group( 2 )
+                                   : unit.packageName + "." + m.group( 2 );
+                    unit.superClass = m.group( 4 );
+                    if ( m.group( 6 ) != null ) {
+                        unit.interfaces = m.group( 6 ).trim().split( "\\s*,\\s*" );
+                    }
+                    i++;
+                    break;
+                } else {
+                    return null;
+                }
+            }
+            if ( unit.className == null ) {
+                return null;
+            }
+            StringBuilder body = new StringBuilder();
+            for ( int j = i ; j < lines.length ; j++ ) {
+                body.append( lines[j] ).append( '\n' );
+            }
+            unit.qualifyOut = !declaresOut.matcher( body ).find();
+            // the class body
+            StringBuilder member = null;
+            int depth = 0;
+            for ( ; i < lines.length ; i++ ) {
+                String line = lines[i];
+                String trimmed = line.trim();
+                if ( inComment ) {
+                    inComment = !trimmed.contains( "*/" );
+                    continue;
+                }
+                if ( member == null ) {
+                    if ( trimmed.length() == 0 || trimmed.startsWith( "//" ) ) {
+                        continue;
+                    }
+                    if ( trimmed.equals( "/**/}" ) || trimmed.equals( "}" ) ) {
+                        return unit;
+                    }
+                    if ( trimmed.startsWith( "/**" ) || trimmed.equals( "/*" ) ) {
+                        inComment = !trimmed.substring( 2 ).contains( "*/" );
+                        continue;
+                    }
+                    if ( !trimmed.startsWith( "/*attribute*/" )
+                            && !trimmed.startsWith( "/*method*/" )
+                            && !trimmed.startsWith( "/*constructor*/" ) ) {
+                        return null;
+                    }
+                    member = new StringBuilder();
+                }
+                member.append( line ).append( '\n' );
+                depth += depth( line );
+                String text = member.toString().trim();
+                if ( text.startsWith( "/*attribute*/" ) ) {
+                    if ( depth == 0 && endsStatement( text ) ) {
+                        unit.fields.add( unit.qualify( marker.matcher( text ).replaceFirst( "" ) ) );
+                        member = null;
+                    }
+                } else if ( depth == 0 && text.endsWith( "}" ) ) {
+                    unit.behaviors.add( unit.qualify( text ) );
+                    member = null;
+                }
+                if ( depth < 0 ) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        void declareHierarchy( ClassPool pool ) throws NotFoundException, CannotCompileException {
+            importPackages( pool );
+            if ( superClass != null ) {
+                ctClass.setSuperclass( resolve( pool, superClass ) );
+            }
+            for ( String anInterface : interfaces ) {
+                ctClass.addInterface( resolve( pool, anInterface ) );
+            }
+        }
+
+        /**
+         * Finds a class by its name as written in the source, the
+         * same way javac does with the imports of this unit.
+         */
+        private CtClass resolve( ClassPool pool, String name ) throws NotFoundException {
+            List<String> candidates = new ArrayList<String>();
+            candidates.add( name );
+            if ( name.indexOf( '.' ) < 0 ) {
+                if ( packageName.length() > 0 ) {
+                    candidates.add( packageName + "." + name );
+                }
+                for ( String anImport : imports ) {
+                    candidates.add( anImport + "." + name );
+                }
+                candidates.add( "java.lang." + name );
+            }
+            for ( String candidate : candidates ) {
+                try {
+                    return pool.get( candidate );
+                } catch ( NotFoundException e ) {
+                    // try the next one
+                }
+            }
+            throw new NotFoundException( name );
+        }
+
+        /**
+         * Adds the attributes and the methods and constructors with an empty
+         * body, so every body can reference any member of the batch.
+         */
+        void declareMembers( ClassPool pool ) throws CannotCompileException {
+            importPackages( pool );
+            boolean hasConstructor = false;
+            for ( String behavior : behaviors ) {
+                String header = header( behavior );
+                boolean isVarargs = varargs.matcher( header ).find();
+                header = varargs.matcher( header ).replaceAll( "$1[] " );
+                CtBehavior ctBehavior;
+                hasConstructor |= behavior.startsWith( "/*constructor*/" );
+                if ( behavior.startsWith( "/*constructor*/" ) ) {
+                    CtConstructor constructor = CtNewConstructor.make( header + STUB_BODY, ctClass );
+                    ctClass.addConstructor( constructor );
+                    ctBehavior = constructor;
+                } else {
+                    CtMethod method = CtNewMethod.make( header + STUB_BODY, ctClass );
+                    ctClass.addMethod( method );
+                    ctBehavior = method;
+                }
+                if ( isVarargs ) {
+                    ctBehavior.setModifiers( ctBehavior.getModifiers() | AccessFlag.VARARGS );
+                }
+                declared.add( ctBehavior );
+            }
+            if ( !hasConstructor ) {
+                ctClass.addConstructor( CtNewConstructor.defaultConstructor( ctClass ) );
+            }
+            for ( String field : fields ) {
+                ctClass.addField( CtField.make( field, ctClass ) );
+            }
+        }
+
+        /**
+         * Replaces each declaration with the compiled method or constructor.
+         * They are compiled from their whole source so the parameters can be
+         * referenced by name.
+         */
+        void compileBodies( ClassPool pool ) throws CannotCompileException, NotFoundException {
+            importPackages( pool );
+            for ( int i = 0 ; i < behaviors.size() ; i++ ) {
+                String source = source( behaviors.get( i ) );
+                CtBehavior stub = declared.get( i );
+                CtBehavior compiled;
+                if ( stub instanceof CtConstructor ) {
+                    compiled = CtNewConstructor.make( source, ctClass );
+                    ctClass.removeConstructor( (CtConstructor) stub );
+                    ctClass.addConstructor( (CtConstructor) compiled );
+                } else {
+                    compiled = CtNewMethod.make( source, ctClass );
+                    ctClass.removeMethod( (CtMethod) stub );
+                    ctClass.addMethod( (CtMethod) compiled );
+                }
+                compiled.setModifiers( stub.getModifiers() );
+            }
+        }
+
+        /**
+         * Runs the data flow analysis of the compiled code, it fails
+         * with the code the JVM verifier would reject.
+         */
+        void verify() throws BadBytecode {
+            for ( CtBehavior behavior : ctClass.getDeclaredBehaviors() ) {
+                MethodInfo methodInfo = behavior.getMethodInfo();
+                if ( methodInfo.getCodeAttribute() == null ) {
+                    continue;
+                }
+                new Analyzer().analyze( ctClass, methodInfo );
+                // the analyzer doesn't check the returned value type
+                char returnType = methodInfo.getDescriptor().charAt(
+                                        methodInfo.getDescriptor().indexOf( ')' ) + 1 );
+                for ( CodeIterator i = methodInfo.getCodeAttribute().iterator() ; i.hasNext() ; ) {
+                    int opcode = i.byteAt( i.next() );
+                    if ( opcode >= Opcode.IRETURN && opcode <= Opcode.ARETURN
+                            && opcode != returnOpcode( returnType ) ) {
+                        throw new BadBytecode( "Wrong return type in " + behavior.getLongName() );
+                    }
+                }
+            }
+        }
+
+        private static int returnOpcode( char returnType ) {
+            switch ( returnType ) {
+                case 'J': return Opcode.LRETURN;
+                case 'F': return Opcode.FRETURN;
+                case 'D': return Opcode.DRETURN;
+                case 'L':
+                case '[': return Opcode.ARETURN;
+                default:  return Opcode.IRETURN;
+            }
+        }
+
+        void importPackages( ClassPool pool ) {
+            pool.clearImportedPackages();
+            if ( packageName.length() > 0 ) {
+                pool.importPackage( packageName );
+            }
+            for ( String anImport : imports ) {
+                pool.importPackage( anImport );
+            }
+        }
+
+        private String qualify( String code ) {
+            return qualifyOut ? staticOut.matcher( code ).replaceAll( "System.out." ) : code;
+        }
+
+        /**
+         * The method or constructor with the varargs as arrays.
+         */
+        private static String source( String behavior ) {
+            int body = behavior.indexOf( '{' );
+            return varargs.matcher( header( behavior ) ).replaceAll( "$1[] " )
+                   + behavior.substring( body );
+        }
+
+        /**
+         * The declaration of a method or constructor, without markers.
+         */
+        private static String header( String behavior ) {
+            int body = behavior.indexOf( '{' );
+            return marker.matcher( behavior.substring( 0, body ) ).replaceAll( "" );
+        }
+
+        /**
+         * How many braces the line opens, ignoring the ones in literals.
+         */
+        private static int depth( String line ) {
+            int depth = 0;
+            char quote = 0;
+            for ( int i = 0 ; i < line.length() ; i++ ) {
+                char c = line.charAt( i );
+                if ( quote != 0 ) {
+                    if ( c == '\\' ) {
+                        i++;
+                    } else if ( c == quote ) {
+                        quote = 0;
+                    }
+                } else if ( c == '"' || c == '\'' ) {
+                    quote = c;
+                } else if ( c == '{' ) {
+                    depth++;
+                } else if ( c == '}' ) {
+                    depth--;
+                }
+            }
+            return depth;
+        }
+
+        private static boolean ignored( String line ) {
+            for ( Pattern pattern : ignoredLines ) {
+                if ( pattern.matcher( line ).matches() ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean endsStatement( String text ) {
+            return text.endsWith( ";" );
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import ryz.lang.Extensions;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Links the invocations of the methods of {@link ryz.lang.Extensions} when
+ * the type of the receiver is known, so <code>word.reverse()</code> with
+ * <code>word</code> declared as String becomes <code>reverse(word)</code>
+ * before javac sees it, instead of needing a javac round to be rewritten.
+ * <p/>
+ * The receivers recognized are string, int and boolean literals and the
+ * names declared with a primitive or a <code>java.*</code> type, the only
+ * types whose methods are known before compiling. A method of the receiver
+ * always wins over an extension with the same name, and the invocations
+ * that can't be linked here are still fixed after javac reports them.
+ * <p/>
+ * When the receiver is declared with a supertype of the one the extensions
+ * take, like Object, the extension can only be chosen when the program
+ * runs: the invocation goes through {@link ryz.lang.Dispatch}, cast to the
+ * type all those extensions return.
+ */
+final class ExtensionLinker {
+
+    // the static methods of Extensions by name
+    private static final Map<String, List<Method>> extensions = new HashMap<String, List<Method>>();
+    static {
+        for (Method method : Extensions.class.getMethods()) {
+            if (!Modifier.isStatic(method.getModifiers())
+                    || method.getDeclaringClass() != Extensions.class) {
+                continue;
+            }
+            List<Method> methods = extensions.get(method.getName());
+            if (methods == null) {
+                methods = new ArrayList<Method>();
+                extensions.put(method.getName(), methods);
+            }
+            methods.add(method);
+        }
+    }
+
+    // the invoke methods of ryz.lang.Dispatch take up to three arguments
+    private static final int MAX_DISPATCH_ARGUMENTS = 3;
+
+    private static final Map<String, Class<?>> primitives = new HashMap<String, Class<?>>();
+    private static final Map<Class<?>, Class<?>> wrappers = new HashMap<Class<?>, Class<?>>();
+    static {
+        primitive(boolean.class, Boolean.class);
+        primitive(byte.class, Byte.class);
+        primitive(char.class, Character.class);
+        primitive(short.class, Short.class);
+        primitive(int.class, Integer.class);
+        primitive(long.class, Long.class);
+        primitive(float.class, Float.class);
+        primitive(double.class, Double.class);
+    }
+
+    private static void primitive(Class<?> primitive, Class<?> wrapper) {
+        primitives.put(primitive.getName(), primitive);
+        wrappers.put(primitive, wrapper);
+    }
+
+    // the names of the public methods of the receiver types, shared by the transforming threads
+    private static final ConcurrentMap<Class<?>, Set<String>> members = new ConcurrentHashMap<Class<?>, Set<String>>();
+
+    private final String line;
+    private final SymbolTable symbols;
+    // the expression and type of the last receiver or chain parsed
+    private String expression;
+    private Class<?> type;
+
+    private ExtensionLinker(String line, SymbolTable symbols) {
+        this.line = line;
+        this.symbols = symbols;
+    }
+
+    /**
+     * @param line - a line of generated java code
+     * @param symbols - the names visible from the line
+     * @return the line with the extension invocations linked or the same
+     *         line if there was nothing to link.
+     */
+    static String link(String line, SymbolTable symbols) {
+        if (line.indexOf('.') < 0) {
+            return line;
+        }
+        return new ExtensionLinker(line, symbols).link();
+    }
+
+    private String link() {
+        StringBuilder result = null;
+        int copied = 0;
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (line.startsWith("/*", i)) {
+                int close = line.indexOf("*/", i + 2);
+                i = close < 0 ? length : close + 2;
+            } else if (c == '"' || c == '\'' || Character.isJavaIdentifierPart(c)) {
+                int end = isReceiverStart(i) ? chain(i, length) : -1;
+                if (end > 0) {
+                    if (result == null) {
+                        result = new StringBuilder(length);
+                    }
+                    result.append(line, copied, i).append(expression);
+                    copied = end;
+                    i = end;
+                } else if (c == '"' || c == '\'') {
+                    i = skipLiteral(i, length);
+                } else {
+                    i = word(i, length);
+                }
+            } else {
+                i++;
+            }
+        }
+        if (result == null) {
+            return line;
+        }
+        return result.append(line, copied, length).toString();
+    }
+
+    /**
+     * Parses a receiver followed by invocations.
+     *
+     * @return where the last invocation ends or -1 if nothing was linked.
+     */
+    private int chain(int start, int end) {
+        int i = receiver(start, end);
+        if (i < 0) {
+            return -1;
+        }
+        int linked = 0;
+        while (type != null) {
+            int dot = spaces(i, end);
+            if (dot == end || line.charAt(dot) != '.') {
+                break;
+            }
+            int nameStart = spaces(dot + 1, end);
+            int nameEnd = word(nameStart, end);
+            int open = spaces(nameEnd, end);
+            if (nameEnd == nameStart || open == end || line.charAt(open) != '(') {
+                break;
+            }
+            int close = closing(open, end);
+            if (close < 0) {
+                break;
+            }
+            String name = line.substring(nameStart, nameEnd);
+            String arguments = link(line.substring(open + 1, close), symbols).trim();
+            int count = arguments.length() == 0 ? 0 : count(arguments);
+            if (isMember(type, name)) {
+                expression = expression + line.substring(i, open + 1) + arguments + ")";
+                type = returnType(Arrays.asList(type.getMethods()), name, count, null);
+            } else {
+                List<Method> methods = extensions.get(name);
+                Class<?> receiver = type;
+                type = methods == null ? null : returnType(methods, name, count, receiver);
+                if (type != null) {
+                    expression = name + "(" + expression
+                            + (count == 0 ? "" : ", " + arguments) + ")";
+                } else if (methods != null && count <= MAX_DISPATCH_ARGUMENTS
+                        && (type = dispatchedType(methods, name, count, receiver)) != null) {
+                    String invocation = "ryz.lang.Dispatch.invoke(\"" + name + "\", " + expression
+                            + (count == 0 ? "" : ", " + arguments) + ")";
+                    expression = type == void.class
+                            ? invocation
+                            : "((" + type.getCanonicalName() + ") " + invocation + ")";
+                } else {
+                    break;
+                }
+                linked++;
+            }
+            if (type == void.class) {
+                type = null;
+            }
+            i = close + 1;
+        }
+        return linked > 0 ? i : -1;
+    }
+
+    /**
+     * Parses a literal or a declared name and sets its type.
+     *
+     * @return where the receiver ends or -1 if its type is unknown.
+     */
+    private int receiver(int start, int end) {
+        char c = line.charAt(start);
+        int receiverEnd;
+        if (c == '"') {
+            receiverEnd = skipLiteral(start, end);
+            type = String.class;
+        } else if (c == '\'') {
+            receiverEnd = skipLiteral(start, end);
+            type = char.class;
+        } else {
+            receiverEnd = word(start, end);
+            String word = line.substring(start, receiverEnd);
+            if (Character.isDigit(c)) {
+                // 5.reverse() would be a double
+                if (receiverEnd < end && line.charAt(receiverEnd) == '.' || !isDigits(word)) {
+                    return -1;
+                }
+                type = int.class;
+            } else if (word.equals("true") || word.equals("false")) {
+                type = boolean.class;
+            } else {
+                type = platformType(symbols.type(word));
+            }
+        }
+        expression = line.substring(start, receiverEnd);
+        return type == null ? -1 : receiverEnd;
+    }
+
+    /**
+     * @param declared - the type a name was declared with
+     * @return the class of a primitive or a java.* type or null
+     */
+    private static Class<?> platformType(String declared) {
+        if (declared == null) {
+            return null;
+        }
+        String name = declared.trim();
+        Class<?> primitive = primitives.get(name);
+        if (primitive != null) {
+            return primitive;
+        }
+        if (name.indexOf('<') >= 0 || name.endsWith("]") || name.endsWith(".")) {
+            return null;
+        }
+        if (name.indexOf('.') < 0) {
+            name = "java.lang." + name;
+        }
+        if (!name.startsWith("java.")) {
+            return null;
+        }
+        try {
+            // the bootstrap loader, nothing from the classpath is loaded
+            return Class.forName(name, false, null);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the receiver type has a public method with this name.
+     */
+    private static boolean isMember(Class<?> receiver, String name) {
+        if (receiver.isPrimitive()) {
+            return false;
+        }
+        Set<String> names = members.get(receiver);
+        if (names == null) {
+            names = new HashSet<String>();
+            for (Method method : receiver.getMethods()) {
+                names.add(method.getName());
+            }
+            if (receiver.isInterface()) {
+                for (Method method : Object.class.getMethods()) {
+                    names.add(method.getName());
+                }
+            }
+            members.put(receiver, names);
+        }
+        return names.contains(name);
+    }
+
+    /**
+     * Finds the methods that can be invoked with the given receiver, as
+     * their first parameter, and arguments count.
+     *
+     * @param receiver - the type of the receiver of an extension or null
+     *                   if the methods are members of the receiver
+     * @return the type they all return, void included, or null if there
+     *         are none or they don't return the same type.
+     */
+    private static Class<?> returnType(Iterable<Method> methods, String name, int count,
+                                       Class<?> receiver) {
+        Class<?> result = null;
+        int parameters = receiver == null ? count : count + 1;
+        for (Method method : methods) {
+            Class<?>[] types = method.getParameterTypes();
+            if (!method.getName().equals(name)
+                    || (method.isVarArgs() ? parameters < types.length - 1 : parameters != types.length)
+                    || (receiver != null && !accepts(types[0], receiver))) {
+                continue;
+            }
+            if (result != null && result != method.getReturnType()) {
+                return null;
+            }
+            result = method.getReturnType();
+        }
+        return result;
+    }
+
+    /**
+     * Finds the extensions that take a subtype of the receiver type, those
+     * that may be invoked depending on the class of the receiver.
+     *
+     * @return the type they all return, boxed, or null if there are none or
+     *         they don't return the same type.
+     */
+    private static Class<?> dispatchedType(Iterable<Method> methods, String name, int count,
+                                           Class<?> receiver) {
+        Class<?> declared = receiver.isPrimitive() ? wrappers.get(receiver) : receiver;
+        Class<?> result = null;
+        for (Method method : methods) {
+            Class<?>[] types = method.getParameterTypes();
+            if (!method.getName().equals(name)
+                    || (method.isVarArgs() ? count + 1 < types.length - 1 : count + 1 != types.length)) {
+                continue;
+            }
+            Class<?> taken = types[0].isPrimitive() ? wrappers.get(types[0]) : types[0];
+            if (!declared.isAssignableFrom(taken)) {
+                continue;
+            }
+            Class<?> returned = method.getReturnType();
+            if (returned.isPrimitive() && returned != void.class) {
+                returned = wrappers.get(returned);
+            }
+            if (result != null && result != returned) {
+                return null;
+            }
+            result = returned;
+        }
+        return result;
+    }
+
+    /**
+     * @return true if a value of the receiver type can be passed to the
+     *         parameter, boxing or unboxing it.
+     */
+    private static boolean accepts(Class<?> parameter, Class<?> receiver) {
+        if (parameter.isPrimitive()) {
+            return parameter == receiver || wrappers.get(parameter) == receiver;
+        }
+        return parameter.isAssignableFrom(receiver.isPrimitive() ? wrappers.get(receiver) : receiver);
+    }
+
+    /**
+     * Whether a name or literal starting here is not a member of something else.
+     */
+    private boolean isReceiverStart(int i) {
+        int before = i - 1;
+        while (before >= 0 && line.charAt(before) <= ' ') {
+            before--;
+        }
+        return i == 0 || (!Character.isJavaIdentifierPart(line.charAt(i - 1))
+                && (before < 0 || line.charAt(before) != '.'));
+    }
+
+    /**
+     * @return how many arguments are separated by commas outside parenthesis and literals.
+     */
+    private static int count(String arguments) {
+        int count = 1;
+        int depth = 0;
+        for (int i = 0; i < arguments.length(); i++) {
+            char c = arguments.charAt(i);
+            if (c == '"' || c == '\'') {
+                char quote = c;
+                for (i++; i < arguments.length() && arguments.charAt(i) != quote; i++) {
+                    if (arguments.charAt(i) == '\\') {
+                        i++;
+                    }
+                }
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isDigits(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) < '0' || word.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int word(int i, int end) {
+        while (i < end && Character.isJavaIdentifierPart(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private int spaces(int i, int end) {
+        while (i < end && line.charAt(i) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the position of the parenthesis that closes the one at open
+     *         or -1 if it is not in the line.
+     */
+    private int closing(int open, int end) {
+        int depth = 0;
+        for (int i = open; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = skipLiteral(i, end) - 1;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position after the string or char literal starting at i.
+     */
+    private int skipLiteral(int i, int end) {
+        char quote = line.charAt(i);
+        for (i++; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
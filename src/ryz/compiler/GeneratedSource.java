@@ -0,0 +1,165 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The java source generated for a class. The transformers append its lines
+ * and may edit the last ones, the source is rendered with the package and
+ * import sections before the body and is kept until the lines are edited
+ * again.
+ */
+class GeneratedSource extends AbstractList<String> implements RandomAccess {
+
+    private List<String> lines = new ArrayList<String>();
+    private int length;
+    private String rendered;
+
+    @Override
+    public String get(int index) {
+        return lines.get(index);
+    }
+
+    @Override
+    public int size() {
+        return lines.size();
+    }
+
+    @Override
+    public String set(int index, String line) {
+        String previous = lines.set(index, line);
+        edited(line.length() - previous.length());
+        return previous;
+    }
+
+    @Override
+    public void add(int index, String line) {
+        lines.add(index, line);
+        edited(line.length());
+    }
+
+    @Override
+    public String remove(int index) {
+        String removed = lines.remove(index);
+        edited(-removed.length());
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        lines.clear();
+        length = 0;
+        rendered = null;
+        modCount++;
+    }
+
+    /**
+     * Replaces the lines with the ones in the given source code, every line
+     * ends with "\n" and the empty lines at the end are dropped.
+     * @param source - the new source code
+     */
+    void replace(String source) {
+        clear();
+        int end = source.length();
+        while (end > 0 && source.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if (source.length() == 0) {
+            lines.add("\n");
+            length = 1;
+            return;
+        }
+        for (int start = 0; start < end; ) {
+            int newLine = source.indexOf('\n', start);
+            if (newLine < 0 || newLine > end) {
+                newLine = end;
+            }
+            lines.add(source.substring(start, newLine) + "\n");
+            length += newLine - start + 1;
+            start = newLine + 1;
+        }
+    }
+
+    /**
+     * The source code with the first package line, then the import lines and
+     * then the rest. The lines keep that order afterwards.
+     * @return the source code, the same instance until the lines are edited
+     */
+    String render() {
+        if (rendered != null) {
+            return rendered;
+        }
+        String packageLine = "";
+        int packageIndex = -1;
+        // without a package an empty line takes its place
+        int emptyIndex = -1;
+        List<String> imports = new ArrayList<String>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (packageIndex < 0 && line.startsWith("package")) {
+                packageLine = line;
+                packageIndex = i;
+            }
+            if (emptyIndex < 0 && line.length() == 0) {
+                emptyIndex = i;
+            }
+            if (line.startsWith("import")) {
+                imports.add(line);
+            }
+        }
+        if (packageIndex < 0) {
+            packageIndex = emptyIndex;
+        }
+        List<String> ordered = new ArrayList<String>(lines.size() + 1);
+        ordered.add(packageLine);
+        ordered.addAll(imports);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (i != packageIndex && !line.startsWith("import")) {
+                ordered.add(line);
+            }
+        }
+        StringBuilder source = new StringBuilder(length);
+        for (String line : ordered) {
+            source.append(line);
+        }
+        lines = ordered;
+        rendered = source.toString();
+        return rendered;
+    }
+
+    private void edited(int delta) {
+        length += delta;
+        rendered = null;
+        modCount++;
+    }
+}
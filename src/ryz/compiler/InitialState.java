@@ -51,11 +51,11 @@ class InitialState extends RyzClassState {
 
     @Override
     void previousState() {
-        ryzClass().state(new InitialState(ryzClass()));
+        ryzClass().state(ryzClass().initialState);
     }
 
     @Override
     void nextState() {
-        ryzClass().state(new InsideClassState(ryzClass()));
+        ryzClass().state(ryzClass().insideClassState);
     }
 }
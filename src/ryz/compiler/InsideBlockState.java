@@ -28,7 +28,8 @@
 
 package ryz.compiler;
 
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
  * When we're inside a block, closing a key should append another key and semicolon.
@@ -38,45 +39,75 @@ import java.util.Arrays;
  * Time: 4:42:24 PM
  */
 public class InsideBlockState extends InsideMethodState {
-    private final RyzClassState previousState;
-    private final String blockSignature;
+    // the signatures of the nested blocks, the innermost first
+    private final Deque<String> blockSignatures = new ArrayDeque<String>();
+    // the signature of the blocks expanded into java statements, they return nothing
+    static final String INLINE = "inline:";
+    // the prefix of the signature of the blocks created as lambda expressions
+    static final String LAMBDA = "->";
 
-    public InsideBlockState(RyzClass ryzClass, RyzClassState state, String blockSignature) {
+    public InsideBlockState(RyzClass ryzClass) {
         super( ryzClass );
+    }
 
-        this.blockSignature = blockSignature;
-        transformers(Arrays.asList(
-                new AttributeTransformer(this, false),
-                new CommentTransformer(this),
-                new ClosingKeyTransformer(this),
-                new ReturnTransformer(this),
-                new StatementTransformer(this),
-                new SimpleAssignmentTransformer(this),
-                new SingleValueLineTransformer(this),
-                new InlineBlockTransformer(this)
-        ));
-
-        this.previousState = state;
+    void open(String blockSignature) {
+        blockSignatures.push(blockSignature);
+        ryzClass().symbols().enterBlock();
     }
 
 
 
+    /**
+     * @return true if the innermost block was expanded into a java statement
+     */
+    boolean isInline() {
+        return INLINE.equals(blockSignatures.peek());
+    }
+
+    /**
+     * @return true if the innermost block is a lambda expression
+     */
+    boolean isLambda() {
+        String blockSignature = blockSignatures.peek();
+        return blockSignature != null && blockSignature.startsWith(LAMBDA);
+    }
 
+    /**
+     * @param line - the source line that closes the innermost block, like: })
+     * @return the java code that closes it after its body
+     */
+    String closing(String line) {
+        if (isInline()) {
+            return "}";
+        }
+        // the body of the lambda was already closed, there is no class to close
+        return (isLambda() ? line.substring(1) : line) + ";";
+    }
 
     @Override
     void previousState() {
-        ryzClass().markLastLineAsReturn(this.blockSignature.split(":")[1]);
-        ryzClass().state(previousState);
+        String blockSignature = blockSignatures.pop();
+        if (!INLINE.equals(blockSignature)) {
+            ryzClass().markLastLineAsReturn(blockSignature.split(":")[1]);
+        }
+        ryzClass().symbols().exitBlock();
+        ryzClass().leave();
     }
 
     @Override
     void nextState() {
-        ryzClass().state(previousState);
+        blockSignatures.pop();
+        ryzClass().symbols().exitBlock();
+        ryzClass().leave();
     }
 
     @Override
     public void keyClosed() {
-        ryzClass().outputLines().add(String.format("};%n"));
+        if (isLambda()) {
+            ryzClass().outputLines().add(String.format("}%n"));
+        } else if (!isInline()) {
+            ryzClass().outputLines().add(String.format("};%n"));
+        }
         super.keyClosed();
     }
 }
@@ -62,22 +62,17 @@ public class InsideClassState extends RyzClassState {
      */
     @Override
     public boolean addVariable(String accessModifier, String variableName, String variableType) {
-        String variable = variableName + ":"+ variableType;
-        //TODO: introduce value object
-        ensureVariablesHolderInitialized("instance");
         // TODO: Think on an scenario where we need to know if a variable was already declared.
-        //return !ryzClass().variables().get("instance").contains(variable)
-        //        && ryzClass().variables().get("instance").add(variable);
-        return ryzClass().variables().get("instance").add(variable);
+        return ryzClass().symbols().declareAttribute(variableName, variableType);
     }
 
     @Override
     void previousState() {
-        ryzClass().state(new InitialState(ryzClass()));
+        ryzClass().state(ryzClass().initialState);
     }
 
     @Override
     void nextState() {
-        ryzClass().state(new InsideMethodState(ryzClass()));
+        ryzClass().state(ryzClass().insideMethodState);
     }
 }
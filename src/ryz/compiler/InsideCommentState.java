@@ -37,25 +37,23 @@ import java.util.Arrays;
  * Time: 6:24:10 PM
  */
 class InsideCommentState extends RyzClassState {
-    private final RyzClassState previousState;
 
-    public InsideCommentState(RyzClass ryzClass, RyzClassState currentState) {
+    public InsideCommentState(RyzClass ryzClass) {
         super(ryzClass);
         transformers(Arrays.asList(
             (LineTransformer)new CommentTransformer(this)
         ));
-        this.previousState = currentState;
     }
 
 
     @Override
     void previousState() {
-        ryzClass().state(previousState);
+        ryzClass().leave();
     }
 
     @Override
     void nextState() {
-        ryzClass().state(previousState);
+        ryzClass().leave();
     }
 }
 
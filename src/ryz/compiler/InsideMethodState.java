@@ -29,6 +29,7 @@
 package ryz.compiler;
 
 import java.util.Arrays;
+import java.util.logging.Level;
 
 /**
  * Indicates the class is inside a method definition 
@@ -57,12 +58,12 @@ public class InsideMethodState extends RyzClassState {
     @Override
     void previousState() {
         ryzClass().markLastLineAsReturn();
-        ryzClass().state(new InsideClassState(ryzClass()));
+        ryzClass().state(ryzClass().insideClassState);
     }
 
     @Override
     void nextState() {
-        ryzClass().state(new InitialState(ryzClass()));
+        ryzClass().state(ryzClass().initialState);
     }
 
     /**
@@ -86,37 +87,17 @@ public class InsideMethodState extends RyzClassState {
              })
           }
          */
-        String variable = variableName + ":"+ variableType;
         //TODO: consider scenarios where the variable was added as attribute but a local var is needed and when the variable was added as a parameter
-        String method = ryzClass().lastElementAdded();// ryzClass().methods().get( ryzClass().methods().size()-1);
-        ensureVariablesHolderInitialized(method);
-        ensureVariablesHolderInitialized("instance");
-
-        logger.finest("variable = "+ variableName);
-        logger.finest("ryzClass().variables().get(method) = " + ryzClass().variables().get(method));
-        logger.finest("ryzClass().variables().get(\"instance\") = " +ryzClass().variables().get("instance"));
-        logger.finest("ryzClass().variables().get(method).contains(variable) = " + containsVariable(method, variableName));
-        logger.finest("ryzClass().variables().get(\"instance\").contains(variable) = " + containsVariable("instance", variable));
-        //TODO: New local var may be ommited. This change introduces a new problem, if a local variable is declared
-        return !containsVariable(method, variable)
-                && !containsVariable("instance", variable)
-                && ryzClass().variables().get(method).add(variable);
-    }
-
-    private boolean containsVariable(String scope, String variable) {
-        String vn = variable.split(":")[0];
-        for(String name : ryzClass().variables().get(scope) )  {
-            String cvn = name.split(":")[0];
-            if( cvn.equals( vn )) {
-                return true;
-            }
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("variable = "+ variableName);
+            logger.finest("symbols = " + ryzClass().symbols());
         }
-        return false;
-        //return ryzClass().variables().get(scope).contains(variable);
+        //TODO: New local var may be ommited. This change introduces a new problem, if a local variable is declared
+        return ryzClass().symbols().declareLocal(variableName, variableType);
     }
 
     @Override
     public void insideParameters() {
-        ryzClass().state( new InsideParametersState(ryzClass(),this));
+        ryzClass().enter(ryzClass().insideParametersState);
     }
 }
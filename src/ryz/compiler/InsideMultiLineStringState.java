@@ -34,28 +34,34 @@ import java.util.Arrays;
  * Date: 1/13/11
  */
 class InsideMultiLineStringState extends RyzClassState {
-    private final RyzClassState previousState;
+    private final MultilineStringTransformer transformer;
 
-    public InsideMultiLineStringState(RyzClass ryzClass, RyzClassState currentState, int indentation) {
+    public InsideMultiLineStringState(RyzClass ryzClass) {
         super(ryzClass);
+        transformer = new MultilineStringTransformer(this);
         transformers(Arrays.asList(
-                (LineTransformer) new MultilineStringTransformer(this, indentation)
+                (LineTransformer) transformer
         ));
-        this.previousState = currentState;
 
     }
 
-
+    /**
+     * Starts a new multiline string.
+     * @param indentation - the spaces to add to each of its lines
+     */
+    void indentation(int indentation) {
+        transformer.start(indentation);
+    }
 
 
     @Override
     void previousState() {
-        ryzClass().state(previousState);
+        ryzClass().leave();
     }
 
     @Override
     void nextState() {
-        ryzClass().state(previousState);
+        ryzClass().leave();
     }
 
 }
@@ -37,9 +37,7 @@ import java.util.Arrays;
  */
 public class InsideParametersState extends RyzClassState {
 
-    private final RyzClassState previousState;
-
-    public InsideParametersState(RyzClass ryzClass, RyzClassState currentState) {
+    public InsideParametersState(RyzClass ryzClass) {
         super(ryzClass);
         transformers(Arrays.asList(
                 new CommentTransformer(this),
@@ -47,19 +45,17 @@ public class InsideParametersState extends RyzClassState {
                 new StatementTransformer(this),
                 new SingleValueLineTransformer(this)
         ));
-
-        this.previousState = currentState;
     }
 
 
     @Override
     void previousState() {
-        ryzClass().state(previousState);
+        ryzClass().leave();
     }
 
     @Override
     void nextState() {
-        ryzClass().state(previousState);
+        ryzClass().leave();
     }
 
 
@@ -74,20 +70,7 @@ public class InsideParametersState extends RyzClassState {
     @Override
     public boolean addVariable(String accessModifier, String variableName, String variableType) {
         //TODO: refactor into a single piece of logic between: InsideMethodState, InsideClassState and this class InsideParameterState
-        String variable = variableName+":"+variableType;
-
-        //TODO: consider scenarios where the variable was added as attribute but a local var is needed and when the variable was added as a parameter
-        String method = ryzClass().lastElementAdded(); //;ryzClass().methods().get( ryzClass().methods().size()-1);
-        ensureVariablesHolderInitialized(method);
-
-        //logger.finest("variable = "+ variable);
-        //logger.finest("ryzClass().variables().get(method) = " + ryzClass().variables().get(method));
-        //logger.finest("ryzClass().variables().get(\"instance\") = " +ryzClass().variables().get("instance"));
-        //logger.finest("ryzClass().variables().get(method).contains(variable) = " + ryzClass().variables().get(method).contains(variable));
-        //TODO: findout if this is needed, otherwise just remove it
-        //return !ryzClass().variables().get(method).contains(variable)
-        //        && ryzClass().variables().get(method).add(variable);
-          return    ryzClass().variables().get(method).add(variable);
+        return ryzClass().symbols().declareParameter(variableName, variableType);
 
     }
 
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import javax.lang.model.SourceVersion;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the java compiler and its file manager warm between javac rounds and
+ * between calls to {@link RyzC#compile(String...)}.
+ * <p/>
+ * Creating a file manager means opening and scanning every jar and directory
+ * in the classpath again, so the same one is used until the classpath
+ * changes. The packages listed by javac are cached too, and invalidated when
+ * new class files are written. The same classpath is indexed once, the
+ * transformers look up types in the index and javac doesn't list the
+ * packages the index knows are not there.
+ * <p/>
+ * The javac task itself can't be reused, a new one is created per round.
+ */
+class JavacSession {
+
+    private final JavaCompiler compiler;
+    private StandardJavaFileManager standardFileManager;
+    private List<File> classPath;
+    private ClassPathIndex index;
+    private List<File> indexedClassPath;
+
+    /**
+     * Listings of the classpath by package name and then by the rest of
+     * the list arguments.
+     */
+    private final Map<String, Map<String, List<JavaFileObject>>> listings
+                            = new HashMap<String, Map<String, List<JavaFileObject>>>();
+
+    // metrics
+    private int tasks;
+    private int compilationUnits;
+    private int fileManagersCreated;
+    private int fileManagerReuses;
+    private int listHits;
+    private int listMisses;
+    private int listSkips;
+
+    JavacSession() {
+        // Get the java compiler for this platform
+        compiler = ToolProvider.getSystemJavaCompiler();
+        if ( compiler == null ) {
+            throw new IllegalStateException( "Couldn't get java compiler. Make "
+                        + "sure the javac is in the execution path. (HINT put "
+                        + "JAVA_HOME/bin before in the path ) JAVA_HOME="
+                        + System.getProperty( "java.home" ) );
+        }
+    }
+
+    /**
+     * @return true if the java compiler accepts lambda expressions ( java 8 )
+     */
+    boolean supportsLambdas() {
+        for ( SourceVersion version : compiler.getSourceVersions() ) {
+            if ( version.ordinal() >= 8 ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a file manager for a round of compilation, reusing the one
+     * created before if possible.
+     *
+     * @param classPath   - The classpath for this round
+     * @return a file manager that keeps the class files created by the task.
+     * @throws IOException - If the classpath can't be set
+     */
+    ClassFileManager fileManager( File[] classPath ) throws IOException {
+        List<File> cp = Arrays.asList( classPath );
+        if ( standardFileManager == null ) {
+            standardFileManager = compiler.getStandardFileManager( null, null, null );
+            fileManagersCreated++;
+        } else {
+            fileManagerReuses++;
+        }
+        if ( !cp.equals( this.classPath ) ) {
+            standardFileManager.setLocation( StandardLocation.CLASS_PATH, cp );
+            this.classPath = new ArrayList<File>( cp );
+            listings.clear();
+        }
+        classPathIndex( classPath );
+        return new ClassFileManager( standardFileManager, this );
+    }
+
+    /**
+     * Returns the index of the given classpath, indexing it only if it
+     * changed since the last call.
+     *
+     * @param classPath   - The classpath to compile against
+     * @return the index of the classpath.
+     */
+    ClassPathIndex classPathIndex( File[] classPath ) {
+        List<File> cp = Arrays.asList( classPath );
+        if ( index == null || !cp.equals( indexedClassPath ) ) {
+            if ( index != null ) {
+                index.close();
+            }
+            index = new ClassPathIndex( cp );
+            indexedClassPath = new ArrayList<File>( cp );
+        }
+        return index;
+    }
+
+    /**
+     * Runs javac with the given file manager.
+     *
+     * @param fileManager - A file manager created by this session
+     * @param listener    - Where to report the compilation errors
+     * @param options     - javac options, may be null
+     * @param compilationUnits - The source code to compile
+     * @return true if the compilation was successful.
+     */
+    boolean compile( JavaFileManager fileManager,
+                     DiagnosticListener<? super JavaFileObject> listener,
+                     Iterable<String> options,
+                     Iterable<? extends JavaFileObject> compilationUnits ) {
+        tasks++;
+        for ( JavaFileObject ignored : compilationUnits ) {
+            this.compilationUnits++;
+        }
+        return compiler.getTask( null, fileManager, listener, options,
+                                 null, compilationUnits ).call();
+    }
+
+    /**
+     * Returns the cached listing of a package, listing it with the given
+     * file manager the first time.
+     *
+     * @param fileManager - The file manager that knows how to list the package
+     * @param location    - Where to look for the package
+     * @param packageName - The package to list
+     * @param kinds       - The kind of files to return
+     * @param recurse     - Whether subpackages should be listed too
+     * @return the files in the package.
+     * @throws IOException - If the package can't be listed
+     */
+    Iterable<JavaFileObject> list( JavaFileManager fileManager,
+                                   JavaFileManager.Location location,
+                                   String packageName,
+                                   Set<JavaFileObject.Kind> kinds,
+                                   boolean recurse ) throws IOException {
+        Map<String, List<JavaFileObject>> packageListings = listings.get( packageName );
+        if ( packageListings == null ) {
+            packageListings = new HashMap<String, List<JavaFileObject>>();
+            listings.put( packageName, packageListings );
+        }
+        String key = location.getName() + ":" + kinds + ":" + recurse;
+        List<JavaFileObject> result = packageListings.get( key );
+        if ( result == null ) {
+            result = new ArrayList<JavaFileObject>();
+            if ( index != null && location == StandardLocation.CLASS_PATH
+                    && !index.hasPackage( packageName ) ) {
+                listSkips++;
+            } else {
+                listMisses++;
+                for ( JavaFileObject file : fileManager.list( location, packageName, kinds, recurse ) ) {
+                    result.add( file );
+                }
+            }
+            packageListings.put( key, result );
+        } else {
+            listHits++;
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the listing of the packages of the given classes, the output
+     * directory may be in the classpath.
+     *
+     * @param classNames - The binary names of the classes written.
+     */
+    void written( Set<String> classNames ) {
+        if ( index != null ) {
+            index.written( classNames );
+        }
+        for ( String className : classNames ) {
+            int lastDot = className.lastIndexOf( '.' );
+            String packageName = lastDot < 0 ? "" : className.substring( 0, lastDot );
+            for ( Iterator<String> i = listings.keySet().iterator(); i.hasNext(); ) {
+                String cached = i.next();
+                if ( cached.length() == 0 || packageName.equals( cached )
+                        || packageName.startsWith( cached + "." ) ) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets what this session knows about the classpath directories and,
+     * if a jar changed, the index and the file manager that read it. Called
+     * before a session is used again, other processes may have changed the
+     * classpath since.
+     *
+     * @throws IOException - If the file manager can't be closed
+     */
+    void refresh() throws IOException {
+        listings.clear();
+        if ( index == null ) {
+            return;
+        }
+        if ( index.isCurrent() ) {
+            index.refresh();
+            return;
+        }
+        close();
+    }
+
+    /**
+     * Releases the file manager and the cached listings.
+     *
+     * @throws IOException - If the file manager can't be closed
+     */
+    void close() throws IOException {
+        listings.clear();
+        classPath = null;
+        if ( index != null ) {
+            index.close();
+            index = null;
+            indexedClassPath = null;
+        }
+        if ( standardFileManager != null ) {
+            standardFileManager.close();
+            standardFileManager = null;
+        }
+    }
+
+    int fileManagerReuses() {
+        return fileManagerReuses;
+    }
+
+    int compilationUnits() {
+        return compilationUnits;
+    }
+
+    int listHits() {
+        return listHits;
+    }
+
+    @Override
+    public String toString() {
+        return "javac tasks: " + tasks
+             + ", compilation units: " + compilationUnits
+             + ", file managers created: " + fileManagersCreated
+             + ", reused: " + fileManagerReuses
+             + ", package listings cached: " + listHits
+             + ", scanned: " + listMisses
+             + ", not in the classpath: " + listSkips;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits Ryz source code into tokens with their line and column.
+ * <p/>
+ * Spaces and comments are skipped, the new lines are kept because they
+ * end the statements. A string without its closing quote in the same line
+ * is a multiline string, it ends in the first line that only has a quote.
+ * A "/" starts a regular expression literal where a value is expected and
+ * there is another "/" in the same line.
+ */
+class Lexer {
+
+    private static final String OPERATORS = "+-*/%<>=!&^|?:~#";
+
+    private final CharSequence source;
+    private int position;
+    private int line = 1;
+    private int column = 1;
+    private Token last;
+
+    Lexer( CharSequence source ) {
+        this.source = source;
+    }
+
+    /**
+     * @return all the tokens of the source, the last one is EOF
+     * @throws SyntaxError - If there is a character that doesn't start a token
+     */
+    List<Token> tokens() {
+        List<Token> tokens = new ArrayList<Token>();
+        Token token;
+        do {
+            token = next();
+            tokens.add( token );
+        } while ( !token.is( Token.Kind.EOF ) );
+        return tokens;
+    }
+
+    /**
+     * @return the next token, EOF at the end of the source.
+     * @throws SyntaxError - If there is a character that doesn't start a token
+     */
+    Token next() {
+        skipSpacesAndComments();
+        last = read();
+        return last;
+    }
+
+    private Token read() {
+        int start = position;
+        int startLine = line;
+        int startColumn = column;
+        if ( position >= source.length() ) {
+            return new Token( Token.Kind.EOF, "", startLine, startColumn );
+        }
+        char c = source.charAt( position );
+        Token.Kind kind;
+        if ( c == '\n' ) {
+            advance();
+            kind = Token.Kind.NEWLINE;
+        } else if ( isIdentifierStart( c ) ) {
+            identifier();
+            kind = Token.Kind.IDENTIFIER;
+        } else if ( Character.isDigit( c ) ) {
+            kind = number();
+        } else if ( c == '"' ) {
+            string();
+            kind = Token.Kind.STRING;
+        } else if ( c == '\'' ) {
+            quoted( '\'' );
+            kind = Token.Kind.CHARACTER;
+        } else if ( c == '/' && valueExpected() && closes( '/' ) ) {
+            quoted( '/' );
+            kind = Token.Kind.REGEX;
+        } else if ( OPERATORS.indexOf( c ) >= 0 ) {
+            do {
+                advance();
+            } while ( position < source.length()
+                    && OPERATORS.indexOf( source.charAt( position ) ) >= 0
+                    && !startsComment() );
+            kind = Token.Kind.OPERATOR;
+        } else {
+            kind = punctuation( c );
+            if ( kind == null ) {
+                throw new SyntaxError( "Unexpected character '" + c + "'", startLine, startColumn );
+            }
+            advance();
+        }
+        return new Token( kind, source.subSequence( start, position ).toString(),
+                          startLine, startColumn );
+    }
+
+    private static Token.Kind punctuation( char c ) {
+        switch ( c ) {
+            case '(': return Token.Kind.LEFT_PAREN;
+            case ')': return Token.Kind.RIGHT_PAREN;
+            case '{': return Token.Kind.LEFT_BRACE;
+            case '}': return Token.Kind.RIGHT_BRACE;
+            case ',': return Token.Kind.COMMA;
+            case '.': return Token.Kind.DOT;
+            case '@': return Token.Kind.AT;
+            default: return null;
+        }
+    }
+
+    private void skipSpacesAndComments() {
+        while ( position < source.length() ) {
+            char c = source.charAt( position );
+            if ( c != '\n' && Character.isWhitespace( c ) ) {
+                advance();
+            } else if ( startsWith( "//" ) ) {
+                while ( position < source.length() && source.charAt( position ) != '\n' ) {
+                    advance();
+                }
+            } else if ( startsWith( "/*" ) ) {
+                int startLine = line;
+                int startColumn = column;
+                advance();
+                advance();
+                while ( !startsWith( "*/" ) ) {
+                    if ( position >= source.length() ) {
+                        throw new SyntaxError( "Unclosed comment", startLine, startColumn );
+                    }
+                    advance();
+                }
+                advance();
+                advance();
+            } else {
+                return;
+            }
+        }
+    }
+
+    // identifiers may end with ? or ! like isNull? or sort!
+    private void identifier() {
+        while ( position < source.length()
+                && isIdentifierPart( source.charAt( position ) ) ) {
+            advance();
+        }
+        if ( position + 1 < source.length()
+                && ( source.charAt( position ) == '?' || source.charAt( position ) == '!' )
+                && source.charAt( position + 1 ) != '=' ) {
+            advance();
+        }
+    }
+
+    // integers, decimals, hexadecimals and dates like 2011-01-06
+    private Token.Kind number() {
+        if ( isDate() ) {
+            for ( int i = 0 ; i < 10 ; i++ ) {
+                advance();
+            }
+            return Token.Kind.DATE;
+        }
+        while ( position < source.length()
+                && Character.isLetterOrDigit( source.charAt( position ) ) ) {
+            advance();
+        }
+        if ( position + 1 < source.length() && source.charAt( position ) == '.'
+                && Character.isDigit( source.charAt( position + 1 ) ) ) {
+            advance();
+            while ( position < source.length()
+                    && Character.isLetterOrDigit( source.charAt( position ) ) ) {
+                advance();
+            }
+        }
+        return Token.Kind.NUMBER;
+    }
+
+    private boolean isDate() {
+        if ( position + 10 > source.length() ) {
+            return false;
+        }
+        for ( int i = 0 ; i < 10 ; i++ ) {
+            char c = source.charAt( position + i );
+            if ( i == 4 || i == 7 ? c != '-' : !Character.isDigit( c ) ) {
+                return false;
+            }
+        }
+        return position + 10 == source.length()
+                || !Character.isLetterOrDigit( source.charAt( position + 10 ) );
+    }
+
+    private void string() {
+        if ( closes( '"' ) ) {
+            quoted( '"' );
+            return;
+        }
+        int startLine = line;
+        int startColumn = column;
+        advance();
+        // a multiline string, up to the line with only the closing quote
+        while ( true ) {
+            while ( position < source.length() && source.charAt( position ) != '\n' ) {
+                advance();
+            }
+            if ( position >= source.length() ) {
+                throw new SyntaxError( "Unclosed string", startLine, startColumn );
+            }
+            advance();
+            int quote = position;
+            while ( quote < source.length() && source.charAt( quote ) != '\n'
+                    && Character.isWhitespace( source.charAt( quote ) ) ) {
+                quote++;
+            }
+            if ( quote < source.length() && source.charAt( quote ) == '"'
+                    && onlySpacesUntilEndOfLine( quote + 1 ) ) {
+                while ( position <= quote ) {
+                    advance();
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean onlySpacesUntilEndOfLine( int from ) {
+        for ( int i = from ; i < source.length() && source.charAt( i ) != '\n' ; i++ ) {
+            if ( !Character.isWhitespace( source.charAt( i ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the delimiter at the current position is closed in the
+     *         same line.
+     */
+    private boolean closes( char delimiter ) {
+        for ( int i = position + 1 ; i < source.length() ; i++ ) {
+            char c = source.charAt( i );
+            if ( c == '\n' ) {
+                return false;
+            } else if ( c == '\\' ) {
+                i++;
+            } else if ( c == delimiter ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void quoted( char delimiter ) {
+        int startLine = line;
+        int startColumn = column;
+        advance();
+        while ( position < source.length() && source.charAt( position ) != delimiter ) {
+            if ( source.charAt( position ) == '\n' ) {
+                throw new SyntaxError( "Unclosed literal", startLine, startColumn );
+            }
+            if ( source.charAt( position ) == '\\' ) {
+                advance();
+            }
+            advance();
+        }
+        advance();
+    }
+
+    // where a regular expression may start
+    private boolean valueExpected() {
+        return last == null
+                || last.is( Token.Kind.OPERATOR )
+                || last.is( Token.Kind.NEWLINE )
+                || last.is( Token.Kind.LEFT_PAREN )
+                || last.is( Token.Kind.LEFT_BRACE )
+                || last.is( Token.Kind.COMMA );
+    }
+
+    private boolean startsComment() {
+        return startsWith( "//" ) || startsWith( "/*" );
+    }
+
+    private boolean startsWith( String prefix ) {
+        if ( position + prefix.length() > source.length() ) {
+            return false;
+        }
+        for ( int i = 0 ; i < prefix.length() ; i++ ) {
+            if ( source.charAt( position + i ) != prefix.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void advance() {
+        if ( source.charAt( position ) == '\n' ) {
+            line++;
+            column = 1;
+        } else {
+            column++;
+        }
+        position++;
+    }
+
+    private static boolean isIdentifierStart( char c ) {
+        return Character.isLetter( c ) || c == '_' || c == '$';
+    }
+
+    private static boolean isIdentifierPart( char c ) {
+        return Character.isLetterOrDigit( c ) || c == '_' || c == '$';
+    }
+}
@@ -31,7 +31,12 @@ package ryz.compiler;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -45,7 +50,8 @@ abstract class LineTransformer {
 
     final static String lineSeparator = System.getProperty("line.separator");
     final static String lineSeparatorRepresentation = lineSeparator.equals("\n")?"\\n":"\\r\\n";
-    final Logger logger = Logger.getLogger(this.getClass().getName());
+    final Logger logger = logger(getClass());
+    private static final ConcurrentMap<Class<?>, Logger> loggers = new ConcurrentHashMap<Class<?>, Logger>();
     private static final List<String> javaKeywords = Arrays.asList(
             "abstract","assert","boolean","break","byte","case","catch",
             "char","class","const","continue","default","do","double",
@@ -70,6 +76,21 @@ abstract class LineTransformer {
         return currentClass;
     }
 
+    /**
+     * Logger.getLogger is synchronized, the loggers of the transformers and
+     * states are looked up once per class instead of once per instance.
+     * @param type - the class of the transformer or state
+     * @return the logger named after the class
+     */
+    static Logger logger(Class<?> type) {
+        Logger logger = loggers.get(type);
+        if (logger == null) {
+            logger = Logger.getLogger(type.getName());
+            loggers.putIfAbsent(type, logger);
+        }
+        return logger;
+    }
+
 
     static String scapeName(String name) {
         if( javaKeywords.contains(name)){
@@ -87,6 +108,19 @@ abstract class LineTransformer {
     
     public abstract void transform(String line, List<String> generatedSource);
 
+    /**
+     * A cheap check of whether this transformer may handle the line, the
+     * line is not given to the transformer when it returns false.
+     * @param line - The line about to be transformed
+     * @return false if transform wouldn't change anything for this line.
+     */
+    boolean accepts(SourceLine line) {
+        return true;
+    }
+
+    private static final Pattern invocationPattern = Pattern.compile("(.*)\\(.*\\)");
+    private static final Pattern scopePattern = Pattern.compile("([+#~-])\\s*.+");
+
     static String checkObjectInitialization(String initialValue) {
         if( Character.isUpperCase(initialValue.charAt(0)) && initialValue.matches("\\w*\\(.*\\)")){
             initialValue = "new " + initialValue;
@@ -94,19 +128,18 @@ abstract class LineTransformer {
         return initialValue;
     }
     String inferType(String initialValue) {
-        Matcher m = Pattern.compile("(.*)\\(.*\\)").matcher(initialValue);
+        Matcher m = invocationPattern.matcher(initialValue);
         if( Character.isUpperCase(initialValue.charAt(0)) && m.matches()){
             return m.group(1);
         }
         // Handles if the method belongs to this class and
         // has already been defined ( no forward references yet )
         // TODO: add more scenarios
-        if( initialValue.contains("(")) {
-            for(String method : currentClass().methods()) {
-                String [] nameType = method.split(":");
-                if( nameType[0].equals(initialValue.substring(0,initialValue.indexOf("(")))) {
-                    return nameType[1];
-                }
+        int open = initialValue.indexOf('(');
+        if( open >= 0 ) {
+            String methodType = currentClass().symbols().methodType(initialValue.substring(0, open));
+            if( methodType != null ) {
+                return methodType;
             }
         }
         return initialValue;
@@ -115,11 +148,10 @@ abstract class LineTransformer {
 
     String getScope(String line, boolean includeScope,
                     String defaultScope){
-        final Pattern pattern = Pattern.compile("([+#~-])\\s*.+");
         if(!includeScope) {
             return "";
         }
-        Matcher matcher = pattern.matcher(line);
+        Matcher matcher = scopePattern.matcher(line);
 
         if (matcher.matches()) {
             if (matcher.group(1).equals("+")) {return "public";
@@ -155,8 +187,7 @@ abstract class LineTransformer {
         String parameters;// Transform the parameters as if they were variables
         // start --
         int linesSoFar = generatedSource.size();
-        LineTransformer lineTransformer =
-                new AttributeTransformer(this.currentClass().state(), false);
+        LineTransformer lineTransformer = currentClass().parametersTransformer;
 
         // do transform the parameter
         for( String param : matchedParameters.trim().split("\\s*,\\s*")) {
@@ -204,12 +235,17 @@ abstract class LineTransformer {
     }
 }
 class ImportTransformer extends LineTransformer {
-    private final Pattern importPattern = Pattern.compile("(import|import(Static))\\s*\\((.+)\\s*\\)");
+    private static final Pattern importPattern = Pattern.compile("(import|import(Static))\\s*\\((.+)\\s*\\)");
 
     ImportTransformer(RyzClassState state) {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.startsWith("import");
+    }
+
 
     @Override
     public void transform(String line, List<String> generatedSource) {
@@ -227,94 +263,101 @@ class PackageClassTransformer extends LineTransformer {
     }
 
     @Override
-    public void transform(String line, List<String> generatedSource) {
-
-        int iod = line.indexOf(".");
-        int iok = line.indexOf("{", iod);
-        int ioc = line.indexOf(":");
-
-        if (iod > 0 && iok > iod) {
-            // ej: some.package.Name {
-            String possiblePackageAndClass = line.substring(0, iok);
-            int liod = possiblePackageAndClass.lastIndexOf(".");
-
-            String possibleClass;
-            String possibleSuperClass = "java.lang.Object";
-            if( ioc > 0 ){
-                possibleClass = possiblePackageAndClass.substring(liod+1, ioc);
-                possibleSuperClass = possiblePackageAndClass.substring(ioc+1).trim();
+    boolean accepts(SourceLine line) {
+        int iod = line.text.indexOf(".");
+        return iod > 0 && line.text.indexOf("{", iod) > iod;
+    }
 
+    @Override
+    public void transform(String line, List<String> generatedSource) {
+        // ej: some.package.Name : SuperClass, Interface {
+        Ast.ClassDeclaration header;
+        try {
+            header = new Parser(line).classHeader();
+        } catch (SyntaxError notAClass) {
+            return;
+        }
+        if (header.packageName.length() == 0 || !Character.isUpperCase(header.name.charAt(0))) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("");
+        for( String s : header.packageName.split("\\.")){
+            sb.append(scapeName(s));
+            sb.append(".");
+        }
+        sb.delete(sb.length()-1, sb.length());
+        String packageName = sb.toString();
+        String previousLine = generatedSource.get(generatedSource.size() - 1);
+        String putBeforeClass = "";
+        if( previousLine.startsWith("/*annotation*/")){
+            generatedSource.remove(generatedSource.size()-1);
+            putBeforeClass = previousLine;
+        }
+        generatedSource.add(String.format("package %s;%n", packageName));
+        String className = scapeName(header.name);
+        //TODO: solve what to do with public/nonpublic class in the same source file
+        generatedSource.add(String.format("/*import */import ryz.lang.Extensions;%n"));
+        generatedSource.add(String.format("/*import static*/import static ryz.lang.Extensions.*;%n"));
+        generatedSource.add(String.format("/*import static*/import static java.lang.System.out;%n"));
+        generatedSource.add(String.format(
+                "%s" + // probably a class annotation
+                "public class %s %s { %n" +
+                "    //private final %s self = this;%n",
+                putBeforeClass,
+                className,
+                supertypes(header.supertypes),
+                className));
+        this.currentClass().packageName(packageName);
+        this.currentClass().className(className);
+    }
 
+    /**
+     * @return "extends SuperClass implements Interface, ..." for the types
+     *         after the ":", java.lang.Object when they are all interfaces.
+     */
+    private String supertypes(List<Ast.TypeReference> types) {
+        String superClass = null;
+        StringBuilder interfaces = new StringBuilder();
+        for (Ast.TypeReference type : types) {
+            if (isInterface(type.name)) {
+                interfaces.append(interfaces.length() == 0 ? "" : ", ").append(scapeName(type.name));
             } else {
-                possibleClass = possiblePackageAndClass.substring(liod+1).trim();
-
-            }
-
-            if (Character.isUpperCase(possibleClass.charAt(0))) {
-                StringBuilder sb = new StringBuilder("");
-                for( String s : possiblePackageAndClass.substring(0, liod).split("\\.")){
-                    sb.append(scapeName(s));
-                    sb.append(".");
-                }
-                sb.delete(sb.length()-1, sb.length());
-                String packageName = sb.toString();
-                String previousLine = generatedSource.get(generatedSource.size() - 1);
-                String putBeforeClass = "";
-                if( previousLine.startsWith("/*annotation*/")){
-                    generatedSource.remove(generatedSource.size()-1);
-                    putBeforeClass = previousLine;
-
-
-                }
-                generatedSource.add(String.format("package %s;%n", packageName));
-                String extendsOrImplements = isInterface( possibleSuperClass ) ?
-                        "implements" :
-                        "extends";
-                String className = scapeName(possibleClass);
-                //TODO: solve what to do with public/nonpublic class in the same source file
-                generatedSource.add(String.format("/*import */import ryz.lang.Extensions;%n"));
-                generatedSource.add(String.format("/*import static*/import static ryz.lang.Extensions.*;%n"));
-                generatedSource.add(String.format("/*import static*/import static java.lang.System.out;%n"));
-                generatedSource.add(String.format(
-                        "%s" + // probably a class annotation
-                        "public class %s %s %s { %n" +
-                        "    //private final %s self = this;%n",
-                        putBeforeClass,
-                        className,
-                        extendsOrImplements,
-                        scapeName(possibleSuperClass),
-                        className));
-                this.currentClass().packageName(packageName);
-                this.currentClass().className(className);
+                superClass = scapeName(type.name);
             }
         }
+        if (interfaces.length() == 0) {
+            return "extends " + (superClass == null ? "java.lang.Object" : superClass);
+        }
+        return (superClass == null ? "" : "extends " + superClass + " ") + "implements " + interfaces;
     }
 
     private boolean isInterface(String clazz) {
-        try {
-            logger.fine(clazz);
-            Class c = Class.forName(clazz);
-            return c.isInterface();
-        } catch (ClassNotFoundException e) {
-            return !clazz.startsWith("java.lang")
-                        && isInterface("java.lang." + clazz);
+        logger.fine(clazz);
+        ClassPathIndex classPath = currentClass().classPath();
+        if (classPath.exists(clazz)) {
+            return classPath.isInterface(clazz);
         }
+        return !clazz.startsWith("java.lang")
+                    && classPath.isInterface("java.lang." + clazz);
     }
 
 }
 class MultilineStringTransformer extends LineTransformer {
 
-    private final String indentation;
+    private String indentation;
     private boolean atLestOneLineProcessed = false;
 
-    public MultilineStringTransformer(RyzClassState state, int indentation) {
+    public MultilineStringTransformer(RyzClassState state) {
         super(state);
+    }
+
+    void start(int indentation) {
         StringBuilder builder = new StringBuilder();
         for( int i = 0 ; i < indentation ; i++ ) {
             builder.append(" ");
         }
         this.indentation = builder.toString();
-
+        this.atLestOneLineProcessed = false;
     }
 
     @Override
@@ -365,6 +408,14 @@ class CommentTransformer extends LineTransformer {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.startsWith("/*")
+            || line.startsWith("//")
+            || line.endsWith("*/")
+            || currentClass().state() instanceof InsideCommentState;
+    }
+
     @Override
     public void transform(String line, List<String> generatedSource) {
         if( line.startsWith("/*")
@@ -387,6 +438,11 @@ class ClosingKeyTransformer extends LineTransformer {
          super(state);
      }
 
+     @Override
+     boolean accepts(SourceLine line) {
+         return line.startsWith("}");
+     }
+
      @Override
      public void transform(String line, List<String> generatedSource) {
         if( line.startsWith("}")) { // or ends with }
@@ -394,8 +450,9 @@ class ClosingKeyTransformer extends LineTransformer {
             String indentation;
             if( currentClass().state() instanceof InsideBlockState ) { 
                  indentation = "/*ib*/";
+                 String closing = ((InsideBlockState) currentClass().state()).closing(line);
                  this.currentClass().closeKey();
-                 generatedSource.add(indentation +line + ";"+lineSeparator);
+                 generatedSource.add(indentation + closing + lineSeparator);
             } else if( currentClass().state() instanceof InsideMethodState ) { 
                 indentation = "    ";
                 generatedSource.add(indentation +line + lineSeparator);
@@ -413,11 +470,16 @@ class ConstructorTransformer extends LineTransformer {
 
     //TODO: use a single pattern
     // hola() {
-    private final Pattern voidMethodPattern  = Pattern.compile("[+#~-]??\\s*([\\$\\w]+)\\((.*)\\)\\s*\\{");
+    private static final Pattern voidMethodPattern  = Pattern.compile("[+#~-]??\\s*([\\$\\w]+)\\((.*)\\)\\s*\\{");
     ConstructorTransformer(RyzClassState state) {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.isMethodDefinition() && line.isCapitalized();
+    }
+
 
     @Override
     public void transform(String line, List<String> generatedSource) {
@@ -448,18 +510,25 @@ class MethodTransformer extends LineTransformer {
 
     //TODO: use a single pattern
     // hola( *parameter_list_goes_here* ):String{
-    private final Pattern methodPattern      = Pattern.compile("[+#~-]??\\s*([\\$\\w]+)\\s*\\((.*)\\)\\s*:\\s*(\\w+)\\s*\\{");
+    private static final Pattern methodPattern      = Pattern.compile("[+#~-]??\\s*([\\$\\w]+)\\s*\\((.*)\\)\\s*:\\s*(\\w+)\\s*\\{");
     // __ hola() : String {
-    private final Pattern classMethodPattern = Pattern.compile("[+#~-]??\\s*_{2}\\s*([\\$\\w]+)\\s*\\((.*)\\)\\s*:\\s*(\\w+)\\s*\\{");
+    private static final Pattern classMethodPattern = Pattern.compile("[+#~-]??\\s*_{2}\\s*([\\$\\w]+)\\s*\\((.*)\\)\\s*:\\s*(\\w+)\\s*\\{");
     // hola() {
-    private final Pattern voidMethodPattern  = Pattern.compile("[+#~-]??\\s*([\\$\\w]+)\\s*\\((.*)\\)\\s*\\{");
+    private static final Pattern voidMethodPattern  = Pattern.compile("[+#~-]??\\s*([\\$\\w]+)\\s*\\((.*)\\)\\s*\\{");
     // __ hola() {
-    private final Pattern voidClassMethodPattern = Pattern.compile("[+#~-]??\\s*_{2}\\s*([\\$\\w]+)\\s*\\((.*)\\)\\s*\\{");
+    private static final Pattern voidClassMethodPattern = Pattern.compile("[+#~-]??\\s*_{2}\\s*([\\$\\w]+)\\s*\\((.*)\\)\\s*\\{");
 
     MethodTransformer(RyzClassState state) {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        // scapeName turns "Int" into "int"
+        return line.isMethodDefinition()
+            && ( !line.isCapitalized() || line.name().equals("Int") );
+    }
+
 
     @Override
     public void transform(String line, List<String> generatedSource) {
@@ -532,12 +601,17 @@ class MethodTransformer extends LineTransformer {
 // when returning from closures
 class ReturnTransformer extends LineTransformer {
     //TODO: fixme, shouldn't need  ^ to indicate return in regular cases only from early returns
-    private final Pattern returnPattern = Pattern.compile("\\^\\s+(.+)");
+    private static final Pattern returnPattern = Pattern.compile("\\^\\s+(.+)");
 
     ReturnTransformer(RyzClassState state) {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.startsWith("^");
+    }
+
     @Override
     public void transform(String line, List<String> generatedSource) {
         Matcher m = returnPattern.matcher(line);
@@ -548,18 +622,45 @@ class ReturnTransformer extends LineTransformer {
     }
 }
 class InlineBlockTransformer extends LineTransformer {
-    // TODO: Handle primitive int he "run" signature when block's parametrized type is Integer
-    // eg. new Block0<Void,Integer>(){ public Void run( int i ) { return null; }};
+    // Blocks with primitive parameters or return type use the specialized interfaces
+    // eg. new IntBlock1<Void >(){ public Void run( int i ) { return null; }};
     //something.toString(somethingElse)
     private static final Pattern statementPattern = Pattern.compile(
             "((\\w+)\\s*(\\.\\s*[\\$\\w]+)*)\\s*\\(\\s*" +
                    //(\((.*)\)|\((.*)\)\s*:\s*((\w+)))
                     "(\\((.*)\\)|\\((.*)\\)\\s*:\\s*((\\w+))|\\s*)\\s*\\{");
+    // whileTrue(():Boolean{ list.size() .> ( 0 ) }, {
+    // the condition is a single expression, a block with statements is not expanded
+    private static final Pattern whileTruePattern = Pattern.compile(
+            "whileTrue\\s*\\(\\s*\\(\\s*\\)\\s*:\\s*(?:Bool|Boolean)\\s*\\{([^{};]*)\\}\\s*,\\s*\\{");
+    // The ryz.lang.Extensions methods expanded to java statements when their block is a literal
+    // eg. value.ifTrue({ ... }) is: if( value ) { ... }
+    private static final Set<String> controlFlowMethods = new HashSet<String>(Arrays.asList(
+            "ifTrue", "ifFalse", "isTrue$qm", "isFalse$qm", "notNull$qm", "isNull$qm", "each"));
+    private static final Set<String> booleanTypes = new HashSet<String>(Arrays.asList(
+            "boolean", "Boolean", "java.lang.Boolean"));
+    private static final Set<String> primitiveTypes = new HashSet<String>(Arrays.asList(
+            "boolean", "byte", "char", "short", "int", "long", "float", "double"));
+    private static final Set<String> collectionTypes = new HashSet<String>(Arrays.asList(
+            "Iterable", "Collection", "List", "ArrayList", "LinkedList", "Set", "HashSet",
+            "LinkedHashSet", "TreeSet", "SortedSet", "Queue", "Deque", "ArrayDeque"));
 
     InlineBlockTransformer(RyzClassState state) {
         super(state);
     }
+
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.isInvocationWithBlock();
+    }
     public void transform(String line, List<String> generatedSource) {
+        Matcher w = whileTruePattern.matcher(line);
+        if( w.matches() && closesInvocation() && keepsScope(Collections.<ParameterInfo>emptyList()) ) {
+            currentClass().insideBlock(InsideBlockState.INLINE);
+            currentClass().innerClassEliminated();
+            generatedSource.add(String.format("    /*inline*/ while( %s ) {%n", w.group(1).trim()));
+            return;
+        }
         Matcher m = statementPattern.matcher(line);
         if( m.matches() ) {
             logger.finest(m.pattern().toString());
@@ -574,23 +675,149 @@ class InlineBlockTransformer extends LineTransformer {
                 indexParams = 4;
             }
             if (m.group(7) != null) {
-                returnType = m.group(7);
+                returnType = scapeName(m.group(7));
                 indexParams = 6;
             }
             String parameters = transformParameters(m.group(indexParams));
-            List<ParameterInfo> parameterInfo = ParameterInfo.parse(parameters);
+            BlockType blockType = BlockType.of(ParameterInfo.parse(parameters), returnType);
             logger.fine("parameters " + parameters);
             logger.fine("line matched " + line);
-            currentClass().insideBlock(String.format("%s:%s",parameters,returnType));
+            String statement = "Void".equals(returnType)
+                    ? inlineStatement(m.group(1), ParameterInfo.parse(parameters))
+                    : null;
+            if( statement != null ) {
+                currentClass().insideBlock(InsideBlockState.INLINE);
+                currentClass().innerClassEliminated();
+                generatedSource.add(statement);
+                return;
+            }
+            // a lambda can't use the names of the method for its parameters, a class can
+            boolean lambda = currentClass().lambdas()
+                    && !declaresLocalName(ParameterInfo.parse(parameters));
+            if( lambda ) {
+                currentClass().innerClassEliminated();
+            }
+            currentClass().insideBlock(blockType.signature(parameters, lambda));
             generatedSource.add(String.format(
-                    "    /*invocationwithblock*/ %s(new ryz.lang.block.Block%s<%s %s>(){%n    public %s run(%s){%n",
+                    "    /*invocationwithblock*/ %s(%s",
                     m.group(1),
-                    parameterInfo.size(),
-                    returnType,
-                    ParameterInfo.getTypes(parameterInfo),
-                    returnType,
-                    parameters));
+                    blockType.literal(parameters, lambda)));
+        }
+    }
+
+    /**
+     * Expands the invocation of a control flow method of ryz.lang.Extensions
+     * into the java statement that opens the block, so no block object is created.
+     * @param invocation - The receiver and the method, like: value.ifTrue
+     * @param parameters - The parameters of the block
+     * @return the java statement or null if the invocation has to call the method
+     */
+    private String inlineStatement(String invocation, List<ParameterInfo> parameters) {
+        int dot = invocation.lastIndexOf('.');
+        if( dot < 0 ) {
+            return null;
+        }
+        String receiver = invocation.substring(0, dot).trim();
+        String method = invocation.substring(dot + 1).trim();
+        if( !controlFlowMethods.contains(method) || !receiver.matches("\\w+") ) {
+            return null;
+        }
+        String type = "true".equals(receiver) || "false".equals(receiver)
+                ? "boolean"
+                : currentClass().symbols().type(receiver);
+        if( type == null || !closesInvocation() || !keepsScope(parameters) ) {
+            return null;
+        }
+        if( method.equals("each") ) {
+            return forEachStatement(receiver, type, parameters);
+        }
+        if( !parameters.isEmpty() ) {
+            return null;
+        }
+        if( method.equals("notNull$qm") || method.equals("isNull$qm") ) {
+            if( primitiveTypes.contains(type) ) {
+                return null;
+            }
+            return String.format("    /*inline*/ if( %s %s null ) {%n",
+                    receiver, method.equals("notNull$qm") ? "!=" : "==");
+        }
+        if( !booleanTypes.contains(type) ) {
+            return null;
+        }
+        if( method.equals("ifFalse") || method.equals("isFalse$qm") ) {
+            return String.format("    /*inline*/ if( !%s ) {%n", receiver);
+        }
+        return String.format("    /*inline*/ if( %s ) {%n", receiver);
+    }
+
+    /**
+     * Arrays are iterated with their element type, collections with Object
+     * casting each element to the type of the block parameter.
+     */
+    private String forEachStatement(String receiver, String type, List<ParameterInfo> parameters) {
+        if( parameters.size() != 1 ) {
+            return null;
+        }
+        String element;
+        type = type.trim();
+        if( type.endsWith("[]") ) {
+            element = type.substring(0, type.length() - 2).trim();
+        } else if( type.endsWith("...") ) {
+            element = type.substring(0, type.length() - 3).trim();
+        } else if( collectionTypes.contains(type.replaceAll("<.*>", "").replaceAll(".*\\.", "")) ) {
+            element = "Object";
+        } else {
+            return null;
         }
+        ParameterInfo parameter = parameters.get(0);
+        if( element.equals(parameter.type()) ) {
+            return String.format("    /*inline*/ for( %s %s : %s ) {%n",
+                    parameter.type(), parameter.name(), receiver);
+        }
+        if( primitiveTypes.contains(element) || primitiveTypes.contains(parameter.type()) ) {
+            return null;
+        }
+        return String.format("    /*inline*/ for( Object %2$s$ : %3$s ) { %1$s %2$s = (%1$s) %2$s$;%n",
+                parameter.type(), parameter.name(), receiver);
+    }
+
+    /**
+     * Whether the block means the same as the body of a java statement: a
+     * return in it would return from the method instead of the block, and
+     * its parameters would clash with the names of the method.
+     */
+    private boolean keepsScope(List<ParameterInfo> parameters) {
+        if( declaresLocalName(parameters) ) {
+            return false;
+        }
+        for( String line : currentClass().blockLines() ) {
+            if( line.startsWith("^") ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a parameter of the block has the name of a parameter
+     *         or variable of the method.
+     */
+    private boolean declaresLocalName(List<ParameterInfo> parameters) {
+        for( ParameterInfo parameter : parameters ) {
+            if( currentClass().symbols().isLocal(parameter.name()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the block opened by this line is closed by a line like: })
+     *         so the invocation has nothing after the block
+     */
+    private boolean closesInvocation() {
+        String closing = currentClass().closingLine();
+        return closing != null && closing.matches("\\}\\s*\\)");
     }
 }
 
@@ -603,11 +830,18 @@ class StatementTransformer extends LineTransformer {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.isInvocation();
+    }
+
     @Override
     public void transform(String line, List<String> generatedSource) {
         Matcher m = statementPattern.matcher(line);
         if( m.matches() ) {
-            logger.finest(currentClass().className() +" variables: "+ currentClass().variables().toString());
+            if( logger.isLoggable(Level.FINEST)) {
+                logger.finest(currentClass().className() +" variables: "+ currentClass().symbols());
+            }
 
             String expression = checkObjectInitialization(line);
 
@@ -621,58 +855,24 @@ class StatementTransformer extends LineTransformer {
                     expression));
         }
     }
-    private String currentMethod() {
-       return currentClass().methods().isEmpty() ? "---" : currentClass().methods().get( currentClass().methods().size()-1);
-    }
     private boolean isBlockInvocation( String methodInvocationName ) {
-        if( methodInvocationName == null ) {
-            return false;
-        }
-        String possibleBlock = methodInvocationName + ":ryz.lang.block.Block";
-        try {
-                return containsDeclaration( currentClass().variables().get("instance"), possibleBlock)
-                        || containsDeclaration(currentClass().variables().get(currentMethod()), possibleBlock);
-        }  catch( NullPointerException npe ) {
-            // I'm really sorry for this,
-            // but I'll fix it, I promise
-            // TODO: replace Npe catch by
-            // extracting this method into
-            // the class that has the state
-            //information
-            // The NPE may originate if there are no
-            // methods, or we are not inside a method
-            return false;
-        }
-
-    }
-
-    /** Checks if the possible block has already been declared in the list.
-     * Since blocks types will start with ryz.lang.block.Block"N" where
-     * N is the number of parameters received, this method checks
-     * startsWith instead of contains.
-     * @param list The list where to find the block name. This list should
-     * be taked from either the current class atttributes or methods.
-     * @param possibleBlock - The name to search for.
-     * @return true if eny of the elements of the list start with the name of
-     * the possible list.
-     */
-    private boolean containsDeclaration( List<String> list, String possibleBlock) {
-        for (String s : list) {
-            if( s.startsWith(possibleBlock)) {
-                return true;
-            }
-        }
-        return false;
+        return methodInvocationName != null
+                && currentClass().symbols().isBlock( methodInvocationName );
     }
 }
 class SimpleAssignmentTransformer extends LineTransformer {
 
-    private final Pattern assignPattern = Pattern.compile("(\\w+\\s*=\\s*(?!(true|false)$)\\w+\\s*)");
+    private static final Pattern assignPattern = Pattern.compile("(\\w+\\s*=\\s*(?!(true|false)$)\\w+\\s*)");
 
     SimpleAssignmentTransformer(RyzClassState state) {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.isAssignment();
+    }
+
     @Override
     public void transform(String line, List<String> generatedSource) {
         Matcher m = assignPattern.matcher(line);
@@ -686,11 +886,16 @@ class SimpleAssignmentTransformer extends LineTransformer {
 //TODO: watchout, this may eventually process anything
 class SingleValueLineTransformer extends LineTransformer {
 
-    private final Pattern singleValuePattern = Pattern.compile("\\w+");
+    private static final Pattern singleValuePattern = Pattern.compile("\\w+");
     public SingleValueLineTransformer(RyzClassState state) {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.isSingleValue();
+    }
+
     @Override
     public void transform(String line, List<String> generatedSource) {
 
@@ -702,12 +907,17 @@ class SingleValueLineTransformer extends LineTransformer {
 }
 
 class AnnotationTransformer extends LineTransformer {
-    private final Pattern annotationPattern = Pattern.compile("@[A-Z]\\w+\\s*(\\(.*\\))?.*");
+    private static final Pattern annotationPattern = Pattern.compile("@[A-Z]\\w+\\s*(\\(.*\\))?.*");
 
     AnnotationTransformer(RyzClassState state) {
         super(state);
     }
 
+    @Override
+    boolean accepts(SourceLine line) {
+        return line.startsWith("@");
+    }
+
     @Override
     public void transform(String line, List<String> generatedSource) {
         Matcher m = annotationPattern.matcher( line );
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replaces the invocations of the operator methods of
+ * {@link ryz.lang.Extensions} with the java operators when both operands
+ * are known to be primitives, so <code>a .$plus( 1 ) .$lt( b )</code> with
+ * <code>a</code> and <code>b</code> declared as Int becomes
+ * <code>((a + 1) < b)</code> instead of needing a javac round to be turned
+ * into static calls.
+ * <p/>
+ * The operands recognized are int literals, <code>true</code>,
+ * <code>false</code>, the names declared as int or boolean and the
+ * operations already replaced. Anything else, or an operation whose result
+ * is used as a receiver, is left for javac.
+ */
+final class OperatorIntrinsics {
+
+    private static final String INT = "int";
+    private static final String BOOLEAN = "boolean";
+
+    private static final Map<String, Operator> operators = new HashMap<String, Operator>();
+    static {
+        arithmetic("$plus", "+");
+        arithmetic("$minus", "-");
+        arithmetic("$star", "*");
+        arithmetic("$slash", "/");
+        arithmetic("$percent", "%");
+        comparison("$lt", "<");
+        comparison("$lt$eq", "<=");
+        comparison("$gt", ">");
+        comparison("$gt$eq", ">=");
+        comparison("$em$eq", "!=");
+        // the extension methods evaluate both operands, so do & and |
+        operators.put("$amp$amp", new Operator("&", BOOLEAN, BOOLEAN));
+        operators.put("$bar$bar", new Operator("|", BOOLEAN, BOOLEAN));
+    }
+
+    private static void arithmetic(String name, String symbol) {
+        operators.put(name, new Operator(symbol, INT, INT));
+    }
+
+    private static void comparison(String name, String symbol) {
+        operators.put(name, new Operator(symbol, INT, BOOLEAN));
+    }
+
+    private final String line;
+    private final SymbolTable symbols;
+    // the expression and type of the last operand or chain parsed
+    private String expression;
+    private String type;
+
+    private OperatorIntrinsics(String line, SymbolTable symbols) {
+        this.line = line;
+        this.symbols = symbols;
+    }
+
+    /**
+     * @param line - a line of generated java code
+     * @param symbols - the names visible from the line
+     * @return the line with the operations replaced or the same line if
+     *         there was nothing to replace.
+     */
+    static String inline(String line, SymbolTable symbols) {
+        if (line.indexOf('$') < 0) {
+            return line;
+        }
+        return new OperatorIntrinsics(line, symbols).inline();
+    }
+
+    private String inline() {
+        StringBuilder result = null;
+        int copied = 0;
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = skipLiteral(i, length);
+            } else if (line.startsWith("/*", i)) {
+                int close = line.indexOf("*/", i + 2);
+                i = close < 0 ? length : close + 2;
+            } else if (Character.isJavaIdentifierPart(c)) {
+                int end = isOperandStart(i) ? chain(i, length, false) : -1;
+                if (end > 0) {
+                    if (result == null) {
+                        result = new StringBuilder(length);
+                    }
+                    result.append(line, copied, i).append(expression);
+                    copied = end;
+                    i = end;
+                } else {
+                    i = word(i, length);
+                }
+            } else {
+                i++;
+            }
+        }
+        if (result == null) {
+            return line;
+        }
+        return result.append(line, copied, length).toString();
+    }
+
+    /**
+     * Parses an operand followed by operator invocations.
+     *
+     * @param whole - whether the chain must take everything up to end
+     * @return where the chain ends or -1 if nothing can be replaced.
+     */
+    private int chain(int start, int end, boolean whole) {
+        int i = operand(start, end, whole);
+        if (i < 0) {
+            return -1;
+        }
+        int operations = 0;
+        while (true) {
+            int dot = spaces(i, end);
+            if (dot == end || line.charAt(dot) != '.') {
+                break;
+            }
+            int nameStart = spaces(dot + 1, end);
+            int nameEnd = word(nameStart, end);
+            Operator operator = nameEnd > nameStart
+                    ? operators.get(line.substring(nameStart, nameEnd)) : null;
+            int open = spaces(nameEnd, end);
+            if (operator == null || !operator.operand.equals(type)
+                    || open == end || line.charAt(open) != '(') {
+                // the result is used as a receiver
+                return -1;
+            }
+            int close = closing(open, end);
+            if (close < 0) {
+                return -1;
+            }
+            String left = expression;
+            if (chain(spaces(open + 1, close), trimEnd(open + 1, close), true) < 0
+                    || !operator.operand.equals(type)) {
+                return -1;
+            }
+            expression = "(" + left + " " + operator.symbol + " " + expression + ")";
+            type = operator.result;
+            operations++;
+            i = close + 1;
+        }
+        if (whole && spaces(i, end) != end) {
+            return -1;
+        }
+        return operations > 0 || whole ? i : -1;
+    }
+
+    /**
+     * Parses a literal or a declared name and sets its type.
+     *
+     * @param signed - whether a negative literal is allowed
+     * @return where the operand ends or -1 if it is not a primitive.
+     */
+    private int operand(int start, int end, boolean signed) {
+        int i = start;
+        if (signed && i < end && line.charAt(i) == '-') {
+            i++;
+        }
+        int wordEnd = word(i, end);
+        if (wordEnd == i) {
+            return -1;
+        }
+        String word = line.substring(start, wordEnd);
+        if (isDigits(i, wordEnd)) {
+            // 5.$plus would be a double
+            if (wordEnd < end && line.charAt(wordEnd) == '.') {
+                return -1;
+            }
+            type = INT;
+        } else if (i > start) {
+            return -1;
+        } else if (word.equals("true") || word.equals("false")) {
+            type = BOOLEAN;
+        } else {
+            String declared = symbols.type(word);
+            type = declared == null ? null : declared.trim();
+            if (!INT.equals(type) && !BOOLEAN.equals(type)) {
+                return -1;
+            }
+        }
+        expression = word;
+        return wordEnd;
+    }
+
+    /**
+     * Whether a name starting here is not a member of something else.
+     */
+    private boolean isOperandStart(int i) {
+        int before = i - 1;
+        while (before >= 0 && line.charAt(before) <= ' ') {
+            before--;
+        }
+        return i == 0 || (!Character.isJavaIdentifierPart(line.charAt(i - 1))
+                && (before < 0 || line.charAt(before) != '.'));
+    }
+
+    private boolean isDigits(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) < '0' || line.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int word(int i, int end) {
+        while (i < end && Character.isJavaIdentifierPart(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private int spaces(int i, int end) {
+        while (i < end && line.charAt(i) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * @return the position of the parenthesis that closes the one at open
+     *         or -1 if it is not in the line.
+     */
+    private int closing(int open, int end) {
+        int depth = 0;
+        for (int i = open; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = skipLiteral(i, end) - 1;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position after the string or char literal starting at i.
+     */
+    private int skipLiteral(int i, int end) {
+        char quote = line.charAt(i);
+        for (i++; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private static final class Operator {
+        final String symbol;
+        final String operand;
+        final String result;
+
+        Operator(String symbol, String operand, String result) {
+            this.symbol = symbol;
+            this.operand = operand;
+            this.result = result;
+        }
+    }
+}
@@ -89,6 +89,20 @@ class ParameterInfo  {
         }
         return builder.toString();
     }
+    /**
+     * @return the type as declared, primitives are not wrapped
+     */
+    String type() {
+        return this.type;
+    }
+
+    /**
+     * @return the name of the parameter
+     */
+    String name() {
+        return this.name;
+    }
+
     private String getType() {
         if( wrappersMap.containsKey( this.type ) ) {
             return wrappersMap.get( this.type );
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.List;
+
+import static ryz.compiler.Token.Kind.*;
+
+/**
+ * A recursive descent parser for the class headers of Ryz source code:
+ * <pre>
+ * header : qualifiedName ( ':' type ( ',' type )* )? '{'
+ * type   : qualifiedName '*'?
+ * </pre>
+ * The members and statements are still recognized a line at a time by
+ * the {@link LineTransformer}s.
+ */
+class Parser {
+
+    private final List<Token> tokens;
+    private int position;
+
+    Parser( CharSequence source ) {
+        this.tokens = new Lexer( source ).tokens();
+    }
+
+    /**
+     * Parses only the header of a class, what follows the <code>{</code> is
+     * ignored.
+     *
+     * @return the class declared at the start of the source
+     * @throws SyntaxError - If the source doesn't start with a class header
+     */
+    Ast.ClassDeclaration classHeader() {
+        skipNewLines();
+        Token start = peek();
+        String qualifiedName = qualifiedName();
+        int dot = qualifiedName.lastIndexOf( '.' );
+        Ast.ClassDeclaration declaration = new Ast.ClassDeclaration( start,
+                dot < 0 ? "" : qualifiedName.substring( 0, dot ),
+                qualifiedName.substring( dot + 1 ) );
+        if ( acceptOperator( ":" ) ) {
+            do {
+                declaration.supertypes.add( type() );
+            } while ( accept( COMMA ) );
+        }
+        expect( LEFT_BRACE );
+        return declaration;
+    }
+
+    private Ast.TypeReference type() {
+        Token start = peek();
+        String name = qualifiedName();
+        return new Ast.TypeReference( start, name, acceptOperator( "*" ) );
+    }
+
+    private String qualifiedName() {
+        StringBuilder name = new StringBuilder( expect( IDENTIFIER ).text );
+        while ( peek().is( DOT ) && peek( 1 ).is( IDENTIFIER ) ) {
+            position++;
+            name.append( '.' ).append( next().text );
+        }
+        return name.toString();
+    }
+
+    private void skipNewLines() {
+        while ( peek().is( NEWLINE ) ) {
+            position++;
+        }
+    }
+
+    private Token expect( Token.Kind kind ) {
+        Token token = next();
+        if ( !token.is( kind ) ) {
+            throw new SyntaxError( "Expected " + kind, token );
+        }
+        return token;
+    }
+
+    private boolean accept( Token.Kind kind ) {
+        if ( peek().is( kind ) ) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptOperator( String operator ) {
+        if ( peek().isOperator( operator ) ) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private Token next() {
+        Token token = peek();
+        if ( !token.is( EOF ) ) {
+            position++;
+        }
+        return token;
+    }
+
+    private Token peek() {
+        return peek( 0 );
+    }
+
+    private Token peek( int offset ) {
+        return tokens.get( Math.min( position + offset, tokens.size() - 1 ) );
+    }
+}
@@ -30,34 +30,36 @@ package ryz.compiler;
 
 
 import javax.tools.DiagnosticCollector;
-import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
-import javax.tools.StandardJavaFileManager;
-import javax.tools.StandardLocation;
-import javax.tools.ToolProvider;
 import javax.tools.Diagnostic;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static java.lang.System.err;
 
 
 /**
@@ -74,46 +76,108 @@ public class RyzC {
     private static final String CATCH_OR_THROW    = "compiler.err.unreported.exception.need.to.catch.or.throw";
     private static final String CANT_DEREF        = "compiler.err.cant.deref";
     private static final String CANT_RESOLVE      = "compiler.err.cant.resolve.location";
+    // javac 7 and later report the missing methods with this code
+    private static final String CANT_RESOLVE_ARGS = "compiler.err.cant.resolve.location.args";
     private static final String METH_DOESNT_THROW = "compiler.err.override.meth.doesnt.throw";
     private static final String NEEDS_FINAL       = "compiler.err.local.var.accessed.from.icls.needs.final";
+    // the same for lambdas and, since javac 8, anonymous classes
+    private static final String NOT_EFFECTIVELY_FINAL = "compiler.err.cant.ref.non.effectively.final.var";
+
+    private static final Map<String, String> wrappers = new HashMap<String, String>();
+    static {
+        wrappers.put( "boolean", "Boolean" );
+        wrappers.put( "byte",    "Byte" );
+        wrappers.put( "char",    "Character" );
+        wrappers.put( "short",   "Short" );
+        wrappers.put( "int",     "Integer" );
+        wrappers.put( "long",    "Long" );
+        wrappers.put( "float",   "Float" );
+        wrappers.put( "double",  "Double" );
+    }
 
     private static final List<String> HANDLED_COMPILATION_ERRORS = Arrays.asList(CANT_DEREF,
                                                                          CATCH_OR_THROW,
                                                                          CANT_RESOLVE,
-                                                                         METH_DOESNT_THROW);
+                                                                         CANT_RESOLVE_ARGS,
+                                                                         METH_DOESNT_THROW,
+                                                                         NEEDS_FINAL,
+                                                                         NOT_EFFECTIVELY_FINAL);
 
 
+    /**
+     * How many javac rounds are used by default to fix the generated source.
+     */
+    private static final int DEFAULT_MAX_ROUNDS = 10;
+
     private static final Logger logger = Logger.getLogger( RyzC.class.getName() );
     private static Logger sourceLogger = Logger.getLogger(
                                             "ryz.compiler.RyzC.viewJavaSource" );
-    private static final Map<Character, String> operatorMap = new HashMap<Character, String>() {{
-        put( '+', "$plus" );
-        put( '-', "$minus" );
-        put( '*', "$star" );
-        put( '/', "$slash" );
-        put( '%', "$percent" );
-        put( '<', "$lt" );
-        put( '>', "$gt" );
-        put( '=', "$eq" );
-        put( '!', "$em" );
-        put( '&', "$amp" );
-        put( '^', "$up" );
-        put( '|', "$bar" );
-        put( '?', "$qm" );
-        put( ':', "$colon" );
-        //+ - * / % < > = ! & ^ | ? :
-    }};
-
     public static void main( String[] args ) throws IOException {
         RyzC c = RyzC.getCompiler();
-        c.sourceDirs( new File( "." ) );
-        c.outDir( new File( "." ) );
+        int status;
+        try {
+            status = c.run( args, new File( "." ) );
+        } finally {
+            c.close();
+        }
+        if ( status != 0 ) {
+            System.exit( status );
+        }
+    }
+
+    /**
+     * Compiles the files given in the command line arguments as <code>main</code>
+     * does: <code>[-incremental] [-direct] [-cp classpath] files...</code>
+     * <p/>
+     * The errors are reported to the error stream of this compiler.
+     *
+     * @param args       - The command line arguments
+     * @param workingDir - The directory the relative paths are resolved from
+     * @return 0 if the files were compiled, 1 otherwise.
+     * @throws IOException - If there an IO problem while compiling
+     */
+    int run( String[] args, File workingDir ) throws IOException {
+        sourceDirs( workingDir );
+        outDir( workingDir );
+        // the default classpath is relative to the caller too, not to this process
+        for ( int i = 0 ; i < classPath.length ; i++ ) {
+            if ( !classPath[i].isAbsolute() ) {
+                classPath[i] = new File( workingDir, classPath[i].getPath() );
+            }
+        }
+        for ( ; args.length > 0 ; args = Arrays.copyOfRange( args, 1, args.length ) ) {
+            if ( "-incremental".equals( args[0] ) ) {
+                incremental( true );
+            } else if ( "-direct".equals( args[0] ) ) {
+                directBackend( true );
+            } else {
+                break;
+            }
+        }
         // fixed to 2nd position
-        if ( "-cp".equals( args[0] ) ) {
-            c.classPath( args[1].split( System.getProperty( "path.separator" ) ));
+        if ( args.length > 1 && "-cp".equals( args[0] ) ) {
+            String[] entries = args[1].split( System.getProperty( "path.separator" ) );
+            for ( int i = 0 ; i < entries.length ; i++ ) {
+                if ( !new File( entries[i] ).isAbsolute() ) {
+                    entries[i] = new File( workingDir, entries[i] ).getPath();
+                }
+            }
+            classPath( entries );
             args = Arrays.copyOfRange( args, 2, args.length );
         }
-        c.compile( args );
+        if ( args.length == 0 ) {
+            errorStream().println( "Usage: ryzc [-incremental] [-direct] [-cp classpath] files..." );
+            return 1;
+        }
+        try {
+            return compileFiles( args ) ? 0 : 1;
+        } catch ( CompilationException e ) {
+            errorStream().println( "RyzC: compilation failed" );
+            if ( e.getMessage() != null ) {
+                errorStream().println( e.getMessage() );
+            }
+            return 1;
+        }
     }
 
 
@@ -153,9 +217,69 @@ public class RyzC {
     private File outputDir = new File( "" );
 
     /**
-     * Holds a representation of the Ryz classes compiled during this session.
+     * How many compile sessions this instance has run.
+     */
+    private int sessions;
+
+    /**
+     * Whether to create the class files with the direct backend when possible.
+     */
+    private boolean direct;
+
+    /**
+     * Compiles without javac, created on first use for the current classpath.
+     */
+    private DirectBackend directBackend;
+
+    /**
+     * Whether to skip the files that didn't change since the last compilation.
+     */
+    private boolean incremental;
+
+    /**
+     * How many threads transform the source files.
      */
-    private final List<RyzClass> classes = new ArrayList<RyzClass>();
+    private int threads = 1;
+
+    /**
+     * Transforms the source files when more than one thread is used.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Keeps javac warm between rounds and compilations.
+     */
+    private JavacSession session;
+
+    /**
+     * Whether the session was created by this compiler and should be closed by it.
+     */
+    private boolean ownSession = true;
+
+    /**
+     * Where to report errors, null means System.err.
+     */
+    private PrintStream errorStream;
+
+    /**
+     * Maximum number of javac rounds allowed to fix the generated source code.
+     */
+    private int maxRounds = DEFAULT_MAX_ROUNDS;
+
+    /**
+     * How to fix the generated source code for each handled javac error.
+     */
+    private final Map<String, CompilationErrorHandler> errorHandlers =
+                                new HashMap<String, CompilationErrorHandler>() {
+        private static final long serialVersionUID = 1L;
+    {
+        put( CANT_DEREF,        new ResolveSymbolCompilationErrorHandler() );
+        put( CANT_RESOLVE,      new ResolveSymbolCompilationErrorHandler() );
+        put( CANT_RESOLVE_ARGS, new ResolveSymbolCompilationErrorHandler() );
+        put( METH_DOESNT_THROW, new RemoveExceptionCompilationErrorHandler() );
+        put( NEEDS_FINAL,       new WrapLocalVarsCompilationErrorHandler() );
+        put( NOT_EFFECTIVELY_FINAL, new WrapLocalVarsCompilationErrorHandler() );
+    }};
 
     /**
      * Specify the source path directories for the compiler to use.
@@ -178,6 +302,7 @@ public class RyzC {
             cp.add( new File( aFile ) );
         }
         classPath = cp.toArray( new File[cp.size()] );
+        directBackend = null;
     }
 
     /**
@@ -189,6 +314,88 @@ public class RyzC {
         this.outputDir = output;
     }
 
+    /**
+     * Specify how many times javac may be invoked to fix the generated source
+     * code of a compilation before giving up.
+     *
+     * @param rounds - The maximum number of javac rounds, at least 1
+     */
+    public void maxRounds( int rounds ) {
+        if ( rounds < 1 ) {
+            throw new IllegalArgumentException( "At least one round is needed: " + rounds );
+        }
+        this.maxRounds = rounds;
+    }
+
+    /**
+     * Specify how many threads are used to read and transform the source
+     * files. javac still compiles all the classes together.
+     *
+     * @param threads - The number of threads, 1 transforms the files in the calling thread
+     */
+    public void threads( int threads ) {
+        if ( threads < 1 ) {
+            throw new IllegalArgumentException( "At least one thread is needed: " + threads );
+        }
+        if ( threads != this.threads ) {
+            shutdownExecutor();
+            this.threads = threads;
+        }
+    }
+
+    private synchronized void shutdownExecutor() {
+        if ( executor != null ) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Specify whether the class files are created directly from the
+     * generated source instead of using javac. Batches that use something
+     * the direct backend doesn't support are still compiled with javac.
+     *
+     * @param direct - true to use the direct backend
+     */
+    public void directBackend( boolean direct ) {
+        this.direct = direct;
+    }
+
+    /**
+     * Specify whether only the files that changed since the last compilation
+     * should be compiled. The previous results are kept in a cache
+     * inside the output directory.
+     *
+     * @param incremental - true to use the build cache
+     */
+    public void incremental( boolean incremental ) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Specify where the compiler reports the errors, by default to System.err
+     *
+     * @param errorStream - Where to print the errors, null to use System.err
+     */
+    public void errorStream( PrintStream errorStream ) {
+        this.errorStream = errorStream;
+    }
+
+    private PrintStream errorStream() {
+        return errorStream == null ? System.err : errorStream;
+    }
+
+    /**
+     * Uses the given javac session instead of creating one. The session
+     * belongs to the caller, it is not closed by this compiler.
+     *
+     * @param session - A session for this compiler only while it compiles.
+     */
+    void session( JavacSession session ) {
+        this.session = session;
+        this.ownSession = false;
+    }
+
     /**
      * Compile the .ryz source files.
      *
@@ -196,227 +403,538 @@ public class RyzC {
      * @throws IOException - If there an IO problem while compiling
      */
     public void compile( String ... files ) throws IOException {
-        for ( String file : files ) {
-            File toCompile = validateExists( file );
-            if ( toCompile == null ) {
-                return;
-            }
+        compileFiles( files );
+    }
 
-            RyzClass ryzclass = new RyzClass( file, cleanLines( readLines( toCompile ) ) );
-            classes.add( ryzclass );
-            ryzclass.transformSourceCode();
+    /**
+     * Compile the .ryz source files if all of them exist.
+     *
+     * @param files - The files to be compiled
+     * @return false if a file was not found.
+     * @throws IOException - If there an IO problem while compiling
+     */
+    private boolean compileFiles( String ... files ) throws IOException {
+        File[] toCompile = new File[files.length];
+        for ( int i = 0 ; i < files.length ; i++ ) {
+            toCompile[i] = validateExists( files[i] );
+            if ( toCompile[i] == null ) {
+                return false;
+            }
+        }
+        if ( incremental ) {
+            compileChanged( files, toCompile );
+            return true;
+        }
+        CompileSession compileSession = new CompileSession( ++sessions );
+        try {
+            compileSession.add( transformSourceCode( files, toCompile ) );
+            write( compileSession, createClassDefinition( compileSession.classes(),
+                                                          new HashMap<String, byte[]>() ) );
+        } finally {
+            close( compileSession );
         }
-        createClassDefinition( classes );
+        return true;
     }
 
-
-    //TODO: Move to Utility class when the time comes
-
     /**
-     * This method pre-process the input source file.
-     * This helps to things like putting the single line comment in a separate line
-     * TODO: keep the original line numbre.
+     * Compiles only the files that changed since the last compilation, the
+     * class files of the rest are taken from the build cache.
      *
-     * @param input - The original source code as lines
-     * @return The same original source with small changes to parse it properly.
-     */
-    private List<String> cleanLines( List<String> input ) {
-        List<String> result = trimLines( input );
-        result = replaceSelfWithThis( result );
-        result = splitLineComments( result );
-        result = substituteNonTextMethodsDefinitions( result );
-        result = substituteNonTextMethodsInvocations( result );
-        return result;
-    }
+     * @param files     - The file names as given to compile
+     * @param toCompile - The existing files
+     * @throws IOException - If there an IO problem while compiling
+     */
+    private void compileChanged( String[] files, File[] toCompile ) throws IOException {
+        BuildCache cache = BuildCache.open( new File( outputDir, BuildCache.DIRECTORY ), classPath,
+                                            cacheOptions() );
+        boolean[] changed = cache.changed( toCompile );
+
+        List<String>  changedFiles   = new ArrayList<String>();
+        List<File>    changedSources = new ArrayList<File>();
+        Map<String, byte[]> upToDate = new LinkedHashMap<String, byte[]>();
+        for ( int i = 0 ; i < files.length ; i++ ) {
+            if ( changed[i] ) {
+                changedFiles.add( files[i] );
+                changedSources.add( toCompile[i] );
+            } else {
+                upToDate.putAll( cache.classFiles( toCompile[i] ) );
+            }
+        }
+        logger.fine( "Up to date: " + ( files.length - changedFiles.size() )
+                     + " files, compiling: " + changedFiles );
+        ClassFileManager.restore( outputDir, upToDate );
+        session().written( upToDate.keySet() );
+        if ( changedFiles.isEmpty() ) {
+            return;
+        }
 
-    private String getReplacement( Matcher m ) {
-        String line = m.group( 0 );
-        String methodName = m.group( 1 );
-        StringBuilder sb = new StringBuilder(
-                line.substring( 0, m.start( 1 ) - m.start( 0 ) )
-        );
-        for ( char c : methodName.toCharArray() ) {
-            String mapped = operatorMap.get( c );
-            sb.append( ( mapped == null ?
-                                 c + "" :
-                                 mapped ).replace( "$", "\\$" ) );
+        CompileSession compileSession = new CompileSession( ++sessions );
+        try {
+            compileSession.add( transformSourceCode(
+                    changedFiles.toArray( new String[changedFiles.size()] ),
+                    changedSources.toArray( new File[changedSources.size()] ) ) );
+            update( cache, compileSession, changedSources, upToDate );
+        } finally {
+            close( compileSession );
         }
-        sb.append( line.substring( m.end( 1 ) - m.start( 0 ) ) );
-        return sb.toString();
     }
 
-    //TODO: refactor this method with: @substituteNonTextMethodsDefinitions
-    private List<String> substituteNonTextMethodsInvocations( List<String> input ) {
-        List<String> result = new ArrayList<String>();
-        // The pattern matches for instance: .+ (
-        Pattern pattern =
-                Pattern.compile( "\\.\\s*([+\\-*/%<>=!&^|?:\\w]+)\\s*\\(" );
+    /**
+     * @return what changes the class files besides the sources and the classpath.
+     */
+    private String cacheOptions() {
+        return "direct " + direct
+                + "\nlambdas " + session().supportsLambdas()
+                + "\njava " + System.getProperty( "java.version" );
+    }
 
-        for ( String line : input ) {
-            if ( line.startsWith( "//" ) ) {
-                continue;
-            }
-            Matcher m = pattern.matcher( line );
-            StringBuffer sbf = new StringBuffer();
-            while ( m.find() ) {
-                String replacement = getReplacement( m );
-                logger.finest( "line = " + line
-                             + ", replacement = " + replacement );
-                m.appendReplacement( sbf, replacement );
+    /**
+     * Compiles the changed classes and stores what they produced in the
+     * build cache.
+     */
+    private void update( BuildCache cache, CompileSession compileSession,
+                         List<File> changedSources, Map<String, byte[]> upToDate )
+    throws IOException {
+        List<RyzClass> transformed = compileSession.classes();
+        Map<String, byte[]> classFiles = createClassDefinition( transformed, upToDate );
+        write( compileSession, classFiles );
+
+        for ( int i = 0 ; i < transformed.size() ; i++ ) {
+            RyzClass ryzClass = transformed.get( i );
+            String className = ryzClass.packageName() + "." + ryzClass.className();
+            Map<String, byte[]> produced = new LinkedHashMap<String, byte[]>();
+            for ( Map.Entry<String, byte[]> e : classFiles.entrySet() ) {
+                if ( e.getKey().equals( className )
+                        || e.getKey().startsWith( className + "$" ) ) {
+                    produced.put( e.getKey(), e.getValue() );
+                }
             }
-            m.appendTail( sbf );
-            result.add( sbf.toString() );
+            Set<String> removed = cache.update( changedSources.get( i ),
+                                                getGeneratedSourceCodeFrom( ryzClass ),
+                                                produced );
+            ClassFileManager.delete( outputDir, removed );
         }
-        return result;
     }
 
-    //TODO: refactor this method with: @substituteNonTextMethodsInvocations
-    private List<String> substituteNonTextMethodsDefinitions( List<String> input ) {
-        List<String> result = new ArrayList<String>();
-        Pattern pattern = Pattern.compile( "[+#~-]??\\s*_{0,2}\\s*"
-                                         + "([+\\-*/%<>=!&^|?:\\w]+)\\s*\\(" );
+    private void write( CompileSession compileSession, Map<String, byte[]> classFiles )
+    throws IOException {
+        ClassFileManager.writeTo( outputDir, classFiles );
+        compileSession.produced( classFiles );
+        session().written( classFiles.keySet() );
+        logger.fine( session().toString() );
+    }
+
+    /**
+     * Releases the classes of the given session, the next compilations find
+     * them in the output directory.
+     */
+    private void close( CompileSession compileSession ) {
+        compileSession.close();
+        logger.fine( compileSession.toString() );
+    }
 
-        for ( String line : input ) {
-            if ( line.startsWith( "//" ) ) {
-                continue;
+    /**
+     * The classpath plus the output directory, so the classes written by
+     * previous compilations are visible to the next ones.
+     *
+     * @return the classpath used to compile.
+     */
+    private File[] compileClassPath() {
+        File[] cp = Arrays.copyOf( classPath, classPath.length + 1 );
+        cp[classPath.length] = outputDir.getAbsoluteFile();
+        return cp;
+    }
+
+    /**
+     * Reads and transforms each file into a RyzClass. The files are
+     * independent, so when more than one thread is configured they are
+     * transformed in parallel. The result keeps the order of the files.
+     *
+     * @param files     - The file names as given to compile
+     * @param toCompile - The existing files to read
+     * @return a RyzClass for each file in the same order.
+     * @throws IOException - If a file can't be read
+     */
+    private List<RyzClass> transformSourceCode( final String[] files, final File[] toCompile )
+    throws IOException {
+        List<RyzClass> result = new ArrayList<RyzClass>( files.length );
+        final ClassPathIndex classPathIndex = session().classPathIndex( compileClassPath() );
+        final boolean lambdas = session().supportsLambdas();
+        if ( threads == 1 || files.length == 1 ) {
+            for ( int i = 0 ; i < files.length ; i++ ) {
+                result.add( transformSourceCode( files[i], toCompile[i], classPathIndex, lambdas ) );
             }
-            Matcher m = pattern.matcher( line );
-            StringBuffer sbf = new StringBuffer();
-            if ( m.lookingAt() ) {
-                String replacement = getReplacement( m );
-                logger.finest( "line = " + line
-                            + ", replacement = " + replacement );
-                m.appendReplacement( sbf, replacement );
+            return result;
+        }
+        List<Future<RyzClass>> futures = new ArrayList<Future<RyzClass>>( files.length );
+        for ( int i = 0 ; i < files.length ; i++ ) {
+            final int index = i;
+            futures.add( executor().submit( new Callable<RyzClass>() {
+                public RyzClass call() throws IOException {
+                    return transformSourceCode( files[index], toCompile[index], classPathIndex, lambdas );
+                }
+            } ) );
+        }
+        try {
+            for ( Future<RyzClass> future : futures ) {
+                result.add( future.get() );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while transforming the source code" );
+        } catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            for ( Future<RyzClass> future : futures ) {
+                future.cancel( true );
             }
-            m.appendTail( sbf );
-            result.add( sbf.toString() );
         }
         return result;
     }
 
-    private List<String> trimLines( List<String> input ) {
-        List<String> r = new ArrayList<String>();
-        for ( String s : input ) {
-            r.add( s.trim() );
+    private RyzClass transformSourceCode( String file, File toCompile,
+                                          ClassPathIndex classPathIndex, boolean lambdas )
+    throws IOException {
+        // the lines are read and cleaned while the class is transformed
+        SourceReader lines = new SourceReader( toCompile );
+        try {
+            RyzClass ryzclass = new RyzClass( file, new SourceLines( lines ) );
+            ryzclass.classPath( classPathIndex );
+            ryzclass.lambdas( lambdas );
+            ryzclass.transformSourceCode();
+            return ryzclass;
+        } finally {
+            lines.close();
         }
-        return r;
     }
 
-    private List<String> splitLineComments( List<String> input ) {
-        List<String> trimmed = new ArrayList<String>();
-        for ( String line : input ) {
-            // if line starts with single line comment: "//"
-            // then put that line in the next one.
-            // to avoid problems.
-            // TODO: this may cause problems when reporting line numbers
-            if ( line.contains( "//" ) && !line.startsWith( "//" ) ) {
-                String[] strings = line.split( "\\/\\/" );
-                trimmed.add( strings[0].trim() );
-                trimmed.add( "//" + strings[1].trim() );
-            } else {
-                trimmed.add( line );
-            }
+    /**
+     * The thread pool used to transform the source files, created on first use.
+     *
+     * @return the executor.
+     */
+    private synchronized ExecutorService executor() {
+        if ( executor == null ) {
+            executor = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+                private int count;
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "ryzc-" + ( ++count ) );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
         }
-        return trimmed;
+        return executor;
     }
 
-    private List<String> replaceSelfWithThis( List<String> input ) {
-        List<String> result = new ArrayList<String>();
-        for ( String line : input ) {
-            result.add(line
-                    .replaceAll("(?!.*\\s+self\\s+.*\\\")\\s+self\\s+", " this ")
-                    .replaceAll("self\\.", "this.")
-                    .replaceAll("^self$", "this")
-            );
+    /**
+     * Releases the resources kept between compilations, the compiler can still
+     * be used after this.
+     *
+     * @throws IOException - If the javac file manager can't be closed
+     */
+    public void close() throws IOException {
+        shutdownExecutor();
+        if ( session != null && ownSession ) {
+            session.close();
         }
-        return result;
+        session = null;
+        ownSession = true;
     }
 
+    /**
+     * The javac session used by this compiler, created on first use.
+     *
+     * @return the session.
+     */
+    JavacSession session() {
+        if ( session == null ) {
+            session = new JavacSession();
+        }
+        return session;
+    }
+
+
     /**
      * Compiles a java source code file from the given RyzClass
+     * <p/>
+     * Each javac round that fails with "expected" errors fixes the generated
+     * source code of every class and tries again, until the classes compile,
+     * a round can't fix anything else or the maximum number of rounds is reached.
+     * The classes javac wrote without errors in a failed round are final,
+     * the next rounds compile only the rest against them.
      *
      * @param currentClasses - The class to be transformed into .class file
+     * @param classPathFiles - Class files to be used as part of the classpath
+     * @return the generated class files by binary class name
      * @throws IOException - If it is not possible to write the file
      */
-    private void createClassDefinition( List<RyzClass> currentClasses )
+    private Map<String, byte[]> createClassDefinition( List<RyzClass> currentClasses,
+                                                       Map<String, byte[]> classPathFiles )
     throws IOException {
 
-        // Get the java compiler for this platform
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        if ( compiler == null ) {
-            throw new IllegalStateException( "Couldn't get java compiler. Make "
-                        + "sure the javac is in the execution path. (HINT put "
-                        + "JAVA_HOME/bin before in the path ) JAVA_HOME="
-                        + System.getProperty( "java.home" ) );
+        if ( direct ) {
+            if ( directBackend == null ) {
+                directBackend = new DirectBackend( classPath );
+            }
+            List<String> sources = new ArrayList<String>();
+            for ( RyzClass currentClass : currentClasses ) {
+                sources.add( getGeneratedSourceCodeFrom( currentClass ) );
+            }
+            Map<String, byte[]> classFiles =
+                    directBackend.compile( currentClasses, sources, classPathFiles, outputDir );
+            if ( classFiles != null ) {
+                return classFiles;
+            }
         }
-        StandardJavaFileManager fileManager =
-                compiler.getStandardFileManager( null, null, null );
 
         //TODO: parameterize options
         Iterable<String> options =
                 logger.isLoggable( Level.FINEST ) ? Arrays.asList( "-verbose" ) : null;
 
-        fileManager.setLocation(
-                StandardLocation.CLASS_OUTPUT, Arrays.asList( outputDir )
-        );
+        List<RyzClass> remaining = new ArrayList<RyzClass>( currentClasses );
+        Map<String, byte[]> frozen = new LinkedHashMap<String, byte[]>();
+        for ( int round = 1 ; ; round++ ) {
+            // keep the class files in memory until they are final
+            ClassFileManager fileManager = session().fileManager( compileClassPath() );
+            fileManager.addToClassPath( classPathFiles );
+            fileManager.addToClassPath( frozen );
+            // the source was fixed, remove the checked exceptions
+            fileManager.removeCheckedExceptions( round > 1 );
+
+            DiagnosticCollector<JavaFileObject> collector
+                                        = new DiagnosticCollector<JavaFileObject>();
+            // Compile the files
+            Map<JavaSourceFromString, RyzClass> compilationUnits
+                                    = new LinkedHashMap<JavaSourceFromString, RyzClass>();
+
+            for ( RyzClass currentClass : remaining ) {
+                JavaSourceFromString javaSourceFromString =
+                                 new JavaSourceFromString( currentClass.className(),
+                                        getGeneratedSourceCodeFrom( currentClass ) );
+
+                compilationUnits.put( javaSourceFromString, currentClass );
+            }
 
-        fileManager.setLocation(
-                StandardLocation.CLASS_PATH, Arrays.asList( classPath )
-        );
+            logger.fine( "Round " + round + " compiling "
+                         + compilationUnits.size() + " classes" );
+            boolean succesfullCompilation =
+                    session().compile( fileManager, collector, options,
+                                       compilationUnits.keySet() );
 
-        DiagnosticCollector<JavaFileObject> collector
-                                    = new DiagnosticCollector<JavaFileObject>();
-        // Compile the files
-        List<JavaSourceFromString> compilationUnits
-                                        = new ArrayList<JavaSourceFromString>();
+            if ( ( !succesfullCompilation && logger.isLoggable( Level.FINE ) )
+                    || logger.isLoggable( Level.FINEST ) ) {
+                logger.fine( collector.getDiagnostics().toString() );
+            }
 
-        for ( RyzClass currentClass : currentClasses ) {
-            JavaSourceFromString javaSourceFromString =
-                             new JavaSourceFromString( currentClass.className(),
-                                    getGeneratedSourceCodeFrom( currentClass ) );
+            fileManager.close();
 
+            if ( succesfullCompilation ) {
+                if ( frozen.isEmpty() ) {
+                    return fileManager.classFiles();
+                }
+                frozen.putAll( fileManager.classFiles() );
+                return frozen;
+            }
 
-            compilationUnits.add( javaSourceFromString );
-            //String generatedSourceCode = ;
-            //JavaFileObject source = new JavaSourceFromString(currentClass.className(), generatedSourceCode);
+            // There was a compilation error
+            Map<String, DiagnosticList> diagnosticsMap = toMap( new DiagnosticList(collector.getDiagnostics()) );
+            logger.fine( diagnosticsMap.toString() );
+            // See if the compilation error is "expected"
+            String sourceCode = numberedContent( getGeneratedSourceCodeFrom( remaining ) );
+            compilationException( diagnosticsMap, sourceCode );
+            if ( round >= maxRounds ) {
+                logger.info( "Couldn't fix the source code after " + round
+                             + " rounds " + diagnosticsMap + sourceCode );
+                throw new CompilationException( "Couldn't fix the source code after "
+                                                + round + " rounds " + diagnosticsMap );
+            }
+            freeze( compilationUnits, collector.getDiagnostics(),
+                    fileManager.classFiles(), round, frozen );
+            remaining.retainAll( compilationUnits.values() );
+            // if it is, handle it ( or at least, try to )
+            if ( !fixSourceCode( compilationUnits, diagnosticsMap ) ) {
+                logger.info( "Couldn't fix any of the errors in round " + round
+                             + " " + diagnosticsMap + sourceCode );
+                throw new CompilationException( "Couldn't fix any of the errors "
+                                                + diagnosticsMap );
+            }
         }
+    }
 
-
-        boolean succesfullCompilation =
-                compiler.getTask( null, fileManager, collector, options,
-                                  null, compilationUnits )
-                        .call();
-
-        if ( sourceLogger.isLoggable( Level.FINEST ) ) {
-            //sourceLogger.finest(generatedSourceCode);
+    /**
+     * Takes out of the compilation units those without errors whose class
+     * files javac wrote anyway, their class files are kept as final.
+     *
+     * @param compilationUnits - The compiled sources, the frozen ones are removed
+     * @param diagnostics - Everything javac reported in the round
+     * @param written - The class files javac wrote in the round
+     * @param round - The round number, the first one didn't remove the checked exceptions
+     * @param frozen - Where to add the class files of the frozen units
+     * @throws IOException - If the class files can't be read
+     */
+    private void freeze( Map<JavaSourceFromString, RyzClass> compilationUnits,
+                         List<Diagnostic<? extends JavaFileObject>> diagnostics,
+                         Map<String, byte[]> written,
+                         int round,
+                         Map<String, byte[]> frozen )
+    throws IOException {
+        Set<JavaFileObject> failed = new HashSet<JavaFileObject>();
+        for ( Diagnostic<? extends JavaFileObject> d : diagnostics ) {
+            if ( d.getKind() == Diagnostic.Kind.ERROR ) {
+                if ( d.getSource() == null ) {
+                    // can't tell which unit it belongs to
+                    return;
+                }
+                failed.add( d.getSource() );
+            }
         }
-        if ( ( !succesfullCompilation && logger.isLoggable( Level.FINE ) )
-                || logger.isLoggable( Level.FINEST ) ) {
-            logger.fine( collector.getDiagnostics().toString() );
-            //sourceLogger.fine( numberedContent(generatedSourceCode) );
+        int count = 0;
+        for ( Iterator<Map.Entry<JavaSourceFromString, RyzClass>> i
+                    = compilationUnits.entrySet().iterator() ; i.hasNext() ; ) {
+            Map.Entry<JavaSourceFromString, RyzClass> unit = i.next();
+            String className = unit.getValue().packageName() + "." + unit.getValue().className();
+            if ( failed.contains( unit.getKey() ) || !written.containsKey( className ) ) {
+                continue;
+            }
+            for ( Map.Entry<String, byte[]> e : written.entrySet() ) {
+                if ( e.getKey().equals( className ) || e.getKey().startsWith( className + "$" ) ) {
+                    // the next rounds remove them as javac writes, do the same
+                    frozen.put( e.getKey(), round == 1
+                            ? ClassInstrumentation.removeCheckedExceptions( e.getValue() )
+                            : e.getValue() );
+                }
+            }
+            i.remove();
+            count++;
         }
+        logger.fine( "Round " + round + " froze " + count + " classes" );
+    }
 
-        fileManager.close();
+    /**
+     * Applies the fix of every handled error reported by javac to the source
+     * code of the class where it was reported.
+     * <p/>
+     * The fixes of a class are computed from the end of its source code to the
+     * beginning against the source javac compiled, then spliced together in a
+     * single copy. If a fix overlaps with one already taken it is left for
+     * the next round.
+     *
+     * @param compilationUnits - The compiled sources and the class each one represents
+     * @param diagnosticsMap - The errors reported by javac by error code
+     * @return true if the source code of any class changed.
+     * @throws IOException - should not happen, the sources are in memory
+     */
+    private boolean fixSourceCode( Map<JavaSourceFromString, RyzClass> compilationUnits,
+                                   Map<String, DiagnosticList> diagnosticsMap )
+    throws IOException {
 
-        // If there was a compilation error
-        if ( !succesfullCompilation ) {
-            Map<String, DiagnosticList> diagnosticsMap = toMap( new DiagnosticList(collector.getDiagnostics()) );
-            logger.fine( diagnosticsMap.toString() );
-            // See if the compilation error is "expected"
-            compilationException(diagnosticsMap, numberedContent(getGeneratedSourceCodeFrom(currentClasses)));
-            // if it is, handle it ( or at least, try to )
-            reportException( currentClasses, diagnosticsMap.get(CATCH_OR_THROW));
-            resolveSymbol(   currentClasses, diagnosticsMap.get(CANT_DEREF));
-            resolveSymbol(   currentClasses, diagnosticsMap.get(CANT_RESOLVE));
-            removeException( currentClasses, diagnosticsMap.get(METH_DOESNT_THROW));
-            wrapLocalVars(   currentClasses, diagnosticsMap.get(NEEDS_FINAL));
+        boolean changed = false;
+        for ( Map.Entry<JavaSourceFromString, RyzClass> unit : compilationUnits.entrySet() ) {
+            List<Diagnostic<? extends JavaFileObject>> diagnostics = handledDiagnostics( unit.getKey(), diagnosticsMap );
+            if ( diagnostics.isEmpty() ) {
+                continue;
+            }
+            RyzClass currentClass = unit.getValue();
+            String source = unit.getKey().getCharContent( true ).toString();
+            // the edits from the last to the first
+            List<Edit> edits = new ArrayList<Edit>( diagnostics.size() );
+            int fixedFrom = source.length();
+            for ( Diagnostic<? extends JavaFileObject> diagnostic : diagnostics ) {
+                if ( !currentClass.isNewProblem( diagnostic.getCode(),
+                                                 diagnostic.getStartPosition(),
+                                                 diagnostic.getPosition() ) ) {
+                    // its fix didn't work, doing it again would only repeat the round
+                    logger.fine( "Already fixed: " + diagnostic );
+                    continue;
+                }
+                if ( diagnostic.getEndPosition() > fixedFrom ) {
+                    logger.fine( "Leaving for the next round: " + diagnostic );
+                    continue;
+                }
+                Edit edit = fixError( source, diagnostic, errorHandlers.get( diagnostic.getCode() ) );
+                if ( edit.to > fixedFrom ) {
+                    logger.fine( "Leaving for the next round: " + diagnostic );
+                    continue;
+                }
+                edits.add( edit );
+                currentClass.markError( diagnostic.getCode(),
+                                        (int) diagnostic.getStartPosition(),
+                                        (int) diagnostic.getPosition() );
+                fixedFrom = edit.from;
+            }
+            currentClass.fixSourceCode( splice( source, edits ) );
+            changed |= !source.equals( getGeneratedSourceCodeFrom( currentClass ) );
+        }
+        // Not related to any position, declare the exceptions everywhere
+        if ( diagnosticsMap.get( CATCH_OR_THROW ) != null ) {
+            for ( RyzClass ryzClass : compilationUnits.values() ) {
+                changed |= ryzClass.reportExceptions();
+            }
+        }
+        return changed;
+    }
 
-            // create a new file version and recompile
-            createClassDefinition(currentClasses);
-            // and remove checked exceptions at the end
-            cleanCheckedExceptions(currentClasses);
+    /**
+     * Collects the errors reported for the given compilation unit that can
+     * be fixed with a CompilationErrorHandler sorted from last to first.
+     *
+     * @param unit - The compilation unit where the errors were reported
+     * @param diagnosticsMap - All the errors reported by javac by error code
+     * @return the list of diagnostics, sorted by start position in reverse order.
+     */
+    private List<Diagnostic<? extends JavaFileObject>> handledDiagnostics(
+                                        JavaFileObject unit,
+                                        Map<String, DiagnosticList> diagnosticsMap ) {
+        List<Diagnostic<? extends JavaFileObject>> result = new DiagnosticList();
+        for ( String code : errorHandlers.keySet() ) {
+            DiagnosticList diagnostics = diagnosticsMap.get( code );
+            if ( diagnostics == null ) {
+                continue;
+            }
+            for ( Diagnostic<? extends JavaFileObject> d : diagnostics ) {
+                if ( d.getSource() == unit ) {
+                    result.add( d );
+                }
+            }
         }
+        Collections.sort( result, new Comparator<Diagnostic<? extends JavaFileObject>>() {
+            public int compare( Diagnostic<? extends JavaFileObject> a,
+                                Diagnostic<? extends JavaFileObject> b ) {
+                long diff = b.getStartPosition() - a.getStartPosition();
+                return diff == 0 ? 0 : diff > 0 ? 1 : -1;
+            }
+        } );
+        return result;
+    }
 
+    /**
+     * Copies the source once, replacing the ranges of the edits.
+     *
+     * @param source - The source code javac compiled
+     * @param edits  - Non overlapping edits sorted from the last to the first
+     * @return the fixed source code.
+     */
+    private static String splice( String source, List<Edit> edits ) {
+        int length = source.length();
+        for ( Edit edit : edits ) {
+            length += edit.text.length() - ( edit.to - edit.from );
+        }
+        StringBuilder sb = new StringBuilder( length );
+        int copied = 0;
+        for ( int i = edits.size() - 1 ; i >= 0 ; i-- ) {
+            Edit edit = edits.get( i );
+            sb.append( source, copied, edit.from ).append( edit.text );
+            copied = edit.to;
+        }
+        return sb.append( source, copied, source.length() ).toString();
     }
 
     private String getGeneratedSourceCodeFrom( List<RyzClass> currentClasses ) throws IOException {
@@ -434,7 +952,8 @@ public class RyzC {
                 continue;
             }
             for ( Diagnostic<? extends JavaFileObject> d : diagnosticsMap.get(key)) {
-                if ( d.getKind() == Diagnostic.Kind.NOTE  ) {
+                // only errors stop the compilation, e.g. javac 8 warns about the "_" of the wrapped variables
+                if ( d.getKind() != Diagnostic.Kind.ERROR  ) {
                     continue;
                 }
                 b.append( key );
@@ -444,46 +963,10 @@ public class RyzC {
             }
         }
         if ( b.length() > 0 ) {
+            String diagnostics = b.toString();
             b.append( sourceCode );
             logger.info( b.toString() );
-            throw new CompilationException();
-        }
-    }
-
-    private void cleanCheckedExceptions( List<RyzClass> currentClasses )
-    throws IOException {
-        for ( RyzClass ryzClass : currentClasses ) {
-            ClassInstrumentation.removeCheckedExceptions( ryzClass, outputDir );
-        }
-    }
-
-    private void reportException( List<RyzClass> currentClasses,
-                                  List<Diagnostic<? extends JavaFileObject>> diagnostics ) {
-        if ( diagnostics != null ) {
-            for ( RyzClass ryzClass : currentClasses ) {
-                ryzClass.reportExceptions();
-            }
-        }
-
-    }
-
-    private void resolveSymbol( List<RyzClass> currentClasses,
-                                List<Diagnostic<? extends JavaFileObject>> diagnostics ) {
-        for ( RyzClass ryzClass : currentClasses ) {
-            handleCompilationError(ryzClass, diagnostics, new ResolveSymbolCompilationErrorHandler());
-        }
-    }
-
-    private void removeException( List<RyzClass> currentClasses,
-                                  List<Diagnostic<? extends JavaFileObject>> diagnostics ) {
-        for ( RyzClass ryzClass : currentClasses ) {
-            handleCompilationError(ryzClass, diagnostics, new RemoveExceptionCompilationErrorHandler());
-        }
-    }
-
-    private void wrapLocalVars( List<RyzClass> currentClasses, DiagnosticList diagnostics ) {
-        for ( RyzClass ryzClass : currentClasses ) {
-            handleCompilationError(ryzClass, diagnostics, new WrapLocalVarsCompilationErrorHandler());
+            throw new CompilationException( diagnostics );
         }
     }
 
@@ -506,7 +989,8 @@ public class RyzC {
     }
 
     /**
-     * Createa a string from the current class.
+     * Createa a string from the current class, it is rendered again only if
+     * the class source code changed.
      *
      * @param currentClass - The class where to take the source code from.
      * @return a string with the generated source code.
@@ -514,91 +998,37 @@ public class RyzC {
      */
     private String getGeneratedSourceCodeFrom( RyzClass currentClass ) throws IOException {
         logger.finest( "className=[" + currentClass.className() + "]" );
-        Writer writer = new StringWriter();
-
-        //TODO: move this to the RyzClass
-        // from here
-        String packageString = "";
-        List<String> outputLines = currentClass.outputLines();
-        List<String> toRemove = new ArrayList<String>();
-        boolean packageWritten = false;
-        for ( String s : outputLines ) {
-            if ( s.startsWith( "package" ) && !packageWritten ) {
-                packageString = s;
-                packageWritten = true;
-
-            }
-            if ( s.startsWith( "import" ) ) {
-                toRemove.add( s );
-            }
-        }
-        // Before writing put package and imports at the top
-        outputLines.remove( packageString );
-        outputLines.removeAll( toRemove );
-        outputLines.addAll( 0, toRemove );
-        outputLines.add( 0, packageString );
-        // to here
-
-        for ( String s : outputLines ) {
-            writer.write( s );
-        }
-        writer.close();
-        return writer.toString();
+        return currentClass.outputLines().render();
     }
 
 
     /**
-     * Check if the given class has already have a problem in the same position.
+     * Finds the fix for the piece of source code where the given error was reported.
      *
-     * @param currentClass - The class with the problem
-     * @param diagnostic   - The information of the new problem
-     * @return true if the class have already had the same problem.
-     */
-    private boolean isDifferentProblem( RyzClass currentClass, Diagnostic<? extends JavaFileObject> diagnostic ) {
-        return currentClass.isNewProblem( diagnostic.getCode(),
-                                          diagnostic.getStartPosition(),
-                                          diagnostic.getPosition() );
-    }
-
-    private RyzClass handleCompilationError(RyzClass currentClass,
-                                            List<Diagnostic<? extends JavaFileObject>> diagnostics,
-                                            CompilationErrorHandler handler) {
-        if ( diagnostics == null ) {
-            return currentClass;
-        }
-        for ( Diagnostic<? extends JavaFileObject> diagnostic : diagnostics ) {
-                // Take the source code from the diagnostic
-                StringBuilder sb;
-                try {
-                    sb = new StringBuilder( diagnostic.getSource().getCharContent( true ) );
-                } catch ( IOException e ) {
-                    sb = new StringBuilder();
-                }
-
-                // take information of the error.
-                int startPosition = (int) diagnostic.getStartPosition();
-                int position      = (int) diagnostic.getPosition();
-                int endPosition   = (int) diagnostic.getEndPosition();
-
-                String pieceInQuestion  = sb.substring(startPosition, endPosition);
-                StringBuilder log = new StringBuilder();
-                log.append( "\ndiagnostic.getColumnNumber() = "            + diagnostic.getColumnNumber() );
-                log.append( "\nstartPosition = "                           + startPosition );
-                log.append( "\nposition = "                                + position );
-                log.append( "\nendPosition = "                             + endPosition );
-                log.append( "\nsb.substring(startPosition,endPosition) = " + pieceInQuestion );
-                log.append( "\nsb.substring(startPosition,endPosition) = " + sb.substring(startPosition, position ) );
-                logger.fine( log.toString() );
-
-
-                handler.handle(sb, startPosition, position, endPosition, pieceInQuestion );
-
-                // and finally let the current class take the new source code.
-                currentClass.markError( sb.toString(),
-                                        diagnostic.getCode(),
-                                        startPosition, position );
-        }
-        return currentClass;
+     * @param sb - The source code to fix
+     * @param diagnostic - The error reported by javac
+     * @param handler - The handler that knows how to fix the error
+     * @return the edit that fixes the error.
+     */
+    private Edit fixError( String sb,
+                           Diagnostic<? extends JavaFileObject> diagnostic,
+                           CompilationErrorHandler handler ) {
+        // take information of the error.
+        int startPosition = (int) diagnostic.getStartPosition();
+        int position      = (int) diagnostic.getPosition();
+        int endPosition   = (int) diagnostic.getEndPosition();
+
+        String pieceInQuestion  = sb.substring(startPosition, endPosition);
+        StringBuilder log = new StringBuilder();
+        log.append( "\ndiagnostic.getColumnNumber() = "            + diagnostic.getColumnNumber() );
+        log.append( "\nstartPosition = "                           + startPosition );
+        log.append( "\nposition = "                                + position );
+        log.append( "\nendPosition = "                             + endPosition );
+        log.append( "\nsb.substring(startPosition,endPosition) = " + pieceInQuestion );
+        log.append( "\nsb.substring(startPosition,endPosition) = " + sb.substring(startPosition, position ) );
+        logger.fine( log.toString() );
+
+        return handler.handle(sb, startPosition, position, endPosition, pieceInQuestion );
     }
 
     /**
@@ -620,56 +1050,6 @@ public class RyzC {
         return numberedContent.toString();
     }
 
-    /**
-     * Read the given files as a list of lines
-     *
-     * @param f - the file to read
-     * @return a list of strings each one containing one line.
-     */
-    private List<String> readLines( File f ) {
-        String separator = "\n"; // System.gerProperty("line.separator");
-        return Arrays.asList( readFile( f ).split( separator ) );
-    }
-
-    /**
-     * Read all the file into a single string.
-     *
-     * @param f - the file to read
-     * @return a String with the content of the file
-     */
-    private String readFile( File f ) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream( (int) f.length() );
-        try {
-            copyLarge( new FileInputStream( f ), out );
-            return out.toString( "UTF-8" );
-        } catch ( UnsupportedEncodingException e ) {
-            return "";
-        } catch ( IOException e ) {
-            throw new RuntimeException( e );
-        }
-    }
-
-    /**
-     * Utility method to read all all the input into the outputDir. Use by the
-     * "readFile" method
-     *
-     * @param input  - The input to read from.
-     * @param output - Where to copy the data to.
-     * @return a count of the bytes read.
-     * @throws IOException - If there is an IO problem while reading
-     */
-    private long copyLarge( InputStream input, OutputStream output ) throws IOException {
-        byte[] buffer = new byte[1024];
-        long count = 0;
-        int n;
-        while ( ( n = input.read( buffer ) ) >= 0 ) {
-            output.write( buffer, 0, n );
-            count += n;
-        }
-        return count;
-    }
-
-
     /**
      * Validate the file exists before attempting a compilation.
      * The file is searched through the source path directories.
@@ -689,15 +1069,30 @@ public class RyzC {
             }
         }
         if ( toCompile != null && !toCompile.exists() ) {
-            err.println( "RyzC: file not found " + file );
+            errorStream().println( "RyzC: file not found " + file );
             return null;
         }
         return toCompile;
     }
 
 
+    /**
+     * Replaces the source code from one position to another.
+     */
+    private static final class Edit {
+        final int from;
+        final int to;
+        final String text;
+
+        Edit( int from, int to, String text ) {
+            this.from = from;
+            this.to = to;
+            this.text = text;
+        }
+    }
+
     private abstract class CompilationErrorHandler {
-        public abstract void handle(StringBuilder sb,
+        public abstract Edit handle(String sb,
                                     int startPosition,
                                     int position,
                                     int endPosition,
@@ -713,64 +1108,162 @@ public class RyzC {
      */
     private class ResolveSymbolCompilationErrorHandler extends CompilationErrorHandler {
 
-        public void handle(StringBuilder sb, int startPosition, int position, int endPosition, String pieceInQuestion) {
+        public Edit handle(String sb, int startPosition, int position, int endPosition, String pieceInQuestion) {
             // Put the receiver as the first parameter of the method
             String receiver         = pieceInQuestion.substring( 0, position - startPosition);
             String method           = pieceInQuestion.substring(position - startPosition + 1);
 
 
-            logger.fine( "Size of source before " + sb.toString().length()
+            logger.fine( "Size of source before " + sb.length()
                        + " pieceInQuestion[" + pieceInQuestion + "]" );
             logger.fine( "pieceInQuestion = [" + pieceInQuestion + "]" );
             logger.fine( "receiver = [" + receiver + "]" );
             logger.fine( "method = [" + method + "]" );
-            sb.replace(startPosition, endPosition, method + "(" + receiver );
+            StringBuilder replacement = new StringBuilder( method ).append( '(' ).append( receiver );
 
-            // remove the opening parenthesis
+            // remove the opening parenthesis, the next ones start the first argument
             int p = endPosition;
+            boolean opened = false;
             while ( true ) {
                 char c = sb.charAt( p );
                 if ( Character.isSpaceChar( c ) ) {
+                    replacement.append( c );
+                    p++;
+                } else if ( c == '(' && !opened ) {
+                    opened = true;
                     p++;
-                } else if ( c == '(' ) {
-                    sb.deleteCharAt( p );
                 } else if ( c == ')' ) {
-                    sb.insert( p, " " );
+                    replacement.append( ' ' );
                     break;
                 } else {
-                    sb.insert( p, ',' );
+                    replacement.append( ',' );
                     break;
                 }
             }
+            return new Edit( startPosition, p, replacement.toString() );
         }
     }
 
     private class RemoveExceptionCompilationErrorHandler extends CompilationErrorHandler {
         @Override
-        public void handle(StringBuilder sb, int startPosition, int position, int endPosition, String pieceInQuestion) {
+        public Edit handle(String sb, int startPosition, int position, int endPosition, String pieceInQuestion) {
             logger.finest( "substring.replace(\"throws Exception\",\"\") = "
                     + pieceInQuestion.replace( "throws Exception", "/*rows Excepti*/" ) );
-            sb.replace( startPosition, endPosition,
+            return new Edit( startPosition, endPosition,
                     pieceInQuestion.replace( " throws Exception { ", " /*te*/ {" ) );
 
         }
     }
 
 
+    /**
+     * A local variable assigned inside a block is wrapped in a ryz.lang._, so
+     * the block and the method share it. The declaration holds the wrapper
+     * and every use in the scope of the variable takes the wrapped value.
+     * <p/>
+     * For instance <code>String a = "x"; ... a = "y";</code> becomes
+     * <code>final ryz.lang._&lt;String&gt; a = new ryz.lang._&lt;String&gt;("x"); ... a._ = "y";</code>
+     */
     private class WrapLocalVarsCompilationErrorHandler extends CompilationErrorHandler {
         @Override
-        public void handle(StringBuilder sb, int startPosition, int position, int endPosition, String pieceInQuestion) {
-            sb.replace(startPosition, endPosition, pieceInQuestion + "._" );
+        public Edit handle(String sb, int startPosition, int position, int endPosition, String pieceInQuestion) {
+            String name = pieceInQuestion.trim();
+            Matcher m = Pattern.compile( "([\\w$.]+(?:<[^;=(){}]*>)?(?:\\s*\\[\\s*\\])*)\\s+"
+                                         + Pattern.quote( name ) + "\\s*=\\s*([^;]*);" ).matcher( sb );
+            m.region( 0, startPosition );
+            int from = -1;
+            int declarationEnd = -1;
+            String type = null;
+            String value = null;
+            // the last declaration before the use
+            while ( m.find() ) {
+                from = m.start();
+                declarationEnd = m.end();
+                type = m.group( 1 );
+                value = m.group( 2 );
+            }
+            if ( from < 0 ) {
+                logger.fine( "Not a local variable declared with a value: " + name );
+                return new Edit( startPosition, endPosition, pieceInQuestion );
+            }
+            if ( wrappers.containsKey( type ) ) {
+                type = wrappers.get( type );
+            }
+            StringBuilder replacement = new StringBuilder( String.format(
+                    "final ryz.lang._<%s> %s = new ryz.lang._<%s>( %s );", type, name, type, value.trim() ) );
+            int to = wrapUses( sb, name, declarationEnd, replacement );
+            return new Edit( from, to, replacement.toString() );
+        }
 
+        /**
+         * Copies the source from the given position to the end of the block
+         * where it is, appending "._" to the uses of the variable.
+         *
+         * @return where the block ends.
+         */
+        private int wrapUses( String sb, String name, int from, StringBuilder result ) {
+            int depth = 0;
+            int i = from;
+            while ( i < sb.length() ) {
+                char c = sb.charAt( i );
+                if ( c == '"' || c == '\'' ) {
+                    int end = i + 1;
+                    while ( end < sb.length() && sb.charAt( end ) != c ) {
+                        end += sb.charAt( end ) == '\\' ? 2 : 1;
+                    }
+                    end = Math.min( end + 1, sb.length() );
+                    result.append( sb, i, end );
+                    i = end;
+                } else if ( sb.startsWith( "/*", i ) ) {
+                    int end = sb.indexOf( "*/", i + 2 );
+                    end = end < 0 ? sb.length() : end + 2;
+                    result.append( sb, i, end );
+                    i = end;
+                } else if ( sb.startsWith( "//", i ) ) {
+                    int end = sb.indexOf( '\n', i );
+                    end = end < 0 ? sb.length() : end;
+                    result.append( sb, i, end );
+                    i = end;
+                } else if ( Character.isJavaIdentifierStart( c ) ) {
+                    int end = i + 1;
+                    while ( end < sb.length() && Character.isJavaIdentifierPart( sb.charAt( end ) ) ) {
+                        end++;
+                    }
+                    result.append( sb, i, end );
+                    if ( sb.regionMatches( i, name, 0, end - i ) && end - i == name.length()
+                            && !isMember( sb, i ) && !sb.startsWith( "._", end ) ) {
+                        result.append( "._" );
+                    }
+                    i = end;
+                } else {
+                    if ( c == '{' ) {
+                        depth++;
+                    } else if ( c == '}' && --depth < 0 ) {
+                        break;
+                    }
+                    result.append( c );
+                    i++;
+                }
+            }
+            return i;
+        }
+
+        // a name after a dot is a member of something else
+        private boolean isMember( String sb, int i ) {
+            int before = i - 1;
+            while ( before >= 0 && Character.isWhitespace( sb.charAt( before ) ) ) {
+                before--;
+            }
+            return before >= 0 && sb.charAt( before ) == '.';
         }
     }
 }
 
 //http://www.java2s.com/Tutorial/Java/0120__Development/CompilingfromMemory.htm
 class JavaSourceFromString extends SimpleJavaFileObject {
-    final String code;
+    final CharSequence code;
 
-    JavaSourceFromString( String name, String code ) {
+    JavaSourceFromString( String name, CharSequence code ) {
         super( URI.create( "string:///" + name.replace( '.', '/' )
                            + Kind.SOURCE.extension ),
                 Kind.SOURCE );
@@ -783,6 +1276,3 @@ class JavaSourceFromString extends SimpleJavaFileObject {
         return code;
     }
 }
-
-class CompilationException extends RuntimeException {}
-
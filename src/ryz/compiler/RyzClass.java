@@ -28,10 +28,15 @@
 
 package ryz.compiler;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,35 +48,52 @@ import java.util.logging.Logger;
  */
 class RyzClass {
 
-    private final List<String> sourceLines;
-    private final List<String> generatedSource = new ArrayList<String>();
-    private final Logger logger = Logger.getLogger(this.getClass().getName());
+    private SourceLines sourceLines;
+    private final GeneratedSource generatedSource = new GeneratedSource();
+    private static final Logger logger = Logger.getLogger(RyzClass.class.getName());
     private String name;
     private String packageName;
     private RyzClassState state;
 
     private final List<String> methods;
-    private final Map<String, List<String>> variables = new HashMap<String,List<String>>();
+    private final SymbolTable symbols = new SymbolTable();
+    private ClassPathIndex classPath = ClassPathIndex.platform();
     private final String sourceFile;
-    private final List<CompilationError> errors = new ArrayList<CompilationError>();
+    private final Set<CompilationError> errors = new HashSet<CompilationError>();
     private final List<String> constructors;
+    private final Map<Class<?>, int[]> transformerCounters = new HashMap<Class<?>, int[]>();
+    // blocks are created as lambda expressions instead of anonymous classes
+    private boolean lambdas;
+    // blocks that didn't need an inner class, inlined or created as lambdas
+    private int innerClassesEliminated;
+
+    // The states ( and their transformers ) are created once per class and
+    // reused on every transition, the states to return to are in the stack.
+    private final Deque<RyzClassState> previousStates = new ArrayDeque<RyzClassState>();
+    final InitialState initialState = new InitialState(this);
+    final InsideClassState insideClassState = new InsideClassState(this);
+    final InsideMethodState insideMethodState = new InsideMethodState(this);
+    final InsideBlockState insideBlockState = new InsideBlockState(this);
+    final InsideCommentState insideCommentState = new InsideCommentState(this);
+    final InsideMultiLineStringState insideMultiLineStringState = new InsideMultiLineStringState(this);
+    final InsideParametersState insideParametersState = new InsideParametersState(this);
+    final AttributeTransformer parametersTransformer = new AttributeTransformer(insideParametersState, false);
 
     public RyzClass(String sourceFile, List<String> sourceLines) {
+        this(sourceFile, new SourceLines(sourceLines));
+    }
 
-        this.sourceFile = sourceFile;
+    /**
+     * @param sourceFile - The name of the source file, for the messages
+     * @param sourceLines - The cleaned lines, read as they are transformed
+     */
+    RyzClass(String sourceFile, SourceLines sourceLines) {
 
-        if( logger.isLoggable(Level.FINEST)){
-            StringBuilder sb = new StringBuilder();
-            for (String sourceLine : sourceLines) {
-                sb.append(sourceLine);
-                sb.append(LineTransformer.lineSeparator); 
-            }
-            logger.finest(sb.toString());
-        }
+        this.sourceFile = sourceFile;
         this.sourceLines = sourceLines;
         this.methods = new ArrayList<String>();
         this.constructors = new ArrayList<String>();
-        state(new InitialState(this));
+        state(initialState);
     }
 
 
@@ -99,49 +121,154 @@ class RyzClass {
         return this.methods;
     }
 
-      /**
-        *  Map of list of names of the variables ( and variables ) defined in this class.
-        * For instance, for method test() the variable a could have been defined,
-        *  if variable a is redefined, this map will help to know if it was already there.
-        *  The entry would be: { foo : [ a ] }
-        *  If a is defined in the class ( as an instance attribute ) it will be kept in this map too as:
-        *  { instance : [ a]  , foo : [ a ] }
-        *
-        * @return a map containing the defined variables ( variables ) in this class
-        */
-    Map<String,List<String>> variables(){
-        return this.variables;
+    /**
+     * The attributes, parameters and variables defined in this class.
+     * For instance, for method test() the variable a could have been defined,
+     * if variable a is redefined, this table will help to know if it was already there.
+     *
+     * @return the symbols defined so far in this class
+     */
+    SymbolTable symbols(){
+        return this.symbols;
+    }
+
+    /**
+     * Where the transformers look up the types used by this class, by
+     * default only the platform and compiler classes.
+     *
+     * @param classPath - the index of the classpath being compiled against
+     */
+    void classPath(ClassPathIndex classPath){
+        this.classPath = classPath;
+    }
+
+    ClassPathIndex classPath(){
+        return this.classPath;
     }
 
     /**
-     * Takes the list of source code lines and sends it to the transformers
-     * to produce translated  ( java ) code.
+     * Whether the blocks are created as lambda expressions, by default
+     * they are anonymous classes.
+     *
+     * @param lambdas - true if the java compiler supports lambdas
+     */
+    void lambdas(boolean lambdas){
+        this.lambdas = lambdas;
+    }
+
+    boolean lambdas(){
+        return this.lambdas;
+    }
+
+    /**
+     * Counts a block that doesn't create an inner class.
+     */
+    void innerClassEliminated(){
+        innerClassesEliminated++;
+    }
+
+    /**
+     * @return how many blocks of this class don't create an inner class
+     */
+    int innerClassesEliminated(){
+        return innerClassesEliminated;
+    }
+
+    /**
+     * Takes the source code lines as they are read and sends them to the
+     * transformers to produce translated  ( java ) code.
      */
     public void transformSourceCode() {
 
         logger.fine("Processing " + sourceFile );
         generatedSource.add(String.format("//-- Created from: %s %n" , sourceFile()));
-        int lineno = 0;
-        for( String line : sourceLines ) {
-            lineno++;
+        while( sourceLines.next() ) {
+            String line = sourceLines.current();
+            if( logger.isLoggable(Level.FINEST) ) {
+                logger.finest(sourceLines.lineNumber() + ": " + line);
+            }
             int lsf = generatedSource.size();
+            SourceLine sourceLine = new SourceLine( line );
             for( LineTransformer t : transformers() ) {
-                t.transform( line, generatedSource );
+                if( t.accepts( sourceLine ) ) {
+                    int before = generatedSource.size();
+                    RyzClassState stateBefore = state;
+                    t.transform( line, generatedSource );
+                    count( t, before != generatedSource.size() || stateBefore != state );
+                }
+            }
+            // the names of this line are still in scope
+            for( int i = lsf; i < generatedSource.size(); i++ ) {
+                String generated = generatedSource.get( i );
+                String inlined = ExtensionLinker.link(
+                        OperatorIntrinsics.inline( generated, symbols ), symbols );
+                if( inlined != generated ) {
+                    generatedSource.set( i, inlined );
+                }
             }
             if( lsf == generatedSource.size()
                     && !line.trim().equals("")
                     && !line.trim().equals("\"") ) {
-              logger.info("Not processed [" + lineno + "]: " + line);
+              logger.info("Not processed [" + sourceFile + ":" + sourceLines.lineNumber() + "]: " + line);
             }
         }
         
     }
 
+    /**
+     * Finds the line that closes the block opened by the line being
+     * transformed, counting the lines that open and close keys after it.
+     * @return the closing line or null if the block is not closed
+     */
+    String closingLine() {
+        List<String> lines = blockLines();
+        return lines == null ? null : sourceLines.ahead( lines.size() + 1 );
+    }
+
+    /**
+     * @return the lines of the block opened by the line being transformed,
+     *         those of its nested blocks included, or null if the block is
+     *         not closed.
+     */
+    List<String> blockLines() {
+        List<String> lines = new ArrayList<String>();
+        int depth = 1;
+        String line;
+        for( int i = 1; ( line = sourceLines.ahead( i ) ) != null; i++ ) {
+            if( line.startsWith( "}" ) && --depth == 0 ) {
+                return lines;
+            }
+            if( line.endsWith( "{" ) ) {
+                depth++;
+            }
+            lines.add( line );
+        }
+        return null;
+    }
+
+    private void count(LineTransformer transformer, boolean hit) {
+        int[] counters = transformerCounters.get(transformer.getClass());
+        if (counters == null) {
+            counters = new int[2];
+            transformerCounters.put(transformer.getClass(), counters);
+        }
+        counters[hit ? 0 : 1]++;
+    }
+
+    /**
+     * How many lines each transformer changed ( hits ) and how many it
+     * accepted without changing anything ( misses ).
+     * @return the hits and misses by transformer class
+     */
+    Map<Class<?>, int[]> transformerCounters() {
+        return transformerCounters;
+    }
+
     /**
      * Returns the list of translated source code.
      * @return  A list containing all the generated source code
      */
-    public List<String> outputLines() {
+    public GeneratedSource outputLines() {
         return generatedSource;
     }
 
@@ -164,11 +291,14 @@ class RyzClass {
     public void addMethod(String methodName, String methodType) {
         this.lastElementAdded = methodName + ":" + methodType;
         this.methods.add(lastElementAdded);// TODO: add args
+        symbols.member(lastElementAdded);
+        symbols.method(methodName, methodType);
         state().nextState();
     }
     public void addConstructor(String constructorName) {
         this.constructors.add( constructorName );
         this.lastElementAdded = constructorName;
+        symbols.member(constructorName);
         state().nextState();
         // TODO: change it for insideConstructor()
     }
@@ -216,9 +346,11 @@ class RyzClass {
            return;
         }
         int lastElementIndex = generatedSource.size() - 2;
-        String lastLine = generatedSource.remove(lastElementIndex);
-        generatedSource.add( lastElementIndex,
-                String.format(returnType.equals("Void") ?
+        String lastLine = generatedSource.get(lastElementIndex);
+        // a Void block ending in ^ null already says what it returns
+        boolean returns = lastLine.startsWith("/* return */");
+        generatedSource.set( lastElementIndex,
+                String.format(returnType.equals("Void") && !returns ?
                                     "%s%nreturn null;%n":
                                      "return %s%n",
                         lastLine));
@@ -241,35 +373,64 @@ class RyzClass {
         return state;
     }
 
+    /**
+     * Moves to the given state, the current one is kept to return to it.
+     * @param next - the state to move to
+     */
+    void enter(RyzClassState next) {
+        previousStates.push(state);
+        state = next;
+    }
+
+    /**
+     * Returns to the state that was current before the last enter.
+     */
+    void leave() {
+        state = previousStates.pop();
+    }
+
     public void insideParameters() {
         state().insideParameters();
     }
-    RyzClass reportExceptions() { 
+    /**
+     * Declares "throws Exception" in every method and constructor that
+     * doesn't declare it yet.
+     *
+     * @return true if any declaration was changed.
+     */
+    boolean reportExceptions() {
+       boolean changed = false;
        for( int i = 0 ; i < generatedSource.size() ; i++ ) {
            String s = generatedSource.get(i);
-           if( s.startsWith("    /*method*/") || s.startsWith("    /*constructor*/") && ! s.endsWith("throws Exception {") ){
+           if( ( s.startsWith("    /*method*/") || s.startsWith("    /*constructor*/") )
+                   && ! s.contains("throws Exception") ){
                generatedSource.set( i ,
                     s.substring( 0, s.length() - LineTransformer.lineSeparator.length() - 1 )
                      + " throws Exception { " + LineTransformer.lineSeparator
                );
+               changed = true;
            }
        }
-       return this;
+       return changed;
     }
 
   /**
-     * Records the current error and takes the new source code as a fix.
-   * @param fixedSourceCode - The new source code
+     * Records an error that was fixed in the current source code.
    * @param errorCode  - Indicates what the error was
    * @param startPosition - error start position
    * @param position - Column of the line where the error appeared.
    */
-    public void markError(String fixedSourceCode, String errorCode, int startPosition, int position) {
+    public void markError(String errorCode, int startPosition, int position) {
         errors.add( CompilationError.new$(errorCode, startPosition, position));
-        this.generatedSource.clear();
-        for( String line : fixedSourceCode.split("\n")) {
-            this.generatedSource.add( line + "\n" );
-        }
+    }
+
+    /**
+     * Takes the new source code as a fix for the errors previously marked.
+     * @param fixedSourceCode - The new source code
+     * @see #markError(String, int, int)
+     */
+    public void fixSourceCode(String fixedSourceCode) {
+        this.generatedSource.replace(fixedSourceCode);
     }
 
   /**
@@ -278,13 +439,54 @@ class RyzClass {
    * @param code - The data of the error code.
    * @param startPosition - where the error first happened.
    * @param position - column where the error appeared
-   * @return true if this exception was already reported.
-     * @see #markError(String, String, int, int)
+   * @return true if this problem was not fixed before.
+     * @see #markError(String, int, int)
      */
     public boolean isNewProblem(String code, long startPosition, long position) {
         return !errors.contains(CompilationError.new$(code, startPosition, position));
     }
 
+    /**
+     * Drops the state that is only needed while this class is compiled: the
+     * source lines, the generated source, the symbols and the error history.
+     * The name, package and source file are kept for reporting.
+     *
+     * @return an estimate of the bytes released.
+     */
+    long release() {
+        long size = sizeOf(sourceLines.buffered()) + sizeOf(generatedSource)
+                  + sizeOf(methods) + sizeOf(constructors);
+        // a name and type plus the hash entries
+        size += symbols.size() * 96L;
+        // errorCode is an interned constant, two longs plus the header and the hash entry
+        size += errors.size() * 64L;
+
+        sourceLines = new SourceLines(Collections.<String>emptyList());
+        generatedSource.clear();
+        methods.clear();
+        constructors.clear();
+        symbols.clear();
+        errors.clear();
+        transformerCounters.clear();
+        lastElementAdded = null;
+        previousStates.clear();
+        state = null;
+        return size;
+    }
+
+    private static long sizeOf(List<String> strings) {
+        long size = 16 + strings.size() * 8L;
+        for (String s : strings) {
+            size += sizeOf(s);
+        }
+        return size;
+    }
+
+    private static long sizeOf(String s) {
+        // object header, fields and the char array
+        return s == null ? 0 : 40 + s.length() * 2L;
+    }
+
 
     /**
       * Bean to store a previous compilation error.
@@ -28,7 +28,6 @@
 
 package ryz.compiler;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -42,7 +41,7 @@ import java.util.logging.Logger;
  */
 public abstract class RyzClassState {
 
-    final Logger logger = Logger.getLogger(this.getClass().getName());
+    final Logger logger = LineTransformer.logger(getClass());
     private final RyzClass ryzClass;
     private List<LineTransformer> transformers;
 
@@ -79,7 +78,7 @@ public abstract class RyzClassState {
     }
 
     public void insideComment() {
-        ryzClass().state(new InsideCommentState(ryzClass(), this));
+        ryzClass().enter(ryzClass().insideCommentState);
     }
 
     public void outsideComment() {
@@ -87,20 +86,16 @@ public abstract class RyzClassState {
     }
 
     public void insideBlock(String blockSignature){
-        ryzClass.state(new InsideBlockState(ryzClass(), this, blockSignature));
+        ryzClass.insideBlockState.open(blockSignature);
+        ryzClass.enter(ryzClass.insideBlockState);
     }
     public void keyClosed() {
         ryzClass().state().previousState();
     }
 
     public void insideMultilineString(int indentation) {
-        ryzClass.state(new InsideMultiLineStringState(ryzClass(), this, indentation));
-    }
-
-    void ensureVariablesHolderInitialized(String method) {
-        if( ryzClass().variables().get( method ) == null ){
-            ryzClass().variables().put( method , new ArrayList<String>());
-        }
+        ryzClass.insideMultiLineStringState.indentation(indentation);
+        ryzClass.enter(ryzClass.insideMultiLineStringState);
     }
 
     public void outsideMultilineString() {
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Sends its arguments to a running {@link RyzDaemon} and prints what the
+ * daemon reports. If there is no daemon running the files are compiled in
+ * this JVM with <code>RyzC.main</code>, a daemon is not running either when
+ * its token file can't be read.
+ * <p/>
+ * Usage: <code>java ryz.compiler.RyzClient [-incremental] [-direct] [-cp classpath] files...</code>
+ * or <code>java ryz.compiler.RyzClient -stop</code> to stop the daemon.
+ */
+public class RyzClient {
+
+    public static void main( String[] args ) throws IOException {
+        int status;
+        try {
+            status = send( RyzDaemon.port(), new File( "." ).getCanonicalFile(), args, System.err );
+        } catch ( ConnectException e ) {
+            if ( args.length == 1 && RyzDaemon.STOP.equals( args[0] ) ) {
+                return;
+            }
+            RyzC.main( args );
+            return;
+        }
+        if ( status != 0 ) {
+            System.exit( status );
+        }
+    }
+
+    /**
+     * Sends a compile request to the daemon listening in the given port.
+     *
+     * @param port       - Where the daemon listens
+     * @param workingDir - The directory the relative paths are resolved from
+     * @param args       - The arguments as given to <code>RyzC.main</code>
+     * @param err        - Where to print the errors reported by the daemon
+     * @return the exit status of the compilation.
+     * @throws IOException - If the daemon can't be reached
+     */
+    static int send( int port, File workingDir, String[] args, PrintStream err )
+    throws IOException {
+        return send( port, RyzDaemon.tokenFile(), workingDir, args, err );
+    }
+
+    /**
+     * Sends a compile request with the token the daemon wrote to the token file.
+     *
+     * @param port       - Where the daemon listens
+     * @param tokenFile  - The token file of the daemon
+     * @param workingDir - The directory the relative paths are resolved from
+     * @param args       - The arguments as given to <code>RyzC.main</code>
+     * @param err        - Where to print the errors reported by the daemon
+     * @return the exit status of the compilation.
+     * @throws IOException - If the daemon can't be reached
+     */
+    static int send( int port, File tokenFile, File workingDir, String[] args, PrintStream err )
+    throws IOException {
+        String token;
+        try {
+            token = RyzDaemon.readToken( tokenFile );
+        } catch ( FileNotFoundException e ) {
+            throw new ConnectException( "No daemon token in " + tokenFile );
+        }
+        Socket socket = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream( socket.getOutputStream() ) );
+            out.writeUTF( token );
+            out.writeUTF( workingDir.getPath() );
+            out.writeInt( args.length );
+            for ( String arg : args ) {
+                out.writeUTF( arg );
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream( socket.getInputStream() ) );
+            int status = in.readInt();
+            byte[] output = new byte[in.readInt()];
+            in.readFully( output );
+            err.print( new String( output, "UTF-8" ) );
+            err.flush();
+            return status;
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long lived compiler that takes compile requests from a local socket, so
+ * the JVM start up and the javac warm up are paid only once.
+ * <p/>
+ * A request is the token of the daemon, the working directory of the client
+ * and the same arguments <code>RyzC.main</code> takes, the response is an
+ * exit status and the errors reported by the compiler. Each request is
+ * compiled by a new RyzC instance, only the javac sessions are reused
+ * between requests.
+ * <p/>
+ * Any local process can connect to the port, so the daemon writes a random
+ * token to a file only its user can read and rejects the requests, the stop
+ * request included, that don't send it. The file is <code>~/.ryz/daemon.token</code>
+ * unless the ryz.daemon.token property names another one.
+ * See: {@link RyzClient}
+ * <p/>
+ * Usage: <code>java ryz.compiler.RyzDaemon [port]</code>
+ */
+public class RyzDaemon {
+
+    /**
+     * Port used when none is given, can be changed with the ryz.daemon.port property.
+     */
+    static final int DEFAULT_PORT = 7878;
+
+    /**
+     * The argument that stops the daemon.
+     */
+    static final String STOP = "-stop";
+
+    /**
+     * The most arguments a request may have, the count is read before the
+     * arguments and can't be trusted to size the array.
+     */
+    static final int MAX_ARGUMENTS = 4096;
+
+    /**
+     * How long the rest of a rejected request is read, in milliseconds.
+     */
+    private static final int REJECT_TIMEOUT = 2000;
+
+    private static final Logger logger = Logger.getLogger( RyzDaemon.class.getName() );
+
+    private final ServerSocket serverSocket;
+    private final File tokenFile;
+    private final String token;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+
+    /**
+     * javac sessions not used by any request at the moment.
+     */
+    private final LinkedList<JavacSession> idleSessions = new LinkedList<JavacSession>();
+
+    public static void main( String[] args ) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt( args[0] ) : port();
+        RyzDaemon daemon = new RyzDaemon( port );
+        logger.info( "ryzc daemon listening on port " + daemon.localPort() );
+        daemon.run();
+    }
+
+    /**
+     * Opens the daemon socket in the loopback address.
+     *
+     * @param port - The port to listen to, 0 to use any free port
+     * @throws IOException - If the port can't be used
+     */
+    RyzDaemon( int port ) throws IOException {
+        this( port, tokenFile() );
+    }
+
+    /**
+     * Opens the daemon socket in the loopback address and writes a new
+     * token to the token file.
+     *
+     * @param port      - The port to listen to, 0 to use any free port
+     * @param tokenFile - Where the clients read the token from
+     * @throws IOException - If the port can't be used or the token can't be written
+     */
+    RyzDaemon( int port, File tokenFile ) throws IOException {
+        this.tokenFile = tokenFile;
+        this.token = newToken();
+        writeToken( tokenFile, token );
+        serverSocket = new ServerSocket( port, 50, InetAddress.getByName( "127.0.0.1" ) );
+    }
+
+    /**
+     * The port of the daemon, either the value of the ryz.daemon.port
+     * system property or the default port.
+     *
+     * @return the port where the daemon is expected to listen.
+     */
+    static int port() {
+        return Integer.getInteger( "ryz.daemon.port", DEFAULT_PORT );
+    }
+
+    /**
+     * The file with the token of the daemon, either the value of the
+     * ryz.daemon.token system property or ~/.ryz/daemon.token
+     *
+     * @return the file where the daemon writes its token.
+     */
+    static File tokenFile() {
+        String path = System.getProperty( "ryz.daemon.token" );
+        return path != null
+               ? new File( path )
+               : new File( new File( System.getProperty( "user.home" ), ".ryz" ), "daemon.token" );
+    }
+
+    /**
+     * @param tokenFile - The file written by the daemon
+     * @return the token the daemon expects in the requests
+     * @throws IOException - If the file can't be read, no daemon of this user runs
+     */
+    static String readToken( File tokenFile ) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader( new FileInputStream( tokenFile ), "UTF-8" ) );
+        try {
+            String line = reader.readLine();
+            return line == null ? "" : line.trim();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the port this daemon listens to.
+     */
+    int localPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Takes requests until the daemon is stopped.
+     */
+    void run() {
+        while ( !serverSocket.isClosed() ) {
+            try {
+                final Socket socket = serverSocket.accept();
+                workers.execute( new Runnable() {
+                    public void run() {
+                        serve( socket );
+                    }
+                } );
+            } catch ( SocketException e ) {
+                // closed by stop()
+                logger.fine( e.getMessage() );
+            } catch ( IOException e ) {
+                logger.log( Level.WARNING, "Couldn't accept a request", e );
+            }
+        }
+    }
+
+    /**
+     * Takes requests in a new thread.
+     */
+    void start() {
+        Thread thread = new Thread( new Runnable() {
+            public void run() {
+                RyzDaemon.this.run();
+            }
+        }, "ryzc-daemon" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Stops taking requests and releases the javac sessions.
+     */
+    void stop() {
+        try {
+            serverSocket.close();
+        } catch ( IOException e ) {
+            logger.log( Level.FINE, "Closing the daemon socket", e );
+        }
+        workers.shutdown();
+        if ( !tokenFile.delete() ) {
+            logger.fine( "Couldn't delete " + tokenFile );
+        }
+        synchronized ( idleSessions ) {
+            for ( JavacSession session : idleSessions ) {
+                close( session );
+            }
+            idleSessions.clear();
+        }
+    }
+
+    private void serve( Socket socket ) {
+        try {
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream( socket.getInputStream() ) );
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream( socket.getOutputStream() ) );
+                if ( !isToken( in.readUTF() ) ) {
+                    logger.warning( "Rejected a request without the daemon token" );
+                    reject( socket, in, out, String.format( "RyzDaemon: invalid token, see %s%n", tokenFile ) );
+                    return;
+                }
+                File workingDir = new File( in.readUTF() );
+                int count = in.readInt();
+                if ( count < 0 || count > MAX_ARGUMENTS ) {
+                    reject( socket, in, out, String.format( "RyzDaemon: invalid argument count %d%n", count ) );
+                    return;
+                }
+                String[] args = new String[count];
+                for ( int i = 0 ; i < args.length ; i++ ) {
+                    args[i] = in.readUTF();
+                }
+                if ( args.length == 1 && STOP.equals( args[0] ) ) {
+                    respond( out, 0, "" );
+                    stop();
+                    return;
+                }
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                int status = compile( args, workingDir, new PrintStream( output, true, "UTF-8" ) );
+                respond( out, status, output.toString( "UTF-8" ) );
+            } finally {
+                socket.close();
+            }
+        } catch ( IOException e ) {
+            logger.log( Level.WARNING, "Couldn't serve a request", e );
+        }
+    }
+
+    /**
+     * Compiles the request with a new compiler that borrows an idle session.
+     */
+    private int compile( String[] args, File workingDir, PrintStream err ) {
+        long start = System.currentTimeMillis();
+        JavacSession session = borrow();
+        RyzC compiler = RyzC.getCompiler();
+        compiler.errorStream( err );
+        compiler.session( session );
+        boolean failed = true;
+        try {
+            int status = compiler.run( args, workingDir );
+            failed = false;
+            return status;
+        } catch ( Exception e ) {
+            e.printStackTrace( err );
+            return 1;
+        } finally {
+            try {
+                compiler.close();
+            } catch ( IOException e ) {
+                logger.log( Level.FINE, "Closing the compiler", e );
+            }
+            // a session that failed may be in a bad state
+            if ( failed ) {
+                close( session );
+            } else {
+                giveBack( session );
+            }
+            logger.fine( "Compiled " + Arrays.toString( args ) + " in "
+                         + ( System.currentTimeMillis() - start ) + " ms" );
+        }
+    }
+
+    /**
+     * An idle session, refreshed because other processes may have changed
+     * the classpath since it was used, or a new one.
+     */
+    private JavacSession borrow() {
+        JavacSession session = null;
+        synchronized ( idleSessions ) {
+            if ( !idleSessions.isEmpty() ) {
+                session = idleSessions.removeFirst();
+            }
+        }
+        if ( session == null ) {
+            return new JavacSession();
+        }
+        try {
+            session.refresh();
+            return session;
+        } catch ( IOException e ) {
+            close( session );
+            return new JavacSession();
+        }
+    }
+
+    private void giveBack( JavacSession session ) {
+        synchronized ( idleSessions ) {
+            if ( !serverSocket.isClosed() ) {
+                idleSessions.addFirst( session );
+                return;
+            }
+        }
+        close( session );
+    }
+
+    private static void close( JavacSession session ) {
+        try {
+            session.close();
+        } catch ( IOException e ) {
+            logger.log( Level.FINE, "Closing a javac session", e );
+        }
+    }
+
+    /**
+     * Responds to a request that won't be served and reads what is left of
+     * it: closing a socket with unread data resets the connection and the
+     * client may lose the response.
+     */
+    private static void reject( Socket socket, DataInputStream in, DataOutputStream out, String message )
+    throws IOException {
+        respond( out, 1, message );
+        socket.shutdownOutput();
+        socket.setSoTimeout( REJECT_TIMEOUT );
+        long deadline = System.currentTimeMillis() + REJECT_TIMEOUT;
+        byte[] buffer = new byte[4096];
+        try {
+            while ( in.read( buffer ) >= 0 && System.currentTimeMillis() < deadline ) {
+                // discarded
+            }
+        } catch ( SocketTimeoutException e ) {
+            logger.fine( "The client didn't close a rejected request" );
+        }
+    }
+
+    /**
+     * Compares all the bytes, so the time taken doesn't tell how much of the token was guessed.
+     */
+    private boolean isToken( String received ) throws IOException {
+        return MessageDigest.isEqual( token.getBytes( "UTF-8" ), received.getBytes( "UTF-8" ) );
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes( bytes );
+        StringBuilder token = new StringBuilder();
+        for ( byte b : bytes ) {
+            token.append( String.format( "%02x", b ) );
+        }
+        return token.toString();
+    }
+
+    /**
+     * Writes the token to a file readable and writable only by its owner,
+     * the permissions are set before the token is written.
+     */
+    private static void writeToken( File tokenFile, String token ) throws IOException {
+        File directory = tokenFile.getAbsoluteFile().getParentFile();
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Couldn't create " + directory );
+        }
+        if ( tokenFile.exists() && !tokenFile.delete() ) {
+            throw new IOException( "Couldn't replace " + tokenFile );
+        }
+        if ( !tokenFile.createNewFile()
+             || !tokenFile.setReadable( false, false ) || !tokenFile.setReadable( true, true )
+             || !tokenFile.setWritable( false, false ) || !tokenFile.setWritable( true, true ) ) {
+            throw new IOException( "Couldn't make " + tokenFile + " private" );
+        }
+        OutputStream out = new FileOutputStream( tokenFile );
+        try {
+            out.write( token.getBytes( "UTF-8" ) );
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void respond( DataOutputStream out, int status, String output )
+    throws IOException {
+        byte[] bytes = output.getBytes( "UTF-8" );
+        out.writeInt( status );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+        out.flush();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-process the source lines so the transformers can parse them:
+ * <ul>
+ * <li>The lines are trimmed.</li>
+ * <li><code>self</code> is replaced with <code>this</code>.</li>
+ * <li>Single line comments are removed.</li>
+ * <li>The operators used as method names are replaced with valid java
+ * identifiers, in the definitions, <code>+ ( other : Int )</code> and
+ * in the invocations, <code>a.+( b )</code></li>
+ * </ul>
+ * Everything is done in a single scan of each line, reusing the same
+ * buffers and without regular expressions. An instance is not thread safe.
+ */
+class SourceCleaner {
+
+    private static final Map<Character, String> operatorMap = new HashMap<Character, String>() {
+        private static final long serialVersionUID = 1L;
+    {
+        put( '+', "$plus" );
+        put( '-', "$minus" );
+        put( '*', "$star" );
+        put( '/', "$slash" );
+        put( '%', "$percent" );
+        put( '<', "$lt" );
+        put( '>', "$gt" );
+        put( '=', "$eq" );
+        put( '!', "$em" );
+        put( '&', "$amp" );
+        put( '^', "$up" );
+        put( '|', "$bar" );
+        put( '?', "$qm" );
+        put( ':', "$colon" );
+        //+ - * / % < > = ! & ^ | ? :
+    }};
+
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder replaced = new StringBuilder();
+    // where the method name of the last definition found starts
+    private int nameStart;
+
+    /**
+     * @param input - The original source code as lines
+     * @return The cleaned lines, without the comment lines
+     */
+    List<String> clean( Iterable<String> input ) {
+        List<String> result = new ArrayList<String>();
+        for ( String s : input ) {
+            String cleaned = clean( s );
+            if ( cleaned != null ) {
+                result.add( cleaned );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param input - A line of source code
+     * @return the cleaned line or null if the line is a comment.
+     */
+    String clean( String input ) {
+        int start = 0;
+        int end = input.length();
+        while ( start < end && input.charAt( start ) <= ' ' ) {
+            start++;
+        }
+        while ( end > start && input.charAt( end - 1 ) <= ' ' ) {
+            end--;
+        }
+        if ( input.startsWith( "//", start ) ) {
+            return null;
+        }
+        if ( end - start == 4 && input.startsWith( "self", start ) ) {
+            return "this";
+        }
+
+        line.setLength( 0 );
+        replaceSelf( input, start, end );
+        removeComment();
+
+        replaced.setLength( 0 );
+        int nameEnd = definitionName( line );
+        if ( nameEnd < 0 ) {
+            replaced.append( line );
+        } else {
+            replaced.append( line, 0, nameStart );
+            appendName( replaced, line, nameStart, nameEnd );
+            replaced.append( line, nameEnd, line.length() );
+        }
+
+        line.setLength( 0 );
+        replaceInvocations( replaced );
+        return line.toString();
+    }
+
+    /**
+     * Replaces " self " with " this " unless there is a string after it,
+     * and "self." with "this."
+     */
+    private void replaceSelf( String s, int start, int end ) {
+        int i = start;
+        while ( i < end ) {
+            char c = s.charAt( i );
+            if ( isWhitespace( c ) ) {
+                int self = whitespace( s, i, end );
+                if ( self + 4 < end
+                        && s.startsWith( "self", self )
+                        && isWhitespace( s.charAt( self + 4 ) ) ) {
+                    int after = whitespace( s, self + 4, end );
+                    if ( s.indexOf( '"', after ) < 0 ) {
+                        line.append( " this " );
+                        i = after;
+                        continue;
+                    }
+                }
+                line.append( s, i, self );
+                i = self;
+            } else if ( c == 's' && s.startsWith( "self.", i ) ) {
+                line.append( "this." );
+                i += 5;
+            } else {
+                line.append( c );
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Removes everything from the first "//".
+     */
+    private void removeComment() {
+        int comment = line.indexOf( "//" );
+        if ( comment < 0 ) {
+            return;
+        }
+        while ( comment > 0 && line.charAt( comment - 1 ) <= ' ' ) {
+            comment--;
+        }
+        line.setLength( comment );
+    }
+
+    /**
+     * Finds the method name of a definition at the beginning of the line, it
+     * matches like <code>[+#~-]??\s*_{0,2}\s*([+\-*&#47;%<>=!&^|?:\w]+)\s*\(</code>
+     * would, trying the shorter spaces and prefixes when the longer fail.
+     *
+     * @return the end of the method name or -1 if the line is not a definition
+     */
+    private int definitionName( CharSequence s ) {
+        int length = s.length();
+        for ( int prefix = 0 ; prefix <= 1 ; prefix++ ) {
+            if ( prefix == 1 && ( length == 0 || "+#~-".indexOf( s.charAt( 0 ) ) < 0 ) ) {
+                break;
+            }
+            for ( int i = whitespace( s, prefix, length ) ; i >= prefix ; i-- ) {
+                int underscores = i;
+                while ( underscores < length && underscores < i + 2
+                        && s.charAt( underscores ) == '_' ) {
+                    underscores++;
+                }
+                for ( int j = underscores ; j >= i ; j-- ) {
+                    for ( int k = whitespace( s, j, length ) ; k >= j ; k-- ) {
+                        int end = name( s, k, length );
+                        int paren = whitespace( s, end, length );
+                        if ( end > k && paren < length && s.charAt( paren ) == '(' ) {
+                            nameStart = k;
+                            return end;
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the method names of invocations like <code>a.+( b )</code>
+     */
+    private void replaceInvocations( CharSequence s ) {
+        int length = s.length();
+        int i = 0;
+        while ( i < length ) {
+            if ( s.charAt( i ) == '.' ) {
+                int start = whitespace( s, i + 1, length );
+                int end = name( s, start, length );
+                int paren = whitespace( s, end, length );
+                if ( end > start && paren < length && s.charAt( paren ) == '(' ) {
+                    line.append( s, i, start );
+                    appendName( line, s, start, end );
+                    line.append( s, end, paren + 1 );
+                    i = paren + 1;
+                    continue;
+                }
+            }
+            line.append( s.charAt( i++ ) );
+        }
+    }
+
+    private static void appendName( StringBuilder target, CharSequence s, int start, int end ) {
+        for ( int i = start ; i < end ; i++ ) {
+            char c = s.charAt( i );
+            String mapped = operatorMap.get( c );
+            if ( mapped == null ) {
+                target.append( c );
+            } else {
+                target.append( mapped );
+            }
+        }
+    }
+
+    /**
+     * @return the end of the method name starting at from
+     */
+    private static int name( CharSequence s, int from, int end ) {
+        int i = from;
+        while ( i < end && isNameChar( s.charAt( i ) ) ) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the end of the whitespace starting at from
+     */
+    private static int whitespace( CharSequence s, int from, int end ) {
+        int i = from;
+        while ( i < end && isWhitespace( s.charAt( i ) ) ) {
+            i++;
+        }
+        return i;
+    }
+
+    // same as \s
+    private static boolean isWhitespace( char c ) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // same as [+\-*/%<>=!&^|?:\w]
+    private static boolean isNameChar( char c ) {
+        return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' )
+                || ( c >= '0' && c <= '9' ) || c == '_'
+                || "+-*/%<>=!&^|?:".indexOf( c ) >= 0;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+/**
+ * A trimmed source line and what it starts with, computed once so each line
+ * is only given to the transformers that may handle it.
+ * <p/>
+ * The head of a line is its optional scope <code>[+#~-]</code>, the
+ * optional <code>__</code> and the name that follows them, like in
+ * <code>+ __ name : String</code> or <code>- run() {</code>.
+ */
+class SourceLine {
+
+    final String text;
+
+    private final int nameStart;
+    private final int nameEnd;
+    private final boolean wordName;
+    // the first char after the name and its spaces, 0 at the end of the line
+    private final char afterName;
+    // where the "(" of a line like: "a".b.c( starts or -1
+    private final int invocation;
+
+    SourceLine( String text ) {
+        this.text = text;
+        int length = text.length();
+        int i = spaces( 0 );
+        if ( i < length && "+#~-".indexOf( text.charAt( i ) ) >= 0 ) {
+            i = spaces( i + 1 );
+        }
+        int start = i;
+        int end = name( start );
+        if ( end - start == 2 && text.startsWith( "__", start ) ) {
+            int next = spaces( end );
+            if ( name( next ) > next ) {
+                start = next;
+                end = name( next );
+            }
+        }
+        boolean word = end > start;
+        for ( int j = start ; j < end ; j++ ) {
+            if ( text.charAt( j ) == '$' ) {
+                word = false;
+            }
+        }
+        int after = spaces( end );
+        nameStart = start;
+        nameEnd = end;
+        wordName = word;
+        afterName = after < length ? text.charAt( after ) : 0;
+        invocation = invocation();
+    }
+
+    boolean startsWith( String prefix ) {
+        return text.startsWith( prefix );
+    }
+
+    boolean endsWith( String suffix ) {
+        return text.endsWith( suffix );
+    }
+
+    /**
+     * @return true for a head followed by ":" or "=", like in
+     *         <code>+ __ name : String</code> or <code>name = 1</code>
+     */
+    boolean isDeclaration() {
+        return wordName && ( afterName == ':' || afterName == '=' );
+    }
+
+    /**
+     * @return true for a head followed by "(" in a line ending with "{",
+     *         like <code>- __ run() : Int {</code>
+     */
+    boolean isMethodDefinition() {
+        return nameEnd > nameStart && afterName == '(' && text.endsWith( "{" );
+    }
+
+    /**
+     * @return true for a line ending with ")" that starts with a name or a
+     *         string and a chain of names, like <code>"a".b.c( d )</code>
+     */
+    boolean isInvocation() {
+        return invocation >= 0 && text.endsWith( ")" );
+    }
+
+    /**
+     * @return true for a line ending with "{" that starts with a chain of
+     *         names followed by "(", like <code>list.each( ( s : String ) {</code>
+     */
+    boolean isInvocationWithBlock() {
+        return invocation >= 0 && isWordChar( text.charAt( 0 ) ) && text.endsWith( "{" );
+    }
+
+    /**
+     * @return true if the name of the head starts with an upper case letter
+     */
+    boolean isCapitalized() {
+        return nameEnd > nameStart && Character.isUpperCase( text.charAt( nameStart ) );
+    }
+
+    /**
+     * @return the name in the head of the line
+     */
+    String name() {
+        return text.substring( nameStart, nameEnd );
+    }
+
+    /**
+     * @return true for a name assigned to another name, like <code>a = b</code>
+     */
+    boolean isAssignment() {
+        if ( !wordName || nameStart != 0 || afterName != '=' ) {
+            return false;
+        }
+        int value = spaces( text.indexOf( '=' ) + 1 );
+        int end = value;
+        while ( end < text.length() && isWordChar( text.charAt( end ) ) ) {
+            end++;
+        }
+        return end > value && spaces( end ) == text.length();
+    }
+
+    /**
+     * @return true if the line is only a name, like <code>value</code>
+     */
+    boolean isSingleValue() {
+        if ( text.length() == 0 ) {
+            return false;
+        }
+        for ( int i = 0 ; i < text.length() ; i++ ) {
+            if ( !isWordChar( text.charAt( i ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int invocation() {
+        int length = text.length();
+        int i = 0;
+        if ( length > 0 && text.charAt( 0 ) == '"' ) {
+            i = text.indexOf( '"', 1 ) + 1;
+            if ( i == 0 ) {
+                return -1;
+            }
+        } else if ( length == 0 || !isWordChar( text.charAt( 0 ) ) ) {
+            return -1;
+        }
+        for ( ; i < length ; i++ ) {
+            char c = text.charAt( i );
+            if ( c == '(' ) {
+                return i;
+            }
+            if ( !isWordChar( c ) && c != '$' && c != '.' && !isSpace( c ) ) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private int name( int from ) {
+        int i = from;
+        while ( i < text.length() && ( isWordChar( text.charAt( i ) ) || text.charAt( i ) == '$' ) ) {
+            i++;
+        }
+        return i;
+    }
+
+    private int spaces( int from ) {
+        int i = from;
+        while ( i < text.length() && isSpace( text.charAt( i ) ) ) {
+            i++;
+        }
+        return i;
+    }
+
+    // same as \w
+    private static boolean isWordChar( char c ) {
+        return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' )
+                || ( c >= '0' && c <= '9' ) || c == '_';
+    }
+
+    // same as \s
+    private static boolean isSpace( char c ) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The cleaned lines of a source file, read from the file as the class
+ * transformation asks for them. Only the line being transformed and the
+ * ones read ahead of it are kept, each with its number in the file, so the
+ * messages can point to the line as the user sees it even when comment
+ * lines were dropped before it.
+ *
+ * @see SourceReader
+ * @see SourceCleaner
+ */
+class SourceLines {
+
+    private final Iterator<String> input;
+    // null when the lines are given already cleaned
+    private final SourceReader reader;
+    private final SourceCleaner cleaner;
+    private int inputLineNumber;
+
+    // the current line first and then the ones read ahead
+    private final List<String> lines = new ArrayList<String>();
+    private final List<Integer> lineNumbers = new ArrayList<Integer>();
+    private boolean started;
+
+    /**
+     * @param reader - The file, cleaned line by line as it is read
+     */
+    SourceLines( SourceReader reader ) {
+        this.input = reader.iterator();
+        this.reader = reader;
+        this.cleaner = new SourceCleaner();
+    }
+
+    /**
+     * @param cleaned - Lines already cleaned, numbered from 1
+     */
+    SourceLines( List<String> cleaned ) {
+        this.input = cleaned.iterator();
+        this.reader = null;
+        this.cleaner = null;
+    }
+
+    /**
+     * Moves to the next line, the current one is dropped.
+     *
+     * @return false if there are no more lines
+     */
+    boolean next() {
+        if ( started && !lines.isEmpty() ) {
+            lines.remove( 0 );
+            lineNumbers.remove( 0 );
+        }
+        started = true;
+        return read( 1 );
+    }
+
+    /**
+     * @return the line being transformed
+     */
+    String current() {
+        return lines.get( 0 );
+    }
+
+    /**
+     * @return the number in the file of the line being transformed, starting at 1
+     */
+    int lineNumber() {
+        return lineNumbers.get( 0 );
+    }
+
+    /**
+     * @param n - How many lines after the current one, 1 is the next line
+     * @return the line or null if the file ends before it
+     */
+    String ahead( int n ) {
+        return read( n + 1 ) ? lines.get( n ) : null;
+    }
+
+    /**
+     * @return the lines kept at the moment, the current one and the ones read ahead
+     */
+    List<String> buffered() {
+        return Collections.unmodifiableList( lines );
+    }
+
+    /**
+     * Reads until there are the given number of lines or the file ends.
+     *
+     * @return true if there are that many lines
+     */
+    private boolean read( int size ) {
+        while ( lines.size() < size && input.hasNext() ) {
+            String line = input.next();
+            int number = reader != null ? reader.lineNumber() : ++inputLineNumber;
+            if ( cleaner != null && ( line = cleaner.clean( line ) ) == null ) {
+                continue;
+            }
+            lines.add( line );
+            lineNumbers.add( number );
+        }
+        return lines.size() >= size;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the lines of a UTF-8 source file lazily.
+ * <p/>
+ * The file is read from its channel in small blocks and decoded as it goes,
+ * so only the current line is kept in memory, not the whole file. The lines
+ * are the same <code>String.split("\n")</code> returns: the "\r" is kept and
+ * the empty lines at the end of the file are dropped.
+ * <p/>
+ * The lines can be iterated only once, close the reader when done.
+ */
+class SourceReader implements Iterable<String>, Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final FileChannel channel;
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+                    .onMalformedInput( CodingErrorAction.REPLACE )
+                    .onUnmappableCharacter( CodingErrorAction.REPLACE );
+    private final ByteBuffer bytes = ByteBuffer.allocate( BUFFER_SIZE );
+    private final CharBuffer chars = CharBuffer.allocate( BUFFER_SIZE );
+    private final StringBuilder line = new StringBuilder();
+    private boolean endOfInput;
+    private boolean iterated;
+
+    // lines read but not returned yet
+    private int pendingEmptyLines;
+    private String following;
+    private String next;
+
+    private int lineNumber;
+    private int nextLineNumber;
+
+    SourceReader( File file ) throws IOException {
+        channel = new FileInputStream( file ).getChannel();
+        chars.flip();
+    }
+
+    /**
+     * @return the lines of the file
+     * @throws IllegalStateException - If the lines were already iterated
+     */
+    public Iterator<String> iterator() {
+        if ( iterated ) {
+            throw new IllegalStateException( "The lines can be iterated only once" );
+        }
+        iterated = true;
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                if ( next == null ) {
+                    next = advance();
+                }
+                return next != null;
+            }
+
+            public String next() {
+                if ( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                String result = next;
+                next = null;
+                lineNumber = nextLineNumber;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the number in the file of the last line returned, starting at 1
+     */
+    int lineNumber() {
+        return lineNumber;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The next line to return, the empty lines are hold until a non empty
+     * line follows them.
+     */
+    private String advance() {
+        if ( pendingEmptyLines == 0 && following == null ) {
+            String raw;
+            while ( ( raw = readLine() ) != null && raw.length() == 0 ) {
+                pendingEmptyLines++;
+            }
+            if ( raw == null ) {
+                pendingEmptyLines = 0;
+                return null;
+            }
+            following = raw;
+        }
+        nextLineNumber++;
+        if ( pendingEmptyLines > 0 ) {
+            pendingEmptyLines--;
+            return "";
+        }
+        String result = following;
+        following = null;
+        return result;
+    }
+
+    private String readLine() {
+        try {
+            do {
+                while ( chars.hasRemaining() ) {
+                    char c = chars.get();
+                    if ( c == '\n' ) {
+                        String result = line.toString();
+                        line.setLength( 0 );
+                        return result;
+                    }
+                    line.append( c );
+                }
+            } while ( fill() );
+        } catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+        if ( line.length() == 0 ) {
+            return null;
+        }
+        String result = line.toString();
+        line.setLength( 0 );
+        return result;
+    }
+
+    /**
+     * Decodes the next block of the file.
+     *
+     * @return false at the end of the file
+     * @throws IOException - If the file can't be read
+     */
+    private boolean fill() throws IOException {
+        if ( endOfInput ) {
+            return false;
+        }
+        chars.clear();
+        boolean end = channel.read( bytes ) < 0;
+        bytes.flip();
+        CoderResult result = decoder.decode( bytes, chars, end );
+        bytes.compact();
+        if ( end && !result.isOverflow() ) {
+            decoder.flush( chars );
+            endOfInput = true;
+        }
+        chars.flip();
+        return true;
+    }
+}
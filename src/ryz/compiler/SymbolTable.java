@@ -0,0 +1,224 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The names declared in a class by scope: the attributes of the class, the
+ * parameters and variables of each method or constructor and those of the
+ * blocks being transformed. Lookups are hashed and go from the innermost
+ * scope out.
+ */
+class SymbolTable {
+
+    private static final String blockType = "ryz.lang.block.";
+
+    private final Scope attributes = new Scope();
+    // the methods and constructors by their "name:type" or name
+    private final Map<String, Scope> members = new HashMap<String, Scope>();
+    private final Map<String, String> methodTypes = new HashMap<String, String>();
+    // the blocks being transformed, the innermost first
+    private final Deque<Scope> blocks = new ArrayDeque<Scope>();
+    private Scope member;
+
+    /**
+     * The method or constructor whose parameters and variables come next.
+     * @param key - the "name:type" of a method or the name of a constructor
+     */
+    void member(String key) {
+        member = members.get(key);
+        if (member == null) {
+            member = new Scope();
+            members.put(key, member);
+        }
+        blocks.clear();
+    }
+
+    /**
+     * Records a method, when overloaded the type of the first one is kept.
+     */
+    void method(String name, String type) {
+        if (!methodTypes.containsKey(name)) {
+            methodTypes.put(name, type);
+        }
+    }
+
+    /**
+     * @return the type of the method with this name or null if it is unknown
+     */
+    String methodType(String name) {
+        return methodTypes.get(name);
+    }
+
+    void enterBlock() {
+        blocks.push(new Scope());
+    }
+
+    void exitBlock() {
+        blocks.pop();
+    }
+
+    /**
+     * Adds an attribute of the class.
+     * @return true, attributes are always added.
+     */
+    boolean declareAttribute(String name, String type) {
+        attributes.add(name, type);
+        return true;
+    }
+
+    /**
+     * Adds a parameter to the innermost scope, shadowing any attribute.
+     * @return true, parameters are always added.
+     */
+    boolean declareParameter(String name, String type) {
+        innermost().add(name, type);
+        return true;
+    }
+
+    /**
+     * Adds a local variable to the innermost scope unless the name is
+     * already visible from there.
+     * @return true if the variable was added.
+     */
+    boolean declareLocal(String name, String type) {
+        if (isDeclared(name)) {
+            return false;
+        }
+        innermost().add(name, type);
+        return true;
+    }
+
+    /**
+     * @return true if the name is visible from the innermost scope.
+     */
+    boolean isDeclared(String name) {
+        return find(name) != null;
+    }
+
+    /**
+     * @return true if the name visible from the innermost scope is a
+     *         parameter or variable of the method or of a block, not an attribute.
+     */
+    boolean isLocal(String name) {
+        Scope scope = find(name);
+        return scope != null && scope != attributes;
+    }
+
+    /**
+     * @return the type of the name visible from the innermost scope or
+     *         null if it is not declared.
+     */
+    String type(String name) {
+        Scope scope = find(name);
+        return scope == null ? null : scope.types.get(name);
+    }
+
+    /**
+     * @return true if the name visible from the innermost scope was
+     *         declared as a block in any of its declarations.
+     */
+    boolean isBlock(String name) {
+        Scope scope = find(name);
+        return scope != null && scope.blocks.contains(name);
+    }
+
+    /**
+     * @return how many names are declared in all the scopes
+     */
+    int size() {
+        int size = attributes.types.size();
+        for (Scope scope : members.values()) {
+            size += scope.types.size();
+        }
+        for (Scope scope : blocks) {
+            size += scope.types.size();
+        }
+        return size;
+    }
+
+    void clear() {
+        attributes.types.clear();
+        attributes.blocks.clear();
+        members.clear();
+        methodTypes.clear();
+        blocks.clear();
+        member = null;
+    }
+
+    private Scope find(String name) {
+        for (Scope block : blocks) {
+            if (block.types.containsKey(name)) {
+                return block;
+            }
+        }
+        if (member != null && member.types.containsKey(name)) {
+            return member;
+        }
+        return attributes.types.containsKey(name) ? attributes : null;
+    }
+
+    private Scope innermost() {
+        if (!blocks.isEmpty()) {
+            return blocks.peek();
+        }
+        if (member == null) {
+            member(null);
+        }
+        return member;
+    }
+
+    @Override
+    public String toString() {
+        return "SymbolTable{attributes=" + attributes.types
+                + ", members=" + members.size()
+                + ", blocks=" + blocks.size() + "}";
+    }
+
+    private static class Scope {
+        // the type of the first declaration of each name
+        final Map<String, String> types = new HashMap<String, String>();
+        // the names declared as a block at least once
+        final Set<String> blocks = new HashSet<String>();
+
+        void add(String name, String type) {
+            if (!types.containsKey(name)) {
+                types.put(name, type);
+            }
+            if (type.startsWith(blockType)) {
+                blocks.add(name);
+            }
+        }
+    }
+}
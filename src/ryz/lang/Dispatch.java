@@ -0,0 +1,125 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.lang;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Invokes the methods of the receivers whose type is only known when the
+ * program runs, like <code>value.println()</code> with <code>value</code>
+ * declared as Object. See {@link ExtensionCallSite} for how the method is
+ * chosen and cached.
+ * <p/>
+ * Class files can link their invokedynamic instructions with {@link #bootstrap},
+ * each one gets its own call site. The source compiled by javac, which can't
+ * write those instructions, calls <code>invoke</code> instead, and the sites
+ * with the same method name and arguments count share the call site.
+ */
+public final class Dispatch {
+
+    private static final ConcurrentMap<String, MethodHandle> invokers = new ConcurrentHashMap<String, MethodHandle>();
+
+    private Dispatch() {
+    }
+
+    /**
+     * The bootstrap method of the invokedynamic instructions.
+     *
+     * @param caller - Ignored, only public methods are invoked
+     * @param name   - The name of the method invoked
+     * @param type   - The receiver and the arguments and what the site returns
+     * @return a new call site.
+     */
+    public static CallSite bootstrap( MethodHandles.Lookup caller, String name, MethodType type ) {
+        return new ExtensionCallSite( name, type );
+    }
+
+    public static Object invoke( String name, Object receiver ) {
+        try {
+            return (Object) invoker( name, 0 ).invokeExact( receiver );
+        } catch ( Throwable t ) {
+            throw rethrow( t );
+        }
+    }
+
+    public static Object invoke( String name, Object receiver, Object a ) {
+        try {
+            return (Object) invoker( name, 1 ).invokeExact( receiver, a );
+        } catch ( Throwable t ) {
+            throw rethrow( t );
+        }
+    }
+
+    public static Object invoke( String name, Object receiver, Object a, Object b ) {
+        try {
+            return (Object) invoker( name, 2 ).invokeExact( receiver, a, b );
+        } catch ( Throwable t ) {
+            throw rethrow( t );
+        }
+    }
+
+    public static Object invoke( String name, Object receiver, Object a, Object b, Object c ) {
+        try {
+            return (Object) invoker( name, 3 ).invokeExact( receiver, a, b, c );
+        } catch ( Throwable t ) {
+            throw rethrow( t );
+        }
+    }
+
+    /**
+     * @return the invoker of the shared call site for this name and arguments count.
+     */
+    private static MethodHandle invoker( String name, int arguments ) {
+        String key = name + '/' + arguments;
+        MethodHandle invoker = invokers.get( key );
+        if ( invoker == null ) {
+            invoker = new ExtensionCallSite( name, MethodType.genericMethodType( arguments + 1 ) ).dynamicInvoker();
+            MethodHandle previous = invokers.putIfAbsent( key, invoker );
+            if ( previous != null ) {
+                invoker = previous;
+            }
+        }
+        return invoker;
+    }
+
+    private static RuntimeException rethrow( Throwable t ) {
+        if ( t instanceof RuntimeException ) {
+            throw (RuntimeException) t;
+        }
+        if ( t instanceof Error ) {
+            throw (Error) t;
+        }
+        throw new UndeclaredThrowableException( t );
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.lang;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A <code>receiver.name( arguments )</code> call site linked when it is
+ * invoked: to the public method of the receiver with that name or, when
+ * the receiver has none, to the most specific method of {@link Extensions}
+ * that takes the receiver and the arguments.
+ * <p/>
+ * The method found is cached in the site, guarded by the class of the
+ * receiver. The first class makes the site monomorphic, the next ones are
+ * tested before it, up to {@link #MAX_CACHED} classes. Then the site is
+ * megamorphic and the other classes are looked up on every call. When the
+ * receiver alone doesn't choose the method, because more than one overload
+ * takes it or the arguments of the site may not fit the method, the guard
+ * tests the classes of all the arguments.
+ *
+ * @see Dispatch
+ */
+public final class ExtensionCallSite extends MutableCallSite {
+
+    /**
+     * How many classes a call site caches before it becomes megamorphic.
+     */
+    public static final int MAX_CACHED = 8;
+
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle IS_CLASS;
+    private static final MethodHandle ARE_CLASSES;
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            FALLBACK = lookup.findVirtual( ExtensionCallSite.class, "fallback",
+                    MethodType.methodType( Object.class, Object[].class ) );
+            IS_CLASS = lookup.findStatic( ExtensionCallSite.class, "isClass",
+                    MethodType.methodType( boolean.class, Class.class, Object.class ) );
+            ARE_CLASSES = lookup.findStatic( ExtensionCallSite.class, "areClasses",
+                    MethodType.methodType( boolean.class, Class[].class, Object[].class ) );
+        } catch ( ReflectiveOperationException e ) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    private static final List<Method> extensions = new ArrayList<Method>();
+    static {
+        for ( Method method : Extensions.class.getMethods() ) {
+            if ( Modifier.isStatic( method.getModifiers() )
+                    && method.getDeclaringClass() == Extensions.class ) {
+                extensions.add( method );
+            }
+        }
+    }
+
+    private final String name;
+    // the site when no cached class matches
+    private final MethodHandle fallback;
+    private int cached;
+
+    /**
+     * @param name - The name of the method invoked
+     * @param type - The type of the site, the receiver is the first parameter
+     */
+    public ExtensionCallSite( String name, MethodType type ) {
+        super( type );
+        this.name = name;
+        this.fallback = FALLBACK.bindTo( this )
+                .asCollector( Object[].class, type.parameterCount() )
+                .asType( type );
+        setTarget( fallback );
+    }
+
+    /**
+     * @return how many classes are cached, {@link #MAX_CACHED} when the site is megamorphic.
+     */
+    public synchronized int cached() {
+        return cached;
+    }
+
+    /**
+     * Looks up the method for the classes of the arguments, caches it if
+     * there is room and invokes it.
+     */
+    @SuppressWarnings( "unused" )
+    private Object fallback( Object[] arguments ) throws Throwable {
+        if ( arguments[0] == null ) {
+            throw new NullPointerException( "Invoking " + name + " on null" );
+        }
+        Class<?>[] classes = new Class<?>[arguments.length];
+        for ( int i = 0 ; i < arguments.length ; i++ ) {
+            classes[i] = arguments[i] == null ? null : arguments[i].getClass();
+        }
+        List<Method> candidates = applicable( Arrays.asList( classes[0].getMethods() ), classes, true );
+        if ( candidates.isEmpty() ) {
+            candidates = applicable( extensions, classes, false );
+        }
+        Method method = mostSpecific( candidates );
+        if ( method == null ) {
+            throw new IllegalArgumentException( ( candidates.isEmpty() ? "No method " : "Ambiguous method " )
+                    + name + " for " + Arrays.toString( classes ) );
+        }
+        MethodHandle target = MethodHandles.publicLookup().unreflect( accessible( method ) ).asType( type() );
+        boolean member = !Modifier.isStatic( method.getModifiers() );
+        cache( target, classes, isOverloaded( classes[0], arguments.length - 1 )
+                                || !fitsType( method, member ? 1 : 0 ) );
+        return target.invokeWithArguments( arguments );
+    }
+
+    private synchronized void cache( MethodHandle target, Class<?>[] classes, boolean overloaded ) {
+        if ( cached == MAX_CACHED ) {
+            return;
+        }
+        MethodType type = type();
+        MethodHandle test;
+        if ( overloaded ) {
+            test = ARE_CLASSES.bindTo( classes )
+                    .asCollector( Object[].class, type.parameterCount() );
+        } else {
+            test = MethodHandles.dropArguments( IS_CLASS.bindTo( classes[0] ), 1,
+                    type.parameterList().subList( 1, type.parameterCount() ) );
+        }
+        test = test.asType( type.changeReturnType( boolean.class ) );
+        setTarget( MethodHandles.guardWithTest( test, target, getTarget() ) );
+        cached++;
+    }
+
+    @SuppressWarnings( "unused" )
+    private static boolean isClass( Class<?> type, Object receiver ) {
+        return receiver != null && receiver.getClass() == type;
+    }
+
+    @SuppressWarnings( "unused" )
+    private static boolean areClasses( Class<?>[] classes, Object[] arguments ) {
+        for ( int i = 0 ; i < arguments.length ; i++ ) {
+            Class<?> type = arguments[i] == null ? null : arguments[i].getClass();
+            if ( type != classes[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param members - true if the methods belong to the receiver, false
+     *                  if they take it as their first parameter
+     * @return the methods with the name of the site that take the arguments.
+     */
+    private List<Method> applicable( List<Method> methods, Class<?>[] classes, boolean members ) {
+        List<Method> result = new ArrayList<Method>();
+        int skipped = members ? 1 : 0;
+        for ( Method method : methods ) {
+            if ( method.getName().equals( name )
+                    && ( !members || !Modifier.isStatic( method.getModifiers() ) )
+                    && accepts( method, classes, skipped ) ) {
+                result.add( method );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if more than one method could be invoked on the receiver
+     *         with that many arguments, depending on their classes.
+     */
+    private boolean isOverloaded( Class<?> receiver, int count ) {
+        int overloads = 0;
+        for ( Method method : receiver.getMethods() ) {
+            if ( method.getName().equals( name ) && !Modifier.isStatic( method.getModifiers() )
+                    && takes( method, count ) ) {
+                overloads++;
+            }
+        }
+        for ( Method method : extensions ) {
+            if ( method.getName().equals( name ) && takes( method, count + 1 )
+                    && box( method.getParameterTypes()[0] ).isAssignableFrom( receiver ) ) {
+                overloads++;
+            }
+        }
+        return overloads > 1;
+    }
+
+    /**
+     * @param skipped - 1 if the receiver is not a parameter of the method
+     * @return true if any argument the site takes, the receiver aside, can
+     *         be passed to the method.
+     */
+    private boolean fitsType( Method method, int skipped ) {
+        Class<?>[] parameters = method.getParameterTypes();
+        if ( method.isVarArgs() ) {
+            return false;
+        }
+        for ( int i = 1 ; i < type().parameterCount() ; i++ ) {
+            if ( !box( parameters[i - skipped] ).isAssignableFrom( box( type().parameterType( i ) ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean takes( Method method, int count ) {
+        int parameters = method.getParameterTypes().length;
+        return method.isVarArgs() ? count >= parameters - 1 : count == parameters;
+    }
+
+    private static boolean accepts( Method method, Class<?>[] classes, int skipped ) {
+        Class<?>[] parameters = method.getParameterTypes();
+        int count = classes.length - skipped;
+        int fixed = method.isVarArgs() ? parameters.length - 1 : parameters.length;
+        if ( method.isVarArgs() ? count < fixed : count != fixed ) {
+            return false;
+        }
+        for ( int i = 0 ; i < count ; i++ ) {
+            Class<?> parameter = i < fixed ? parameters[i] : parameters[fixed].getComponentType();
+            Class<?> argument = classes[i + skipped];
+            if ( argument == null ? parameter.isPrimitive() : !box( parameter ).isAssignableFrom( argument ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the method whose parameters are all assignable to those of
+     *         the others, or null if there is none.
+     */
+    private static Method mostSpecific( List<Method> candidates ) {
+        for ( Method method : candidates ) {
+            boolean specific = true;
+            for ( Method other : candidates ) {
+                if ( other != method && !isAssignable( method.getParameterTypes(), other.getParameterTypes() ) ) {
+                    specific = false;
+                    break;
+                }
+            }
+            if ( specific ) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAssignable( Class<?>[] from, Class<?>[] to ) {
+        if ( from.length != to.length ) {
+            return false;
+        }
+        for ( int i = 0 ; i < from.length ; i++ ) {
+            if ( !box( to[i] ).isAssignableFrom( box( from[i] ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The method as declared by a public class, a public method of a
+     * private class, like the iterator of a list, can't be invoked from here.
+     */
+    private static Method accessible( Method method ) {
+        LinkedList<Class<?>> types = new LinkedList<Class<?>>();
+        types.add( method.getDeclaringClass() );
+        while ( !types.isEmpty() ) {
+            Class<?> type = types.removeFirst();
+            if ( Modifier.isPublic( type.getModifiers() ) ) {
+                try {
+                    return type.getMethod( method.getName(), method.getParameterTypes() );
+                } catch ( NoSuchMethodException e ) {
+                    // not declared here, try its supertypes
+                }
+            }
+            if ( type.getSuperclass() != null ) {
+                types.add( type.getSuperclass() );
+            }
+            types.addAll( Arrays.asList( type.getInterfaces() ) );
+        }
+        return method;
+    }
+
+    private static Class<?> box( Class<?> type ) {
+        if ( !type.isPrimitive() ) {
+            return type;
+        }
+        return MethodType.methodType( type ).wrap().returnType();
+    }
+}
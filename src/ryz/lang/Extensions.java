@@ -32,6 +32,9 @@ package ryz.lang;
 import ryz.lang.block.Block0;
 import ryz.lang.block.Block1;
 import ryz.lang.block.Block2;
+import ryz.lang.block.IntBlock1;
+import ryz.lang.block.ToBoolBlock0;
+import ryz.lang.block.ToIntBlock2;
 
 import java.util.Arrays;
 import java.util.Comparator;
@@ -65,7 +68,7 @@ public final class Extensions {
         return ifFalse( condition, b );
     }
 
-    private static Bool ifFalse(Boolean condition, Block0<Void> b) {
+    public static Bool ifFalse( Boolean condition , Block0<Void> b ) {
         return Bool.valueOf(condition).ifFalse(b);
     }
 
@@ -78,6 +81,11 @@ public final class Extensions {
             b.run();
         }
     }
+    public static void whileTrue(ToBoolBlock0 condition, Block0<Void> b  ) {
+        while( condition.run() ) {
+            b.run();
+        }
+    }
     public static <T> void each( Collection<T> collection, Block1<Void,T> b ) {
         for( T e : collection ) {
             b.run( e );
@@ -87,6 +95,11 @@ public final class Extensions {
     public static <T> void each( T[] array, Block1<Void,T> b ){
         each( Arrays.asList(array), b);
     }
+    public static void each( int[] array, IntBlock1<Void> b ){
+        for( int e : array ) {
+            b.run( e );
+        }
+    }
     public static void print( String s ) { 
         System.out.print( s );
     }
@@ -95,12 +108,23 @@ public final class Extensions {
     }
 
 
+    // for blocks declared ": Integer", the ": Int" ones use sortInt! and aren't boxed
     public static <T extends Comparable<T>> void sort$em( T[] array,
                                  final Block2<Integer,T,T> blockComparator ) {
+        sortInt$em( array, new ToIntBlock2<T,T>() {
+            public int run(T o1, T o2) {
+                return blockComparator.run(o1,o2);
+            }
+        });
+    }
+
+    // not an overload of sort!, a lambda would fit both
+    public static <T extends Comparable<T>> void sortInt$em( T[] array,
+                                 final ToIntBlock2<T,T> blockComparator ) {
         Comparator<T> c = new Comparator<T>() {
             @Override
             public int compare(T o1, T o2) {
-                return blockComparator.run(o1,o2);  //To change body of implemented methods use File | Settings | File Templates.
+                return blockComparator.run(o1,o2);
             }
         };
         Arrays.sort(array, c);
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks each attribute form is recognized with its type and initial value.
+ */
+@Test
+public class TestAttributeTransformer {
+
+    public void declarations() {
+        assert transform("+ name : String").equals("public  String name ;");
+        assert transform("args : String*").equals("private  String ...  args ;");
+        assert transform("__ count : Int = 1").equals("private static int count  = 1;");
+        assert transform("list = ArrayList()").equals("private  ArrayList list  = new ArrayList();");
+    }
+
+    public void literals() {
+        assert transform("a = 12").equals("private  int a  = 12;");
+        assert transform("a = \"x\"").equals("private  String a  = \"x\";");
+        assert transform("a = true").equals("private  Boolean a  = true;");
+        assert transform("a = 'c'").equals("private  char a  = 'c';");
+        assert transform("a = 2011-01-06").equals("private  java.util.Date a  = ryz.lang.DateLiteral.valueOf(\"2011-01-06 00:00:00\");");
+        assert transform("a = /^(\\d*)$/").equals("private  java.util.regex.Pattern a  = java.util.regex.Pattern.compile(\"(\\\\d*)\");");
+        assert transform("a = null").equals("private  java.lang.Object a  = null;");
+    }
+
+    public void blockAndMultilineState() {
+        RyzClass ryzClass = newClass();
+        new AttributeTransformer(ryzClass.state()).transform("b = ( x : Int ) : Int {", new ArrayList<String>());
+        assert ryzClass.state() instanceof InsideBlockState;
+
+        ryzClass = newClass();
+        new AttributeTransformer(ryzClass.state()).transform("a = \"  x", new ArrayList<String>());
+        assert ryzClass.state() instanceof InsideMultiLineStringState;
+    }
+
+    public void notAnAttribute() {
+        assert transform("a == b").equals("");
+        assert transform("__ args : String*").equals("");
+        assert transform("a : Int =").equals("");
+    }
+
+    private static String transform(String line) {
+        RyzClass ryzClass = newClass();
+        List<String> generated = new ArrayList<String>();
+        new AttributeTransformer(ryzClass.state()).transform(line, generated);
+        return generated.isEmpty() ? "" : generated.get(0).replace("/*attribute*/", "").trim();
+    }
+
+    private static RyzClass newClass() {
+        RyzClass ryzClass = new RyzClass("Test.ryz", new ArrayList<String>());
+        ryzClass.className("Test");
+        ryzClass.state(new InsideClassState(ryzClass));
+        return ryzClass;
+    }
+}
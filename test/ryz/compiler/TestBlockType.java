@@ -0,0 +1,72 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the block interfaces chosen for primitive parameters and returns.
+ */
+@Test
+public class TestBlockType {
+
+    private BlockType of(String parameters, String returnType) {
+        return BlockType.of(ParameterInfo.parse(parameters), returnType);
+    }
+
+    public void generic() {
+        assert of("", "Void").type().equals("ryz.lang.block.Block0<Void >");
+        assert of("    /*attribute*/  String s ,    /*attribute*/  int i ", "Void").type()
+                .equals("ryz.lang.block.Block2<Void ,String,Integer>");
+    }
+
+    public void specialized() {
+        BlockType condition = of("", "Boolean");
+        assert condition.type().equals("ryz.lang.block.ToBoolBlock0");
+        assert condition.returnType().equals("boolean");
+        assert of("    /*attribute*/  int i ", "Void").type()
+                .equals("ryz.lang.block.IntBlock1<Void >");
+        assert of("    /*attribute*/  int a ,    /*attribute*/  int b ", "int").type()
+                .equals("ryz.lang.block.IntIntToIntBlock2");
+        assert of("    /*attribute*/  String a ,    /*attribute*/  String b ", "int").type()
+                .equals("ryz.lang.block.ToIntBlock2<String,String>");
+        assert of("    /*attribute*/  long l ", "Boolean").type()
+                .equals("ryz.lang.block.LongToBoolBlock1");
+    }
+
+    public void literal() {
+        String parameters = "    /*attribute*/  int n ";
+        BlockType twice = of(parameters, "int");
+        assert twice.literal(parameters, false).equals(String.format(
+                "new ryz.lang.block.IntToIntBlock1(){%n    public int run(" + parameters + "){%n"));
+        assert twice.literal(parameters, true).equals(String.format(
+                "(ryz.lang.block.IntToIntBlock1) (" + parameters + ") -> {%n"));
+        assert twice.signature(parameters, false).equals(parameters + ":int");
+        assert twice.signature(parameters, true).equals(InsideBlockState.LAMBDA + parameters + ":int");
+    }
+}
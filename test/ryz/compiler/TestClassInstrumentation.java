@@ -0,0 +1,132 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Checks the "throws" clauses are removed from methods and constructors.
+ */
+@Test
+public class TestClassInstrumentation {
+
+    static class Thrower {
+        Thrower() throws Exception {
+        }
+        void run() throws IOException {
+        }
+        int notThrowing() {
+            return 0;
+        }
+    }
+
+    public void removeCheckedExceptions() throws Exception {
+        String className = Thrower.class.getName();
+        byte[] classFile = ClassInstrumentation.removeCheckedExceptions(read(Thrower.class));
+
+        Class<?> clazz = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define(String name, byte[] b) {
+                return defineClass(name, b, 0, b.length);
+            }
+        }.define(className, classFile);
+
+        assert clazz != Thrower.class;
+        for (Constructor<?> c : clazz.getDeclaredConstructors()) {
+            assert c.getExceptionTypes().length == 0 : c;
+        }
+        for (Method m : clazz.getDeclaredMethods()) {
+            assert m.getExceptionTypes().length == 0 : m;
+        }
+        assert clazz.getDeclaredMethod("notThrowing") != null;
+    }
+
+    /**
+     * The constant pool entries of the newer class files are copied as they are.
+     * @throws IOException  If the class file can't be written
+     */
+    public void newerConstantPoolEntries() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(55);
+        out.writeShort(9);
+        out.writeByte(1);   // #1 Utf8
+        out.writeUTF("A");
+        out.writeByte(7);   // #2 Class
+        out.writeShort(1);
+        out.writeByte(1);   // #3 Utf8
+        out.writeUTF("java/lang/Object");
+        out.writeByte(7);   // #4 Class
+        out.writeShort(3);
+        out.writeByte(19);  // #5 Module
+        out.writeShort(1);
+        out.writeByte(20);  // #6 Package
+        out.writeShort(1);
+        out.writeByte(12);  // #7 NameAndType
+        out.writeShort(1);
+        out.writeShort(3);
+        out.writeByte(17);  // #8 Dynamic
+        out.writeShort(0);
+        out.writeShort(7);
+        out.writeShort(0x21);
+        out.writeShort(2);
+        out.writeShort(4);
+        out.writeShort(0);  // interfaces
+        out.writeShort(0);  // fields
+        out.writeShort(0);  // methods
+        out.writeShort(0);  // attributes
+        byte[] classFile = bytes.toByteArray();
+
+        assert Arrays.equals(ClassInstrumentation.removeCheckedExceptions(classFile), classFile);
+    }
+
+    private static byte[] read(Class<?> clazz) throws IOException {
+        String name = clazz.getName();
+        InputStream in = clazz.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
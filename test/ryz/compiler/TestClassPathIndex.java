@@ -0,0 +1,123 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Checks the types and packages are found without loading the classes.
+ */
+@Test
+public class TestClassPathIndex {
+
+    public void platformClasses() {
+        ClassPathIndex index = ClassPathIndex.platform();
+        assert index.exists("java.lang.Thread");
+        assert !index.isInterface("java.lang.Thread");
+        assert index.isInterface("java.lang.Runnable");
+        assert !index.exists("Runnable");
+        assert !index.exists("no.such.Type");
+        assert !index.isInterface("no.such.Type");
+    }
+
+    public void jarsAndDirectories() throws IOException {
+        File jar = File.createTempFile("index", ".jar");
+        jar.deleteOnExit();
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new JarEntry("some/pkg/Runner.class"));
+            InputStream in = ClassLoader.getSystemResourceAsStream("java/lang/Runnable.class");
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, read);
+            }
+            in.close();
+        } finally {
+            out.close();
+        }
+        File classes = new File(ClassPathIndex.class.getProtectionDomain()
+                                        .getCodeSource().getLocation().getFile());
+
+        ClassPathIndex index = new ClassPathIndex(Arrays.asList(jar, classes, new File("missing")));
+        try {
+            assert index.hasPackage("some");
+            assert index.hasPackage("some.pkg");
+            assert index.hasPackage("ryz.compiler");
+            assert !index.hasPackage("no.such");
+            assert index.isInterface("some.pkg.Runner");
+            assert index.exists("ryz.compiler.ClassPathIndex");
+            assert !index.isInterface("ryz.compiler.ClassPathIndex");
+            assert index.packageContents("some.pkg").equals(
+                    new TreeSet<String>(Arrays.asList("some.pkg.Runner")));
+            assert index.packageContents("ryz.compiler").contains("ryz.compiler.ClassPathIndex");
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * A jar rewritten or an entry created after indexing makes the index stale.
+     * @throws IOException  If the jar can't be written
+     */
+    public void staleIndex() throws IOException {
+        File jar = File.createTempFile("stale", ".jar");
+        jar.deleteOnExit();
+        new JarOutputStream(new FileOutputStream(jar)).close();
+        File missing = new File(jar.getPath() + ".missing");
+
+        ClassPathIndex index = new ClassPathIndex(Arrays.asList(jar, missing));
+        try {
+            assert index.isCurrent();
+            JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+            out.putNextEntry(new JarEntry("some/pkg/Runner.class"));
+            out.close();
+            assert !index.isCurrent();
+        } finally {
+            index.close();
+        }
+
+        index = new ClassPathIndex(Arrays.asList(jar, missing));
+        try {
+            assert index.isCurrent();
+            assert missing.mkdir();
+            assert !index.isCurrent();
+        } finally {
+            index.close();
+            missing.delete();
+        }
+    }
+}
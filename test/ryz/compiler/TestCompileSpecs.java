@@ -114,6 +114,15 @@ public class TestCompileSpecs {
 
 
 
+    /**
+     * Same specs, creating the class files with the direct backend.
+     */
+    @Test(dataProvider="sourceFiles")
+    public void runTestsWithDirectBackend(Properties spec) throws IOException, ClassNotFoundException {
+        testUtil.directBackend(true);
+        runTests(spec);
+    }
+
     @DataProvider(name="sourceFiles")
     private Object [][] loadSourceFiles() throws IOException {
 
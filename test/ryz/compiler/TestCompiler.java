@@ -63,6 +63,7 @@ public class TestCompiler {
         testUtil.deleteFromOutput("test/classpath/WithClassPath.class");
         testUtil.deleteFromOutput("test/two/files/CompileOne.class");
         testUtil.deleteFromOutput("test/two/files/CompileTwo.class");
+        testUtil.deleteFromOutput("extension/methods/TwoArgMethod.class");
     }
 
     /**
@@ -90,4 +91,133 @@ public class TestCompiler {
         testUtil.assertExists(first);
         testUtil.assertExists(second);
     }
+
+    @Test
+    public void compileTwoFilesInParallel() throws ClassNotFoundException, IOException {
+        String first = "test.two.files.CompileOne";
+        String second = "test.two.files.CompileTwo";
+
+        testUtil.addSourceDir(new File("test-samples/00.loading/"));
+        testUtil.threads(2);
+        testUtil.assertMissing(first);
+        testUtil.assertMissing(second);
+        testUtil.compile("CompileOne.ryz", "CompileTwo.ryz");
+        testUtil.assertExists(first);
+        testUtil.assertExists(second);
+    }
+
+    /**
+     * An incremental compilation restores the class files of the sources
+     * that didn't change.
+     * @throws IOException  If the compiler can't write/read from disk
+     * @throws ClassNotFoundException  - If the class is not found.
+     */
+    @Test
+    public void compileIncrementally() throws ClassNotFoundException, IOException {
+        String first = "test.two.files.CompileOne";
+        String second = "test.two.files.CompileTwo";
+        File cache = new File("test-samples/output/" + BuildCache.DIRECTORY);
+        try {
+            testUtil.addSourceDir(new File("test-samples/00.loading/"));
+            testUtil.incremental(true);
+            testUtil.compile("CompileOne.ryz", "CompileTwo.ryz");
+            assert cache.isDirectory();
+            testUtil.deleteFromOutput("test/two/files/CompileTwo.class");
+            testUtil.compile("CompileOne.ryz", "CompileTwo.ryz");
+            testUtil.assertExists(first);
+            testUtil.assertExists(second);
+        } finally {
+            File[] entries = cache.listFiles();
+            for (File entry : entries == null ? new File[0] : entries) {
+                entry.delete();
+            }
+            cache.delete();
+        }
+    }
+
+    /**
+     * The cache is discarded when the class files would be created
+     * differently, here by the other backend.
+     * @throws IOException  If the compiler can't write/read from disk
+     * @throws ClassNotFoundException  - If the class is not found.
+     */
+    @Test
+    public void discardCacheOfOtherBackend() throws ClassNotFoundException, IOException {
+        File cache = new File("test-samples/output/" + BuildCache.DIRECTORY);
+        try {
+            testUtil.addSourceDir(new File("test-samples/00.loading/"));
+            testUtil.incremental(true);
+            testUtil.compile("CompileOne.ryz");
+            File entry = null;
+            for (File file : cache.listFiles()) {
+                if (file.getName().endsWith(".entry")) {
+                    entry = file;
+                }
+            }
+            assert entry.setLastModified(1000);
+
+            testUtil.compile("CompileOne.ryz");
+            assert entry.lastModified() == 1000 : "compiled again with the same options";
+
+            testUtil.directBackend(true);
+            testUtil.compile("CompileOne.ryz");
+            assert entry.lastModified() != 1000 : "the cache of the javac backend was used";
+            testUtil.assertExists("test.two.files.CompileOne");
+        } finally {
+            File[] entries = cache.listFiles();
+            for (File file : entries == null ? new File[0] : entries) {
+                file.delete();
+            }
+            cache.delete();
+        }
+    }
+
+    /**
+     * Compiling again with the same compiler reuses the javac file manager.
+     * @throws IOException  If the compiler can't write/read from disk
+     */
+    @Test
+    public void reuseJavacSession() throws IOException {
+        testUtil.addSourceDir(new File("test-samples/00.loading/"));
+        testUtil.compile("CompileOne.ryz");
+        assert testUtil.session().fileManagerReuses() == 0;
+        testUtil.compile("CompileTwo.ryz");
+        assert testUtil.session().fileManagerReuses() > 0;
+        assert testUtil.session().listHits() > 0;
+    }
+
+    /**
+     * A class that compiles in the first round is not compiled again while
+     * the other one is being fixed.
+     * @throws ClassNotFoundException If the classes are not created
+     * @throws IOException  If the compiler can't write/read from disk
+     */
+    @Test
+    public void freezeClassesThatCompiled() throws ClassNotFoundException, IOException {
+        testUtil.addSourceDir(new File("test-samples/"));
+        testUtil.compile("00.loading/CompileOne.ryz", "13.extensionMethods/TwoArgsMethodSpec.ryz");
+        testUtil.assertExists("test.two.files.CompileOne");
+        testUtil.assertExists("extension.methods.TwoArgMethod");
+        // both in the first round, only TwoArgMethod in the second one
+        assert testUtil.session().compilationUnits() == 3 : testUtil.session();
+    }
+
+    /**
+     * The classes of a compilation are released after it, the next
+     * compilation finds them in the output directory.
+     * @throws ClassNotFoundException If the class is not created
+     * @throws IOException  If the compiler can't write/read from disk
+     */
+    @Test
+    public void compileAgainstPreviousOutput() throws ClassNotFoundException, IOException {
+        String first = "test.two.files.CompileOne";
+        String second = "test.two.files.CompileTwo";
+
+        testUtil.addSourceDir(new File("test-samples/00.loading/"));
+        testUtil.compile("CompileOne.ryz");
+        testUtil.assertExists(first);
+        testUtil.assertMissing(second);
+        testUtil.compile("CompileTwo.ryz");
+        testUtil.assertExists(second);
+    }
 }
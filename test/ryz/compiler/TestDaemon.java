@@ -0,0 +1,236 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Sends compile requests to a daemon running in the test JVM.
+ */
+@Test
+public class TestDaemon {
+
+    private RyzDaemon daemon;
+    private File workingDir;
+    private File tokenFile;
+
+    @BeforeMethod
+    void init() throws IOException {
+        tokenFile = new File("test-samples/output/daemon.token");
+        daemon = new RyzDaemon(0, tokenFile);
+        daemon.start();
+        workingDir = new File("test-samples/output/daemon/").getCanonicalFile();
+        workingDir.mkdirs();
+        copy(new File("test-samples/00.loading/First.ryz"), new File(workingDir, "First.ryz"));
+    }
+
+    @AfterMethod
+    void cleanUp() {
+        daemon.stop();
+        new File(workingDir, "load/test/First.class").delete();
+        new File(workingDir, "load/test").delete();
+        new File(workingDir, "load").delete();
+        new File(workingDir, "First.ryz").delete();
+        new File(workingDir, "UsesLib.ryz").delete();
+        new File(workingDir, "daemon/UsesLib.class").delete();
+        new File(workingDir, "daemon").delete();
+        new File(workingDir, "lib/dep/Greeting.java").delete();
+        new File(workingDir, "lib/dep/Greeting.class").delete();
+        new File(workingDir, "lib/dep").delete();
+        new File(workingDir, "lib").delete();
+        workingDir.delete();
+    }
+
+    /**
+     * The daemon compiles in the working directory of the client.
+     * @throws IOException  If the compiler can't write/read from disk
+     */
+    public void compile() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int status = RyzClient.send(daemon.localPort(), tokenFile, workingDir,
+                                    new String[]{"First.ryz"}, new PrintStream(baos));
+        assert status == 0 : baos;
+        assert new File(workingDir, "load/test/First.class").exists();
+        // and again, with a warm daemon
+        status = RyzClient.send(daemon.localPort(), tokenFile, workingDir,
+                                new String[]{"First.ryz"}, new PrintStream(baos));
+        assert status == 0 : baos;
+    }
+
+    /**
+     * The errors are sent back to the client.
+     * @throws IOException  If the compiler can't write/read from disk
+     */
+    public void fileNotFound() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int status = RyzClient.send(daemon.localPort(), tokenFile, workingDir,
+                                    new String[]{"NonExisting.ryz"}, new PrintStream(baos));
+        assert status == 1;
+        assert baos.toString().equals(String.format("RyzC: file not found NonExisting.ryz%n"));
+    }
+
+    /**
+     * Without -cp the default classpath ( ./lib/ ... ) is the one of the
+     * client's directory, not the one of the daemon.
+     * @throws IOException  If the compiler can't write/read from disk
+     */
+    public void defaultClassPathOfTheClient() throws IOException {
+        File dep = new File(workingDir, "lib/dep");
+        dep.mkdirs();
+        File greeting = new File(dep, "Greeting.java");
+        write(greeting, "package dep; public class Greeting { public static String text() { return \"hi\"; } }");
+        assert ToolProvider.getSystemJavaCompiler().run(null, null, null, greeting.getPath()) == 0;
+        write(new File(workingDir, "UsesLib.ryz"),
+              "daemon.UsesLib {\n    main() {\n        out.println( dep.Greeting.text() )\n    }\n}\n");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int status = RyzClient.send(daemon.localPort(), tokenFile, workingDir,
+                                    new String[]{"UsesLib.ryz"}, new PrintStream(baos));
+        assert status == 0 : baos;
+        assert new File(workingDir, "daemon/UsesLib.class").exists();
+    }
+
+    /**
+     * A class written to the classpath after a request is seen by the next
+     * one, even if the pooled session looked for its package before.
+     * @throws IOException  If the compiler can't write/read from disk
+     */
+    public void classPathChangedBetweenRequests() throws IOException {
+        write(new File(workingDir, "UsesLib.ryz"),
+              "daemon.UsesLib {\n    main() {\n        out.println( dep.Greeting.text() )\n    }\n}\n");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int status = RyzClient.send(daemon.localPort(), tokenFile, workingDir,
+                                    new String[]{"UsesLib.ryz"}, new PrintStream(baos));
+        assert status != 0 : baos;
+
+        File dep = new File(workingDir, "lib/dep");
+        dep.mkdirs();
+        File greeting = new File(dep, "Greeting.java");
+        write(greeting, "package dep; public class Greeting { public static String text() { return \"hi\"; } }");
+        assert ToolProvider.getSystemJavaCompiler().run(null, null, null, greeting.getPath()) == 0;
+
+        baos.reset();
+        status = RyzClient.send(daemon.localPort(), tokenFile, workingDir,
+                                new String[]{"UsesLib.ryz"}, new PrintStream(baos));
+        assert status == 0 : baos;
+        assert new File(workingDir, "daemon/UsesLib.class").exists();
+    }
+
+    /**
+     * Requests without the token of the daemon are rejected, the stop request too.
+     * @throws IOException  If the compiler can't write/read from disk
+     */
+    public void invalidToken() throws IOException {
+        assert RyzDaemon.readToken(tokenFile).length() == 32;
+        File otherToken = new File(workingDir, "other.token");
+        write(otherToken, "0123456789abcdef0123456789abcdef");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int status = RyzClient.send(daemon.localPort(), otherToken, workingDir,
+                                    new String[]{RyzDaemon.STOP}, new PrintStream(baos));
+        otherToken.delete();
+        assert status == 1;
+        assert baos.toString().startsWith("RyzDaemon: invalid token") : baos;
+
+        baos.reset();
+        status = RyzClient.send(daemon.localPort(), tokenFile, workingDir,
+                                new String[]{"First.ryz"}, new PrintStream(baos));
+        assert status == 0 : baos;
+    }
+
+    /**
+     * The argument count is checked before the arguments are read.
+     * @throws IOException  If the daemon can't be reached
+     */
+    public void invalidArgumentCount() throws IOException {
+        assert request(-1).equals(String.format("RyzDaemon: invalid argument count -1%n"));
+        assert request(Integer.MAX_VALUE).startsWith("RyzDaemon: invalid argument count");
+    }
+
+    /**
+     * Sends a request with the given argument count and no arguments.
+     * @return what the daemon reports
+     */
+    private String request(int count) throws IOException {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), daemon.localPort());
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(RyzDaemon.readToken(tokenFile));
+            out.writeUTF(workingDir.getPath());
+            out.writeInt(count);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assert in.readInt() == 1;
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            return new String(output, "UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
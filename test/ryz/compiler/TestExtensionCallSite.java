@@ -0,0 +1,143 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+import ryz.lang.Dispatch;
+import ryz.lang.ExtensionCallSite;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Checks the methods chosen and cached by the extension call sites.
+ */
+@Test
+public class TestExtensionCallSite {
+
+    private static MethodHandle site(String name, MethodType type) {
+        return Dispatch.bootstrap(MethodHandles.lookup(), name, type).dynamicInvoker();
+    }
+
+    public void extensionsAndMembers() throws Throwable {
+        assert Dispatch.invoke("$lt", 1, 2).equals(true);
+        assert Dispatch.invoke("$lt", "b", "a").equals(false);
+        assert Dispatch.invoke("not", true).equals(false);
+        // a method of the receiver wins
+        assert Dispatch.invoke("length", "abc").equals(3);
+        assert Dispatch.invoke("size", Arrays.asList(1, 2)).equals(2);
+        // varargs
+        assert Dispatch.invoke("$percent", "%s-%s", "a", "b").equals("a-b");
+        assert Dispatch.invoke("$percent", 7, 4).equals(3);
+    }
+
+    public void missingMethods() {
+        try {
+            Dispatch.invoke("$lt", 1, "a");
+            assert false;
+        } catch (IllegalArgumentException e) {
+            assert e.getMessage().startsWith("No method $lt") : e.getMessage();
+        }
+        try {
+            Dispatch.invoke("println", null);
+            assert false;
+        } catch (NullPointerException e) {
+            assert e.getMessage().contains("println");
+        }
+    }
+
+    public void monomorphic() throws Throwable {
+        ExtensionCallSite site = new ExtensionCallSite("not", MethodType.methodType(Object.class, Object.class));
+        MethodHandle invoker = site.dynamicInvoker();
+        for (int i = 0; i < 10; i++) {
+            assert invoker.invoke(i % 2 == 0).equals(i % 2 != 0);
+        }
+        assert site.cached() == 1;
+    }
+
+    /**
+     * Both overloads of $lt take an Integer receiver, the argument decides.
+     */
+    public void overloadsGuardTheArguments() throws Throwable {
+        ExtensionCallSite site = new ExtensionCallSite("$eq$eq",
+                MethodType.genericMethodType(2));
+        MethodHandle invoker = site.dynamicInvoker();
+        assert invoker.invoke(1, 1).equals(true);
+        assert invoker.invoke("a", "b").equals(false);
+        assert site.cached() == 2;
+
+        MethodHandle lt = site("$lt", MethodType.genericMethodType(2));
+        assert lt.invoke(1, 2).equals(true);
+        try {
+            lt.invoke(1, "a");
+            assert false;
+        } catch (IllegalArgumentException e) {
+            assert e.getMessage().startsWith("No method $lt") : e.getMessage();
+        }
+    }
+
+    public void megamorphic() throws Throwable {
+        ExtensionCallSite site = new ExtensionCallSite("$eq$eq", MethodType.genericMethodType(2));
+        MethodHandle invoker = site.dynamicInvoker();
+        Object[] receivers = {1, 2L, "a", 'c', 1.5, 2.5f, (short) 3, (byte) 4,
+                              new Date(0), new ArrayList<Object>(), new LinkedList<Object>(), new HashMap<Object, Object>()};
+        for (int round = 0; round < 2; round++) {
+            for (Object receiver : receivers) {
+                assert invoker.invoke(receiver, receiver).equals(true);
+                assert invoker.invoke(receiver, "other").equals(false);
+            }
+        }
+        assert site.cached() == ExtensionCallSite.MAX_CACHED;
+    }
+
+    /**
+     * A site with a specific type, as an invokedynamic instruction has.
+     */
+    public void typedSite() throws Throwable {
+        MethodHandle lt = site("$lt", MethodType.methodType(boolean.class, int.class, int.class));
+        assert (boolean) lt.invokeExact(1, 2);
+        assert !(boolean) lt.invokeExact(2, 1);
+        MethodHandle length = site("length", MethodType.methodType(int.class, String.class));
+        assert (int) length.invokeExact("abcd") == 4;
+    }
+
+    /**
+     * Public methods declared by a private class are invoked through its public interface.
+     */
+    public void privateClassMembers() {
+        Object iterator = Arrays.asList("a").iterator();
+        assert Dispatch.invoke("hasNext", iterator).equals(true);
+        assert Dispatch.invoke("next", iterator).equals("a");
+    }
+}
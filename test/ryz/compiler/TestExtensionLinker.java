@@ -0,0 +1,92 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the extension methods are linked only on receivers of known types.
+ */
+@Test
+public class TestExtensionLinker {
+
+    private SymbolTable symbols() {
+        SymbolTable symbols = new SymbolTable();
+        symbols.declareAttribute("a", "int");
+        symbols.declareAttribute("ok", "Boolean");
+        symbols.declareAttribute("s", "String");
+        symbols.declareAttribute("list", "List");
+        symbols.declareAttribute("o", "Object");
+        return symbols;
+    }
+
+    private String link(String line) {
+        return ExtensionLinker.link(line, symbols());
+    }
+
+    public void linked() {
+        assert link("\"Hola\".println();").equals("println(\"Hola\");");
+        assert link("out.println( s .$lt$eq$gt ( \"b\" ) );")
+                .equals("out.println( $lt$eq$gt(s, \"b\") );");
+        assert link("x = ok.not().$bar$bar( a.$eq$eq(1) );")
+                .equals("x = $bar$bar(not(ok), $eq$eq(a, 1));");
+        assert link("return \"%d %s\".$percent( a, s ).trim().length();")
+                .equals("return $percent(\"%d %s\", a, s).trim().length();");
+        assert link("ok.ifTrue( r );").equals("ifTrue(ok, r);");
+    }
+
+    /**
+     * Receivers declared with a supertype of the one the extensions take
+     * are dispatched when the program runs.
+     */
+    public void dispatched() {
+        assert link("o.println();").equals("ryz.lang.Dispatch.invoke(\"println\", o);");
+        assert link("x = o.$lt( 1 ).not();")
+                .equals("x = not(((java.lang.Boolean) ryz.lang.Dispatch.invoke(\"$lt\", o, 1)));");
+        assert link("o.toString().println();").equals("println(o.toString());");
+    }
+
+    public void leftForJavac() {
+        String[] lines = {
+            "s.trim();",
+            "s.reverse();",
+            "list.each( b );",
+            "a.toBinaryString();",
+            "5.println();",
+            "this.s.println();",
+            "s.print(",
+            "out.println( \"s.println()\" );",
+            "/* \"a\".println() */",
+            "o.trim();",
+            "o.$percent( 1 );"
+        };
+        for (String line : lines) {
+            assert link(line) == line : link(line);
+        }
+    }
+}
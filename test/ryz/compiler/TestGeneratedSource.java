@@ -0,0 +1,74 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the generated source is rendered with the package and imports first
+ * and only when it changes.
+ */
+@Test
+public class TestGeneratedSource {
+
+    public void packageAndImportsFirst() {
+        GeneratedSource source = new GeneratedSource();
+        source.addAll(Arrays.asList("//-- Created\n", "import a.B;\n", "package p;\n",
+                "public class C {\n", "import c.D;\n", "}\n"));
+        assert source.render().equals("package p;\nimport a.B;\nimport c.D;\n//-- Created\npublic class C {\n}\n");
+        assert source.get(0).equals("package p;\n");
+    }
+
+    public void renderedUntilEdited() {
+        GeneratedSource source = new GeneratedSource();
+        source.add("package p;\n");
+        source.add("class C {}\n");
+        String rendered = source.render();
+        assert source.render() == rendered;
+        source.set(1, "class D {}\n");
+        assert source.render() != rendered;
+        assert source.render().equals("package p;\nclass D {}\n");
+    }
+
+    public void replaceSplitsLines() {
+        String[] sources = { "", "\n", "a", "a\n", "a\n\nb\n\n\n", "\na\nb" };
+        for (String text : sources) {
+            GeneratedSource source = new GeneratedSource();
+            source.replace(text);
+            List<String> expected = new ArrayList<String>();
+            for (String line : text.split("\n")) {
+                expected.add(line + "\n");
+            }
+            assert source.equals(expected) : text;
+        }
+    }
+}
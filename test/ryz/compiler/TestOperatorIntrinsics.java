@@ -0,0 +1,76 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the operator methods are replaced only on primitive operands.
+ */
+@Test
+public class TestOperatorIntrinsics {
+
+    private SymbolTable symbols() {
+        SymbolTable symbols = new SymbolTable();
+        symbols.declareAttribute("a", "int");
+        symbols.declareAttribute("ok", "boolean");
+        symbols.declareAttribute("s", "String");
+        return symbols;
+    }
+
+    private String inline(String line) {
+        return OperatorIntrinsics.inline(line, symbols());
+    }
+
+    public void chains() {
+        assert inline("out.println( 5 .$plus( 5 ) .$minus (2) );")
+                .equals("out.println( ((5 + 5) - 2) );");
+        assert inline("return a .$star ( a .$plus(1) ) .$lt( -3 );")
+                .equals("return ((a * (a + 1)) < -3);");
+        assert inline("x = ok .$amp$amp( a .$em$eq(0) ) .$bar$bar(false);")
+                .equals("x = ((ok & (a != 0)) | false);");
+    }
+
+    public void leftForJavac() {
+        String[] lines = {
+            "s .$plus( a );",
+            "a .$plus( s );",
+            "a .$amp$amp( ok );",
+            "list.size() .$gt ( 0 );",
+            "this.a .$plus( 1 );",
+            "a .$plus( 1 ).toString();",
+            "a .$eq$eq( 1 );",
+            "5.$plus( 1 );",
+            "out.println( \"a .$plus( 1 )\" );",
+            "/* a .$plus( 1 ) */"
+        };
+        for (String line : lines) {
+            assert inline(line) == line : inline(line);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the class headers read by the parser.
+ */
+@Test
+public class TestParser {
+
+    public void classHeader() {
+        Ast.ClassDeclaration header = new Parser("some.pkg.Name : java.lang.Thread, Runnable { a = 1").classHeader();
+        assert header.packageName.equals("some.pkg") && header.name.equals("Name");
+        assert header.supertypes.size() == 2;
+        assert header.supertypes.get(0).name.equals("java.lang.Thread");
+        assert header.supertypes.get(1).column == 35;
+        try {
+            new Parser("out.println( { 1 } )").classHeader();
+            assert false;
+        } catch (SyntaxError notAClass) {
+            assert notAClass.line() == 1;
+        }
+    }
+
+    public void reportPosition() {
+        try {
+            new Parser("\na.B : {\n").classHeader();
+            assert false;
+        } catch (SyntaxError e) {
+            assert e.line() == 2 && e.column() == 7 : e.getMessage();
+        }
+    }
+}
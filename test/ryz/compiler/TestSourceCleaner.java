@@ -0,0 +1,246 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the SourceCleaner produces the same lines as the regular expressions
+ * it replaced. Run main to compare their speed.
+ */
+public class TestSourceCleaner {
+
+    private static final String[] LINES = {
+            "",
+            "   ",
+            "self",
+            "  self  ",
+            "self.name = name",
+            "a = self b",
+            "a = self  self b",
+            "print( self )",
+            "out.println( self + \"x\" )",
+            "out.println( \"self\" + self )",
+            "myself.x()",
+            "// a comment",
+            "a = b // a comment",
+            "a = \"http://ryz\" // a comment",
+            "a = b // one // two",
+            "+ ( other : Int ) : Int {",
+            "- ( other : Int ) {",
+            "#+ ( other ) {",
+            "~ __ == ( other ) {",
+            "__ toString() : String {",
+            "___ x() {",
+            "_ _ (",
+            "-__ + ( x ) {",
+            "== : Boolean {",
+            "a = b .+ ( c ).* (d)",
+            "a = b. == (c)",
+            "a.b.c.d()",
+            "a. b",
+            "x.<=(1).?:(2)"
+    };
+
+    @Test
+    public void sameLinesAsRegularExpressions() {
+        for (String line : LINES) {
+            List<String> expected = Reference.cleanLines(Arrays.asList(line));
+            List<String> actual = new SourceCleaner().clean(Arrays.asList(line));
+            assert actual.equals(expected) : line + " => " + actual + " expected: " + expected;
+        }
+    }
+
+    @Test
+    public void sameLinesInTheSamples() throws IOException {
+        for (File file : samples()) {
+            List<String> expected = Reference.cleanLines(read(file));
+            List<String> actual = new SourceCleaner().clean(read(file));
+            assert actual.equals(expected) : file;
+        }
+    }
+
+    /**
+     * Cleans every sample many times with both implementations.
+     *
+     * @param args - The number of iterations, 2000 by default
+     * @throws IOException - If a sample can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        List<List<String>> sources = new ArrayList<List<String>>();
+        int lines = 0;
+        for (File file : samples()) {
+            List<String> source = read(file);
+            sources.add(source);
+            lines += source.size();
+        }
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (List<String> source : sources) {
+                    Reference.cleanLines(source);
+                }
+            }
+            long regex = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (List<String> source : sources) {
+                    new SourceCleaner().clean(source);
+                }
+            }
+            long scanner = System.nanoTime() - start;
+            System.out.printf("%d lines x %d: regex %d ms, scanner %d ms, %.1fx%n",
+                    lines, iterations, regex / 1000000, scanner / 1000000,
+                    (double) regex / scanner);
+        }
+    }
+
+    private static List<File> samples() {
+        List<File> files = new ArrayList<File>();
+        for (File dir : new File("test-samples").listFiles()) {
+            File[] ryz = dir.listFiles();
+            if (ryz == null) {
+                continue;
+            }
+            for (File file : ryz) {
+                if (file.getName().endsWith(".ryz")) {
+                    files.add(file);
+                }
+            }
+        }
+        assert !files.isEmpty();
+        return files;
+    }
+
+    private static List<String> read(File file) throws IOException {
+        SourceReader reader = new SourceReader(file);
+        try {
+            List<String> lines = new ArrayList<String>();
+            for (String line : reader) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The regular expressions RyzC used before SourceCleaner.
+     */
+    private static class Reference {
+
+        private static final Map<Character, String> operatorMap = new HashMap<Character, String>() {{
+            put('+', "$plus");
+            put('-', "$minus");
+            put('*', "$star");
+            put('/', "$slash");
+            put('%', "$percent");
+            put('<', "$lt");
+            put('>', "$gt");
+            put('=', "$eq");
+            put('!', "$em");
+            put('&', "$amp");
+            put('^', "$up");
+            put('|', "$bar");
+            put('?', "$qm");
+            put(':', "$colon");
+        }};
+
+        static List<String> cleanLines(List<String> input) {
+            List<String> result = new ArrayList<String>();
+            for (String s : input) {
+                result.add(s.trim());
+            }
+            input = result;
+            result = new ArrayList<String>();
+            for (String line : input) {
+                result.add(line
+                        .replaceAll("(?!.*\\s+self\\s+.*\\\")\\s+self\\s+", " this ")
+                        .replaceAll("self\\.", "this.")
+                        .replaceAll("^self$", "this"));
+            }
+            input = result;
+            result = new ArrayList<String>();
+            for (String line : input) {
+                if (line.contains("//") && !line.startsWith("//")) {
+                    String[] strings = line.split("\\/\\/");
+                    result.add(strings[0].trim());
+                    result.add("//" + strings[1].trim());
+                } else {
+                    result.add(line);
+                }
+            }
+            result = substitute(result, Pattern.compile("[+#~-]??\\s*_{0,2}\\s*"
+                    + "([+\\-*/%<>=!&^|?:\\w]+)\\s*\\("), false);
+            return substitute(result, Pattern.compile("\\.\\s*([+\\-*/%<>=!&^|?:\\w]+)\\s*\\("), true);
+        }
+
+        private static List<String> substitute(List<String> input, Pattern pattern, boolean all) {
+            List<String> result = new ArrayList<String>();
+            for (String line : input) {
+                if (line.startsWith("//")) {
+                    continue;
+                }
+                Matcher m = pattern.matcher(line);
+                StringBuffer sbf = new StringBuffer();
+                while (all ? m.find() : m.lookingAt()) {
+                    m.appendReplacement(sbf, replacement(m));
+                    if (!all) {
+                        break;
+                    }
+                }
+                m.appendTail(sbf);
+                result.add(sbf.toString());
+            }
+            return result;
+        }
+
+        private static String replacement(Matcher m) {
+            String line = m.group(0);
+            StringBuilder sb = new StringBuilder(line.substring(0, m.start(1) - m.start(0)));
+            for (char c : m.group(1).toCharArray()) {
+                String mapped = operatorMap.get(c);
+                sb.append((mapped == null ? c + "" : mapped).replace("$", "\\$"));
+            }
+            sb.append(line.substring(m.end(1) - m.start(0)));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the lines are classified for the transformers that may handle them.
+ */
+@Test
+public class TestSourceLine {
+
+    public void declarations() {
+        assert line("name : String").isDeclaration();
+        assert line("+ __ count : Int = 0").isDeclaration();
+        assert !line("out.println( name )").isDeclaration();
+    }
+
+    public void methodDefinitions() {
+        assert line("main() {").isMethodDefinition();
+        assert line("- __ compute( a : Int ) : Int {").isMethodDefinition();
+        assert line("Person() {").isCapitalized();
+        assert !line("out.println(\"x\")").isMethodDefinition();
+    }
+
+    public void invocations() {
+        assert line("out.println(\"x\")").isInvocation();
+        assert line("list.each( ( e : Object ) {").isInvocationWithBlock();
+        assert !line("a = b").isInvocation();
+    }
+
+    public void assignments() {
+        assert line("a = b").isAssignment();
+        assert line("a=b ").isAssignment();
+        assert !line("a = b.c()").isAssignment();
+        assert !line("a == b").isAssignment();
+    }
+
+    private static SourceLine line(String text) {
+        return new SourceLine(text);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the source files are read in the same lines String.split returns.
+ */
+@Test
+public class TestSourceReader {
+
+    public void sameLinesAsSplit() throws IOException {
+        String[] contents = {
+                "a",
+                "a\n",
+                "a\nb",
+                "a\r\nb\r\n",
+                "\n\na\n\n\nb\n\n\n",
+                "a // comment\n  b()\n"
+        };
+        for (String content : contents) {
+            assert read(content).equals(Arrays.asList(content.split("\n"))) : content;
+        }
+        assert read("").isEmpty();
+    }
+
+    public void decodeAcrossBlocks() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("l\u00ednea ").append(i).append(" \u00e9\u4e2d\n");
+        }
+        String content = sb.toString();
+        assert read(content).equals(Arrays.asList(content.split("\n")));
+    }
+
+    public void lineNumbers() throws IOException {
+        SourceReader reader = new SourceReader(write("a\n\nb\n\n"));
+        try {
+            List<Integer> numbers = new ArrayList<Integer>();
+            for (String line : reader) {
+                numbers.add(reader.lineNumber());
+            }
+            assert numbers.equals(Arrays.asList(1, 2, 3)) : numbers;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The cleaned lines keep the numbers they have in the file, the
+     * comment lines are dropped, and the lines read ahead are kept until
+     * they are the current one.
+     */
+    public void cleanedLineNumbers() throws IOException {
+        SourceReader reader = new SourceReader(write("// a comment\na\n// another\nb\n\nc\n"));
+        try {
+            SourceLines lines = new SourceLines(reader);
+            assert lines.next();
+            assert lines.current().equals("a") && lines.lineNumber() == 2;
+            assert lines.ahead(1).equals("b");
+            assert lines.ahead(3).equals("c");
+            assert lines.ahead(4) == null;
+            assert lines.buffered().size() == 4;
+            assert lines.next();
+            assert lines.current().equals("b") && lines.lineNumber() == 4;
+            assert lines.next() && lines.lineNumber() == 5;
+            assert lines.next();
+            assert lines.current().equals("c") && lines.lineNumber() == 6;
+            assert !lines.next();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static List<String> read(String content) throws IOException {
+        SourceReader reader = new SourceReader(write(content));
+        try {
+            List<String> lines = new ArrayList<String>();
+            for (String line : reader) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static File write(String content) throws IOException {
+        File file = File.createTempFile("source", ".ryz");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
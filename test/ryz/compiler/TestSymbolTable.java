@@ -0,0 +1,87 @@
+/*
+ * Copyright (c)  2010 - 2011, Oscar Reyes and Ryz language developers.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     - Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the folLowing disclaimer.
+ *     - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *     - Neither the name of Ryz nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES ( INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OR LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * ( INCLUDING NEGLIGENCE OR OTHERWISE ) ARISING IN ANY WAY OUT OF THE USE  OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package ryz.compiler;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the names are found from the innermost scope out.
+ */
+@Test
+public class TestSymbolTable {
+
+    public void localsAreDeclaredOnce() {
+        SymbolTable symbols = new SymbolTable();
+        symbols.declareAttribute("a", "int");
+        symbols.member("test:void");
+        assert !symbols.declareLocal("a", "String");
+        assert symbols.declareLocal("b", "String");
+        assert !symbols.declareLocal("b", "int");
+        symbols.member("other:void");
+        assert symbols.declareLocal("b", "int");
+    }
+
+    public void blockScopes() {
+        SymbolTable symbols = new SymbolTable();
+        symbols.member("test:void");
+        symbols.enterBlock();
+        assert symbols.declareLocal("c", "int");
+        assert symbols.isDeclared("c");
+        symbols.exitBlock();
+        assert !symbols.isDeclared("c");
+    }
+
+    public void localsAndAttributes() {
+        SymbolTable symbols = new SymbolTable();
+        symbols.declareAttribute("a", "int");
+        symbols.member("test:void");
+        symbols.declareParameter("b", "int");
+        symbols.enterBlock();
+        symbols.declareParameter("c", "int");
+        assert !symbols.isLocal("a");
+        assert symbols.isLocal("b");
+        assert symbols.isLocal("c");
+        assert !symbols.isLocal("missing");
+        symbols.declareParameter("a", "int");
+        assert symbols.isLocal("a");
+    }
+
+    public void blocksAndMethods() {
+        SymbolTable symbols = new SymbolTable();
+        symbols.declareAttribute("run", "ryz.lang.block.Block0<Void >");
+        symbols.method("size", "int");
+        symbols.method("size", "long");
+        symbols.member("test:void");
+        assert symbols.isBlock("run");
+        symbols.declareParameter("run", "String");
+        assert !symbols.isBlock("run");
+        assert !symbols.isBlock("missing");
+        assert symbols.methodType("size").equals("int");
+        assert symbols.methodType("missing") == null;
+    }
+}
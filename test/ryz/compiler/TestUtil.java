@@ -101,4 +101,20 @@ class TestUtil {
     public void classPath(String ... classPath) {
         ryzc.classPath(classPath);
     }
+
+    public void directBackend(boolean direct) {
+        ryzc.directBackend(direct);
+    }
+
+    public void incremental(boolean incremental) {
+        ryzc.incremental(incremental);
+    }
+
+    public void threads(int threads) {
+        ryzc.threads(threads);
+    }
+
+    JavacSession session() {
+        return ryzc.session();
+    }
 }
\ No newline at end of file